@@ -0,0 +1,144 @@
+package org.jdbcmon;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-call overhead of {@link MonitoringDataSource}: the same JDBC calls against the raw data source
+ * and against the monitoring wrapper of it. The stub driver isolates the wrapper cost, H2 shows it relative
+ * to a real (in-memory) database.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JdbcOverheadBenchmark {
+
+    private static final int ROWS = 16;
+    private static final int BATCH_SIZE = 64;
+
+    private static final String QUERY = "select id, name from item where id < ?";
+    private static final String INSERT = "insert into item_batch (id, name) values (?, ?)";
+
+    @State(Scope.Benchmark)
+    public static class DataSources {
+        @Param({"stub", "h2"})
+        String driver;
+
+        DataSource raw;
+        DataSource monitored;
+
+        @Setup
+        public void setup() throws SQLException {
+            if ("stub".equals(driver)) {
+                raw = new StubDataSource(ROWS);
+            } else {
+                JdbcDataSource h2 = new JdbcDataSource();
+                h2.setURL("jdbc:h2:mem:benchmark;DB_CLOSE_DELAY=-1");
+                try (Connection connection = h2.getConnection(); Statement statement = connection.createStatement()) {
+                    statement.execute("create table if not exists item (id int primary key, name varchar(64))");
+                    statement.execute("create table if not exists item_batch (id int, name varchar(64))");
+                    statement.execute("delete from item");
+                    for (int i = 0; i < ROWS; i++) {
+                        statement.execute("insert into item values (" + i + ", 'item" + i + "')");
+                    }
+                }
+                raw = h2;
+            }
+            monitored = new MonitoringDataSource(raw);
+        }
+    }
+
+    /**
+     * Connections are held by the benchmark threads like a pool would, the checkout cost is not measured.
+     */
+    @State(Scope.Thread)
+    public static class Connections {
+        Connection raw;
+        Connection monitored;
+
+        @Setup(Level.Trial)
+        public void setup(DataSources dataSources) throws SQLException {
+            raw = dataSources.raw.getConnection();
+            raw.setAutoCommit(false);
+            monitored = dataSources.monitored.getConnection();
+            monitored.setAutoCommit(false);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws SQLException {
+            raw.close();
+            monitored.close();
+        }
+    }
+
+    @Benchmark
+    public long query(Connections connections) throws SQLException {
+        return query(connections.raw);
+    }
+
+    @Benchmark
+    public long queryMonitored(Connections connections) throws SQLException {
+        return query(connections.monitored);
+    }
+
+    @Benchmark
+    public int batchInsert(Connections connections) throws SQLException {
+        return batchInsert(connections.raw);
+    }
+
+    @Benchmark
+    public int batchInsertMonitored(Connections connections) throws SQLException {
+        return batchInsert(connections.monitored);
+    }
+
+    private static long query(Connection connection) throws SQLException {
+        long sum = 0L;
+        try (PreparedStatement ps = connection.prepareStatement(QUERY)) {
+            ps.setInt(1, ROWS);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    sum += rs.getLong(1);
+                    rs.getString(2);
+                }
+            }
+        }
+        return sum;
+    }
+
+    private static int batchInsert(Connection connection) throws SQLException {
+        int[] result;
+        try (PreparedStatement ps = connection.prepareStatement(INSERT)) {
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                ps.setInt(1, i);
+                ps.setString(2, "item");
+                ps.addBatch();
+            }
+            result = ps.executeBatch();
+        }
+        // keep the table empty, so that every invocation does the same work
+        connection.rollback();
+        return result.length;
+    }
+}
@@ -0,0 +1,77 @@
+package org.jdbcmon;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of {@link MonitoringDataSource#report()} and of the streaming reports with a full table of 256 tracked
+ * statements.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReportBenchmark {
+
+    private static final int STATEMENTS = 256;
+    private static final int EXECUTIONS = 100;
+
+    private MonitoringDataSource dataSource;
+    private final StringBuilder out = new StringBuilder(1 << 20);
+
+    @Setup
+    public void setup() throws SQLException {
+        dataSource = new MonitoringDataSource(new StubDataSource(1));
+        try (Connection connection = dataSource.getConnection()) {
+            for (int i = 0; i < STATEMENTS; i++) {
+                try (PreparedStatement ps = connection.prepareStatement("select * from table" + i + " where id = ?")) {
+                    for (int j = 0; j < EXECUTIONS; j++) {
+                        try (ResultSet rs = ps.executeQuery()) {
+                            while (rs.next()) {
+                                rs.getLong(1);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public List<Map<String, ?>> report() {
+        return dataSource.report();
+    }
+
+    @Benchmark
+    public int writeJson() throws IOException {
+        out.setLength(0);
+        dataSource.writeJson(out);
+        return out.length();
+    }
+
+    @Benchmark
+    public int writeOpenMetrics() throws IOException {
+        out.setLength(0);
+        dataSource.writeOpenMetrics(out);
+        return out.length();
+    }
+}
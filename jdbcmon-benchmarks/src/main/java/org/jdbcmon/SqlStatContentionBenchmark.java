@@ -0,0 +1,117 @@
+package org.jdbcmon;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of registering an execution in {@link SqlStat} for a single thread and under heavy contention,
+ * compared with the original design synchronized on one monitor ({@link SynchronizedSqlStat}) and with
+ * the aggregation handed off to a background thread ({@link AsyncAggregator}, dropping on overflow) and with
+ * the events also recorded to memory-mapped files ({@link EventRecorder}).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SqlStatContentionBenchmark {
+
+    private static final int STATEMENTS = 16;
+
+    @State(Scope.Benchmark)
+    public static class Stats {
+        final SqlStat sqlStat = new SqlStat();
+        final SynchronizedSqlStat synchronizedSqlStat = new SynchronizedSqlStat();
+        final SqlStat asyncSqlStat = new SqlStat();
+        final SqlStat recordingSqlStat = new SqlStat();
+        final String[] sql = new String[STATEMENTS];
+
+        @Setup
+        public void setup() throws IOException {
+            for (int i = 0; i < STATEMENTS; i++) {
+                sql[i] = "select * from table" + i + " where id = ?";
+            }
+            asyncSqlStat.setAsyncAggregation(1 << 16, true);
+            recordingSqlStat.setEventRecorder(new EventRecorder(Files.createTempDirectory("jdbcmon-events"),
+                    64 << 20, 2));
+        }
+
+        @TearDown
+        public void tearDown() {
+            asyncSqlStat.setAsyncAggregation(0, true);
+            recordingSqlStat.setEventRecorder(null);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int index;
+
+        String next(Stats stats) {
+            index = (index + 1) & (STATEMENTS - 1);
+            return stats.sql[index];
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void registerExecute_1(Stats stats, Cursor cursor) {
+        stats.sqlStat.registerExecute(cursor.next(stats), 150_000L, null);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void registerExecute_64(Stats stats, Cursor cursor) {
+        stats.sqlStat.registerExecute(cursor.next(stats), 150_000L, null);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void synchronizedRegisterExecute_1(Stats stats, Cursor cursor) {
+        stats.synchronizedSqlStat.registerExecute(cursor.next(stats), 150_000L, null);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void synchronizedRegisterExecute_64(Stats stats, Cursor cursor) {
+        stats.synchronizedSqlStat.registerExecute(cursor.next(stats), 150_000L, null);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void asyncRegisterExecute_1(Stats stats, Cursor cursor) {
+        stats.asyncSqlStat.registerExecute(cursor.next(stats), 150_000L, null);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void asyncRegisterExecute_64(Stats stats, Cursor cursor) {
+        stats.asyncSqlStat.registerExecute(cursor.next(stats), 150_000L, null);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void recordingRegisterExecute_1(Stats stats, Cursor cursor) {
+        stats.recordingSqlStat.registerExecute(cursor.next(stats), 150_000L, null);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void recordingRegisterExecute_64(Stats stats, Cursor cursor) {
+        stats.recordingSqlStat.registerExecute(cursor.next(stats), 150_000L, null);
+    }
+}
@@ -0,0 +1,63 @@
+package org.jdbcmon;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.logging.Logger;
+
+/**
+ * Data source of {@link StubConnection}s, every query returns {@code rows} rows.
+ */
+class StubDataSource implements DataSource {
+
+    private final int rows;
+
+    StubDataSource(int rows) {
+        this.rows = rows;
+    }
+
+    @Override
+    public Connection getConnection() {
+        return new StubConnection(rows);
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) {
+        return new StubConnection(rows);
+    }
+
+    @Override
+    public PrintWriter getLogWriter() {
+        return null;
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) {
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) {
+    }
+
+    @Override
+    public int getLoginTimeout() {
+        return 0;
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException("getParentLogger");
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        throw new SQLFeatureNotSupportedException("unwrap");
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) {
+        return false;
+    }
+}
@@ -0,0 +1,52 @@
+package org.jdbcmon;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Baseline for the contention benchmarks: the recording path of the original {@link SqlStat}, where every
+ * registration takes the monitor of the single data source wide instance.
+ */
+class SynchronizedSqlStat {
+
+    private static final int MAP_SIZE = 256;
+
+    private long totalExecuteCount;
+    private long totalExecuteTimeNanos;
+
+    private final Map<String, StatementStat> sqlMap = new HashMap<>();
+
+    synchronized void registerExecute(String sql, long timeNanos, /*@Nullable*/ Throwable exception) {
+        totalExecuteCount++;
+        totalExecuteTimeNanos += timeNanos;
+
+        getSqlStat(sql).incExecuteCount(timeNanos);
+    }
+
+    private StatementStat getSqlStat(String sql) {
+        StatementStat stat = sqlMap.get(sql);
+        if (stat == null) {
+            stat = new StatementStat();
+            if (sqlMap.size() < MAP_SIZE) {
+                sqlMap.put(sql, stat);
+            }
+        }
+        return stat;
+    }
+
+    private static class StatementStat {
+        final Histogram executeHistogram = new Histogram(3_600_000_000L, 1);
+        final AvgValue avgExecuteTimeMs = new AvgValue(0.2d);
+
+        long totalExecuteTimeNanos;
+        long executeCount;
+
+        void incExecuteCount(long timeNanos) {
+            executeCount++;
+            totalExecuteTimeNanos += timeNanos;
+            double timeMs = timeNanos * 0.000001d;
+            avgExecuteTimeMs.update(timeMs);
+            executeHistogram.record(timeNanos / 1000L);
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package org.jdbcmon.micrometer;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.TimeGauge;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.jdbcmon.MonitoringDataSource;
+import org.jdbcmon.MonitoringSnapshot;
+import org.jdbcmon.StatementSnapshot;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * Binds the statistics of a {@link MonitoringDataSource} to a Micrometer registry:
+ * <pre>
+ * new JdbcmonMetrics(monitoringDataSource, 50, Tags.of("pool", "main")).bindTo(registry);
+ * </pre>
+ * The totals are exposed as {@code jdbcmon.*} meters, and each statement, tagged by its sql, gets an execute timer,
+ * failure, row and fetch time counters and the execute time percentiles as {@code jdbcmon.statement.*} meters.
+ * The {@code sql} tag is the sql up to {@value #MAX_SQL_TAG_LENGTH} characters: a longer sql is truncated and
+ * suffixed with its hash, the full text is in the reports.
+ * <p>
+ * The meters read a snapshot of the data source shared for a second, so a scrape does not read the live counters
+ * value by value and never blocks the writers. To bound the cardinality, only the most executed statements get
+ * meters, up to the given limit, and the {@code [other]} statement. They are ranked again on each new snapshot:
+ * the meters of a statement which is no longer among them are removed, and the one which took its place gets meters.
+ */
+public class JdbcmonMetrics implements MeterBinder {
+
+    private static final int DEFAULT_MAX_STATEMENTS = 50;
+    private static final long MAX_SNAPSHOT_AGE_MILLIS = 1000L;
+    private static final String[] PHI = {"0.5", "0.9", "0.99", "0.999"};
+    static final int MAX_SQL_TAG_LENGTH = 80;
+
+    private final MonitoringDataSource dataSource;
+    private final int maxStatements;
+    private final Iterable<Tag> tags;
+    private final long maxSnapshotAgeMillis;
+
+    /**
+     * Meters of the statements, by sql
+     */
+    private final Map<String, StatementMeters> statementMeters = new ConcurrentHashMap<>();
+    private final AtomicBoolean updating = new AtomicBoolean();
+    //@Nullable
+    private volatile MeterRegistry registry;
+    /**
+     * The snapshot the statement meters were updated for
+     */
+    //@Nullable
+    private volatile MonitoringSnapshot snapshot;
+
+    public JdbcmonMetrics(MonitoringDataSource dataSource) {
+        this(dataSource, DEFAULT_MAX_STATEMENTS, Tags.empty());
+    }
+
+    /**
+     * @param maxStatements the max number of the statements with meters, besides the {@code [other]} statement
+     * @param tags          the tags of all the meters, e.g. the name of the pool
+     */
+    public JdbcmonMetrics(MonitoringDataSource dataSource, int maxStatements, Iterable<Tag> tags) {
+        this(dataSource, maxStatements, tags, MAX_SNAPSHOT_AGE_MILLIS);
+    }
+
+    /**
+     * @param maxSnapshotAgeMillis how long the meters share a snapshot
+     */
+    JdbcmonMetrics(MonitoringDataSource dataSource, int maxStatements, Iterable<Tag> tags, long maxSnapshotAgeMillis) {
+        if (maxStatements < 0) {
+            throw new IllegalArgumentException("Negative max statements: " + maxStatements);
+        }
+        this.dataSource = dataSource;
+        this.maxStatements = maxStatements;
+        this.tags = tags;
+        this.maxSnapshotAgeMillis = maxSnapshotAgeMillis;
+    }
+
+    /**
+     * Binds the meters to the registry, the binder can be bound to one registry only
+     */
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        if (this.registry != null) {
+            throw new IllegalStateException("Already bound to " + this.registry);
+        }
+        this.registry = registry;
+
+        FunctionTimer.builder("jdbcmon.execute", this,
+                        metrics -> metrics.snapshot().getTotalExecuteCount(),
+                        metrics -> metrics.snapshot().getTotalExecuteTimeNanos(), TimeUnit.NANOSECONDS)
+                .tags(tags)
+                .description("Executions of all the statements")
+                .register(registry);
+        FunctionCounter.builder("jdbcmon.prepares", this, metrics -> metrics.snapshot().getTotalPrepareCount())
+                .tags(tags)
+                .description("Prepare calls of all the statements")
+                .register(registry);
+        FunctionCounter.builder("jdbcmon.fetch.time", this,
+                        metrics -> metrics.snapshot().getTotalFetchTimeNanos() / 1e9d)
+                .tags(tags)
+                .baseUnit("seconds")
+                .description("Fetch time of the result sets of all the statements")
+                .register(registry);
+        FunctionCounter.builder("jdbcmon.statements.evicted", this,
+                        metrics -> metrics.snapshot().getEvictedStatementCount())
+                .tags(tags)
+                .description("Statements evicted from the table, their totals are in the [other] statement")
+                .register(registry);
+        // the registry keeps only weak references to the objects of the meters: this one keeps the binder
+        Gauge.builder("jdbcmon.statements", this, metrics -> metrics.snapshot().getStatements().size())
+                .tags(tags)
+                .description("Statements in the table")
+                .strongReference(true)
+                .register(registry);
+        snapshot();
+    }
+
+    /**
+     * Updates the statement meters once per new snapshot; a reader finding another thread updating them reads
+     * the previous statements rather than waiting
+     */
+    private MonitoringSnapshot snapshot() {
+        MonitoringSnapshot snapshot = dataSource.snapshot(maxSnapshotAgeMillis, TimeUnit.MILLISECONDS);
+        if (snapshot != this.snapshot && updating.compareAndSet(false, true)) {
+            try {
+                update(snapshot);
+            } finally {
+                updating.set(false);
+            }
+        }
+        return snapshot;
+    }
+
+    private void update(MonitoringSnapshot snapshot) {
+        this.snapshot = snapshot;
+        MeterRegistry registry = this.registry;
+        if (registry == null) {
+            return;
+        }
+        // the statements are sorted by the execute count, the [other] statement is the last one
+        Map<String, StatementSnapshot> top = new HashMap<>();
+        int count = 0;
+        for (StatementSnapshot statement : snapshot.getStatements()) {
+            if (statement.isOther() || count++ < maxStatements) {
+                top.put(statement.getSql(), statement);
+            }
+        }
+        statementMeters.values().removeIf(meters -> {
+            StatementSnapshot statement = top.remove(meters.sql);
+            if (statement != null) {
+                meters.statement = statement;
+                return false;
+            }
+            meters.remove(registry);
+            return true;
+        });
+        for (StatementSnapshot statement : top.values()) {
+            StatementMeters meters = new StatementMeters(statement);
+            meters.register(registry);
+            statementMeters.put(meters.sql, meters);
+        }
+    }
+
+    /**
+     * @return the sql, or its beginning and its hash if it is longer than {@link #MAX_SQL_TAG_LENGTH}
+     */
+    static String sqlTag(String sql) {
+        if (sql.length() <= MAX_SQL_TAG_LENGTH) {
+            return sql;
+        }
+        String hash = String.format("#%08x", sql.hashCode());
+        return sql.substring(0, MAX_SQL_TAG_LENGTH - hash.length()) + hash;
+    }
+
+    private final class StatementMeters {
+
+        final String sql;
+        private final List<Meter> meters = new ArrayList<>();
+        /**
+         * The statement in the last snapshot it was in, so that the counters never go back to zero while
+         * the meters of a statement are being removed
+         */
+        private volatile StatementSnapshot statement;
+
+        StatementMeters(StatementSnapshot statement) {
+            this.sql = statement.getSql();
+            this.statement = statement;
+        }
+
+        /**
+         * @return the value of the statement in the current snapshot, or in the last one it was in
+         */
+        double value(ToDoubleFunction<StatementSnapshot> function) {
+            snapshot();
+            return function.applyAsDouble(statement);
+        }
+
+        long longValue(ToLongFunction<StatementSnapshot> function) {
+            snapshot();
+            return function.applyAsLong(statement);
+        }
+
+        void register(MeterRegistry registry) {
+            Tags tags = Tags.of(JdbcmonMetrics.this.tags).and("sql", sqlTag(sql));
+            meters.add(FunctionTimer.builder("jdbcmon.statement.execute", this,
+                            m -> m.longValue(StatementSnapshot::getExecuteCount),
+                            m -> m.value(StatementSnapshot::getTotalExecuteTimeNanos), TimeUnit.NANOSECONDS)
+                    .tags(tags)
+                    .description("Executions of the statement")
+                    .register(registry));
+            meters.add(FunctionCounter.builder("jdbcmon.statement.failures", this,
+                            m -> m.value(StatementSnapshot::getFailExecuteCount))
+                    .tags(tags)
+                    .description("Failed executions of the statement")
+                    .register(registry));
+            meters.add(FunctionCounter.builder("jdbcmon.statement.rows", this,
+                            m -> m.value(StatementSnapshot::getTotalResultSetSize))
+                    .tags(tags)
+                    .baseUnit("rows")
+                    .description("Rows fetched from the result sets of the statement")
+                    .register(registry));
+            meters.add(FunctionCounter.builder("jdbcmon.statement.fetch.time", this,
+                            m -> m.value(statement -> statement.getTotalFetchTimeNanos() / 1e9d))
+                    .tags(tags)
+                    .baseUnit("seconds")
+                    .description("Fetch time of the result sets of the statement")
+                    .register(registry));
+            for (int i = 0; i < PHI.length; i++) {
+                int index = i;
+                meters.add(TimeGauge.builder("jdbcmon.statement.execute.percentile", this, TimeUnit.MICROSECONDS,
+                                m -> m.value(statement -> statement.getExecuteTimeMicros()[index]))
+                        .tags(tags)
+                        .tag("phi", PHI[i])
+                        .description("Execute time percentile of the statement")
+                        .register(registry));
+            }
+            meters.add(TimeGauge.builder("jdbcmon.statement.execute.max", this, TimeUnit.MICROSECONDS,
+                            m -> m.value(statement -> statement.getExecuteTimeMicros()[PHI.length]))
+                    .tags(tags)
+                    .description("Max execute time of the statement")
+                    .register(registry));
+        }
+
+        void remove(MeterRegistry registry) {
+            for (Meter meter : meters) {
+                registry.remove(meter);
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package org.jdbcmon.micrometer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.h2.jdbcx.JdbcDataSource;
+import org.jdbcmon.MonitoringDataSource;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+public class JdbcmonMetricsTest {
+
+    private static final String SQL = "select 1";
+
+    @Test
+    public void meters() throws SQLException {
+        MonitoringDataSource dataSource = newDataSource();
+        execute(dataSource, SQL, 5);
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        new JdbcmonMetrics(dataSource, 10, Tags.of("pool", "main")).bindTo(registry);
+
+        FunctionTimer total = registry.find("jdbcmon.execute").tag("pool", "main").functionTimer();
+        assertNotNull(total);
+        assertEquals(5.0d, total.count(), 0.0d);
+        FunctionTimer timer = registry.find("jdbcmon.statement.execute").tag("sql", SQL).functionTimer();
+        assertNotNull(timer);
+        assertEquals(5.0d, timer.count(), 0.0d);
+        assertEquals(1.0d, registry.get("jdbcmon.statements").gauge().value(), 0.0d);
+    }
+
+    @Test
+    public void countersOfRemovedStatementsDoNotDrop() throws SQLException {
+        MonitoringDataSource dataSource = newDataSource();
+        execute(dataSource, SQL, 5);
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        // no shared snapshot: every reading takes a new one
+        new JdbcmonMetrics(dataSource, 10, Tags.empty(), 0L).bindTo(registry);
+        FunctionTimer timer = registry.find("jdbcmon.statement.execute").tag("sql", SQL).functionTimer();
+        assertNotNull(timer);
+        assertEquals(5.0d, timer.count(), 0.0d);
+
+        dataSource.reset();
+        // the reading which finds the statement gone removes its meters, but still reads the last values
+        assertEquals(5.0d, timer.count(), 0.0d);
+        assertNull(registry.find("jdbcmon.statement.execute").tag("sql", SQL).functionTimer());
+    }
+
+    @Test
+    public void metersFollowTheMostExecutedStatements() throws SQLException {
+        MonitoringDataSource dataSource = newDataSource();
+        execute(dataSource, SQL, 5);
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        new JdbcmonMetrics(dataSource, 1, Tags.empty(), 0L).bindTo(registry);
+        assertNotNull(registry.find("jdbcmon.statement.execute").tag("sql", SQL).functionTimer());
+
+        String frequent = "select 2";
+        execute(dataSource, frequent, 10);
+        registry.get("jdbcmon.statements").gauge().value();
+        FunctionTimer timer = registry.find("jdbcmon.statement.execute").tag("sql", frequent).functionTimer();
+        assertNotNull(timer);
+        assertEquals(10.0d, timer.count(), 0.0d);
+        assertNull(registry.find("jdbcmon.statement.execute").tag("sql", SQL).functionTimer());
+    }
+
+    @Test
+    public void sqlTag() {
+        assertEquals(SQL, JdbcmonMetrics.sqlTag(SQL));
+        StringBuilder sql = new StringBuilder("select a from t where id in (");
+        for (int i = 0; i < 1000; i++) {
+            sql.append(i).append(", ");
+        }
+        String longSql = sql.append("0)").toString();
+        String tag = JdbcmonMetrics.sqlTag(longSql);
+        assertEquals(JdbcmonMetrics.MAX_SQL_TAG_LENGTH, tag.length());
+        assertTrue(tag.startsWith("select a from t where id in (0, 1, 2"));
+        assertNotEquals(tag, JdbcmonMetrics.sqlTag(longSql.replace("999", "1000")));
+    }
+
+    private static MonitoringDataSource newDataSource() {
+        JdbcDataSource h2 = new JdbcDataSource();
+        h2.setURL("jdbc:h2:mem:metrics;DB_CLOSE_DELAY=-1");
+        return new MonitoringDataSource(h2);
+    }
+
+    private static void execute(MonitoringDataSource dataSource, String sql, int count) throws SQLException {
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+            for (int i = 0; i < count; i++) {
+                statement.executeQuery(sql).close();
+            }
+        }
+    }
+}
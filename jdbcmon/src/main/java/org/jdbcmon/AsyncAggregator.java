@@ -0,0 +1,205 @@
+package org.jdbcmon;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.jdbcmon.Utils.checkArgument;
+
+/**
+ * Hands the events off from the application threads to a background thread which does the aggregation.
+ * <p>
+ * The events are published to a preallocated multi-producer single-consumer ring buffer of primitive (and reference)
+ * arrays: a producer claims a sequence with a CAS, writes the fields of the slot and publishes the slot with an
+ * ordered write of its sequence, so publishing does not allocate and does not lock. When the ring is full the event
+ * is either dropped (and counted) or, if the loss is not acceptable, aggregated on the calling thread.
+ * The consumer thread parks for a short time when there are no events.
+ */
+class AsyncAggregator {
+
+    interface EventHandler {
+        /**
+         * @param key    the sql or the statement handle
+         * @param weight number of the calls the event represents, see {@link Sampler}
+         */
+        void handle(int type, Object key, /*@Nullable*/ Object ref, long value, long weight);
+    }
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(200L);
+    private static final long FLUSH_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(1L);
+
+    private final int capacity;
+    private final int mask;
+    private final boolean dropOnOverflow;
+    private final EventHandler handler;
+
+    // the slots
+    private final int[] types;
+    private final Object[] keys;
+    private final Object[] refs;
+    private final long[] values;
+    private final long[] weights;
+    /**
+     * Sequence of the event published to every slot, -1 if none
+     */
+    private final AtomicLongArray sequences;
+
+    /**
+     * Next sequence to be claimed by a producer
+     */
+    private final AtomicLong tail = new AtomicLong();
+    /**
+     * Next sequence to be consumed, written by the consumer thread only
+     */
+    private volatile long head;
+
+    private final LongAdder droppedCount = new LongAdder();
+    private final LongAdder inlineCount = new LongAdder();
+    private final LongAdder failedCount = new LongAdder();
+
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    /**
+     * @param bufferSize     number of events the ring holds, rounded up to a power of two
+     * @param dropOnOverflow true to drop the events when the ring is full, false to aggregate them
+     *                       on the calling thread
+     */
+    AsyncAggregator(int bufferSize, boolean dropOnOverflow, EventHandler handler) {
+        checkArgument(bufferSize >= 2 && bufferSize <= 1 << 24, "Illegal buffer size %s", bufferSize);
+        this.capacity = Integer.highestOneBit(bufferSize - 1) << 1;
+        this.mask = capacity - 1;
+        this.dropOnOverflow = dropOnOverflow;
+        this.handler = handler;
+        this.types = new int[capacity];
+        this.keys = new Object[capacity];
+        this.refs = new Object[capacity];
+        this.values = new long[capacity];
+        this.weights = new long[capacity];
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, -1L);
+        }
+        this.thread = new Thread(this::run, "jdbcmon-aggregator");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * @return true if the event is published or dropped, false if it should be aggregated on the calling thread
+     */
+    boolean offer(int type, Object key, /*@Nullable*/ Object ref, long value, long weight) {
+        if (publish(type, key, ref, value, weight)) {
+            return true;
+        }
+        if (dropOnOverflow) {
+            droppedCount.increment();
+            return true;
+        }
+        inlineCount.increment();
+        return false;
+    }
+
+    private boolean publish(int type, Object key, /*@Nullable*/ Object ref, long value, long weight) {
+        long sequence;
+        do {
+            sequence = tail.get();
+            if (sequence - head >= capacity || !running) {
+                return false;
+            }
+        } while (!tail.compareAndSet(sequence, sequence + 1));
+
+        int slot = (int) sequence & mask;
+        types[slot] = type;
+        keys[slot] = key;
+        refs[slot] = ref;
+        values[slot] = value;
+        weights[slot] = weight;
+        // the ordered write publishes the plain writes above to the consumer
+        sequences.lazySet(slot, sequence);
+        return true;
+    }
+
+    private void run() {
+        while (running) {
+            if (drain() == 0) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+        drain();
+    }
+
+    /**
+     * @return number of the events consumed
+     */
+    private int drain() {
+        long head = this.head;
+        int count = 0;
+        while (true) {
+            int slot = (int) head & mask;
+            if (sequences.get(slot) != head) {
+                break;
+            }
+            int type = types[slot];
+            Object key = keys[slot];
+            Object ref = refs[slot];
+            long value = values[slot];
+            long weight = weights[slot];
+            keys[slot] = null;
+            refs[slot] = null;
+            try {
+                handler.handle(type, key, ref, value, weight);
+            } catch (RuntimeException e) {
+                failedCount.increment();
+            }
+            head++;
+            this.head = head;
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Waits (up to a second) until the events published before the call are aggregated
+     */
+    void flush() {
+        long target = tail.get();
+        long deadline = System.nanoTime() + FLUSH_TIMEOUT_NANOS;
+        while (head < target && thread.isAlive() && System.nanoTime() - deadline < 0L) {
+            LockSupport.parkNanos(IDLE_PARK_NANOS);
+        }
+    }
+
+    /**
+     * Stops the consumer thread after aggregating the published events. The events published concurrently
+     * with the stop may be lost.
+     */
+    void stop() {
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(TimeUnit.NANOSECONDS.toMillis(FLUSH_TIMEOUT_NANOS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    Map<String, Object> report() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        long published = tail.get();
+        map.put("bufferSize", capacity);
+        map.put("published", published);
+        map.put("backlog", published - head);
+        map.put("dropped", droppedCount.sum());
+        map.put("inline", inlineCount.sum());
+        long failed = failedCount.sum();
+        if (failed > 0) {
+            map.put("failed", failed);
+        }
+        return map;
+    }
+}
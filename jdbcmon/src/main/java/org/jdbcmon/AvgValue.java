@@ -1,15 +1,18 @@
 package org.jdbcmon;
 
-import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Value with statistics approximation
+ * Value with statistics approximation.
+ * Thread safe and lock-free: the current value is kept as raw double bits and updated with CAS.
  */
 class AvgValue {
 
+    private static final long NAN_BITS = Double.doubleToRawLongBits(Double.NaN);
+
     private final double avgFactor;
 
-    private double currentValue;
+    private final AtomicLong currentValueBits;
 
     /**
      * Creates AvgValue with default value
@@ -19,7 +22,7 @@ class AvgValue {
      */
     AvgValue(double avgFactor, double defaultValue) {
         this.avgFactor = checkAvgFactor(avgFactor);
-        this.currentValue = defaultValue;
+        this.currentValueBits = new AtomicLong(Double.doubleToRawLongBits(defaultValue));
     }
 
     /**
@@ -29,7 +32,7 @@ class AvgValue {
      */
     AvgValue(double avgFactor) {
         this.avgFactor = checkAvgFactor(avgFactor);
-        this.currentValue = Double.NaN;
+        this.currentValueBits = new AtomicLong(NAN_BITS);
     }
 
     private static double checkAvgFactor(double avgFactor) throws IllegalArgumentException {
@@ -42,13 +45,14 @@ class AvgValue {
     private void update(double value, double avgFactor) {
         checkAvgFactor(avgFactor);
         double prevValueWeight = 1.0d - avgFactor;
-        synchronized (this) {
-            if (Double.isNaN(currentValue)) {
-                currentValue = value;
-            } else {
-                currentValue = currentValue * prevValueWeight + value * avgFactor;
-            }
-        }
+        long prevBits;
+        long newBits;
+        do {
+            prevBits = currentValueBits.get();
+            double currentValue = Double.longBitsToDouble(prevBits);
+            double newValue = Double.isNaN(currentValue) ? value : currentValue * prevValueWeight + value * avgFactor;
+            newBits = Double.doubleToRawLongBits(newValue);
+        } while (!currentValueBits.compareAndSet(prevBits, newBits));
     }
 
     /**
@@ -64,29 +68,31 @@ class AvgValue {
         return avgFactor;
     }
 
-    synchronized boolean isInitialized() {
-        return !Double.isNaN(currentValue);
+    boolean isInitialized() {
+        return !Double.isNaN(getCurrentValueOrNaN());
     }
 
     /**
      * Current approx value. NaN means that it is not initialized yet
      */
-    synchronized double getCurrentValueOrNaN() {
-        return currentValue;
+    double getCurrentValueOrNaN() {
+        return Double.longBitsToDouble(currentValueBits.get());
     }
 
-    synchronized Double getCurrentValueOrNull() {
+    Double getCurrentValueOrNull() {
+        double currentValue = getCurrentValueOrNaN();
         if (Double.isNaN(currentValue)) {
             return null;
         }
         return currentValue;
     }
 
-    synchronized String toString(int precision) {
-        if (precision < 0) {
+    String toString(int precision) {
+        if (precision < 0 || precision > 9) {
             throw new IllegalArgumentException("Illegal precision " + precision);
         }
-        return isInitialized() ? String.format(Locale.ENGLISH, "%." + precision + "f", currentValue) : "null";
+        double currentValue = getCurrentValueOrNaN();
+        return Double.isNaN(currentValue) ? "null" : Utils.formatDecimal(currentValue, precision);
     }
 
     @Override
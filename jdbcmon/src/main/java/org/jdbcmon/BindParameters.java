@@ -0,0 +1,179 @@
+package org.jdbcmon;
+
+import java.util.Arrays;
+
+/**
+ * Bind parameters of a prepared statement, captured for the slow query log. The values are kept in fixed-size
+ * primitive (and reference) arrays which are reused for all the executions of the statement, so capturing
+ * does not allocate: the values are rendered to text only when the execution turns out to be slow.
+ * Parameters above the maximal index are ignored, streams and LOBs are not read. Not thread safe, as the statement.
+ */
+class BindParameters {
+
+    private static final byte UNSET = 0;
+    private static final byte NULL = 1;
+    private static final byte LONG = 2;
+    private static final byte DOUBLE = 3;
+    private static final byte BOOLEAN = 4;
+    private static final byte OBJECT = 5;
+    private static final byte STREAM = 6;
+
+    private final int maxValueLength;
+    private final boolean redact;
+
+    private final byte[] kinds;
+    private final long[] longs;
+    private final double[] doubles;
+    private final Object[] objects;
+    /**
+     * Highest parameter index set
+     */
+    private int count;
+
+    /**
+     * @param maxParameters  number of the parameters to capture
+     * @param maxValueLength length the rendered values are truncated to
+     * @param redact         true to render the types of the values only
+     */
+    BindParameters(int maxParameters, int maxValueLength, boolean redact) {
+        this.maxValueLength = maxValueLength;
+        this.redact = redact;
+        this.kinds = new byte[maxParameters];
+        this.longs = new long[maxParameters];
+        this.doubles = new double[maxParameters];
+        this.objects = new Object[maxParameters];
+    }
+
+    void setNull(int parameterIndex) {
+        set(parameterIndex, NULL, null);
+    }
+
+    void setLong(int parameterIndex, long value) {
+        if (set(parameterIndex, LONG, null)) {
+            longs[parameterIndex - 1] = value;
+        }
+    }
+
+    void setDouble(int parameterIndex, double value) {
+        if (set(parameterIndex, DOUBLE, null)) {
+            doubles[parameterIndex - 1] = value;
+        }
+    }
+
+    void setBoolean(int parameterIndex, boolean value) {
+        if (set(parameterIndex, BOOLEAN, null)) {
+            longs[parameterIndex - 1] = value ? 1L : 0L;
+        }
+    }
+
+    /**
+     * Keeps the reference to the value, it is rendered only if the execution is slow
+     */
+    void setObject(int parameterIndex, /*@Nullable*/ Object value) {
+        set(parameterIndex, value == null ? NULL : OBJECT, value);
+    }
+
+    /**
+     * A stream or a LOB, only the type is rendered
+     */
+    void setStream(int parameterIndex, /*@Nullable*/ Object value) {
+        set(parameterIndex, value == null ? NULL : STREAM, value);
+    }
+
+    private boolean set(int parameterIndex, byte kind, /*@Nullable*/ Object object) {
+        if (parameterIndex < 1 || parameterIndex > kinds.length) {
+            return false;
+        }
+        int i = parameterIndex - 1;
+        kinds[i] = kind;
+        objects[i] = object;
+        if (parameterIndex > count) {
+            count = parameterIndex;
+        }
+        return true;
+    }
+
+    void clear() {
+        Arrays.fill(kinds, 0, count, UNSET);
+        Arrays.fill(objects, 0, count, null);
+        count = 0;
+    }
+
+    /**
+     * @return hash of the captured values, {@link UnitOfWork#NO_SIGNATURE} if they include a stream
+     */
+    long signature() {
+        long hash = count;
+        for (int i = 0; i < count; i++) {
+            byte kind = kinds[i];
+            long value;
+            if (kind == STREAM) {
+                return UnitOfWork.NO_SIGNATURE;
+            } else if (kind == LONG || kind == BOOLEAN) {
+                value = longs[i];
+            } else if (kind == DOUBLE) {
+                value = Double.doubleToLongBits(doubles[i]);
+            } else if (kind == OBJECT) {
+                Object object = objects[i];
+                value = object instanceof byte[] ? Arrays.hashCode((byte[]) object) : object.hashCode();
+            } else {
+                value = -kind;
+            }
+            hash = hash * 1_000_003L + value;
+        }
+        return hash == UnitOfWork.NO_SIGNATURE ? 1L : hash;
+    }
+
+    String render() {
+        StringBuilder sb = new StringBuilder();
+        sb.append('[');
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            switch (kinds[i]) {
+                case UNSET:
+                    sb.append('-');
+                    break;
+                case NULL:
+                    sb.append("NULL");
+                    break;
+                case LONG:
+                    appendValue(sb, "long", longs[i]);
+                    break;
+                case DOUBLE:
+                    appendValue(sb, "double", doubles[i]);
+                    break;
+                case BOOLEAN:
+                    appendValue(sb, "boolean", longs[i] != 0L);
+                    break;
+                case STREAM:
+                    sb.append('<').append(objects[i].getClass().getSimpleName()).append('>');
+                    break;
+                default:
+                    Object object = objects[i];
+                    if (object instanceof byte[]) {
+                        sb.append("<byte[").append(((byte[]) object).length).append("]>");
+                    } else if (object instanceof CharSequence) {
+                        appendValue(sb, "string", "'" + truncate(object.toString()) + "'");
+                    } else {
+                        appendValue(sb, object.getClass().getSimpleName(), truncate(String.valueOf(object)));
+                    }
+                    break;
+            }
+        }
+        return sb.append(']').toString();
+    }
+
+    private void appendValue(StringBuilder sb, String type, Object value) {
+        if (redact) {
+            sb.append('<').append(type).append('>');
+        } else {
+            sb.append(value);
+        }
+    }
+
+    private String truncate(String value) {
+        return value.length() <= maxValueLength ? value : value.substring(0, maxValueLength) + "...";
+    }
+}
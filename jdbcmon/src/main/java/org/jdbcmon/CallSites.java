@@ -0,0 +1,106 @@
+package org.jdbcmon;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.jdbcmon.SqlStat.formatAvg;
+import static org.jdbcmon.SqlStatementStat.NANOS_TO_MILLIS_MULTIPLIER;
+
+/**
+ * Resolves the application call site of an execution: the first frame of the stack outside of the framework
+ * packages (jdbcmon, the JDK and the configured ones). Walking the stack is expensive, so it is done for a sample
+ * of the executions only, and the statistics of a call site are looked up by the frame itself, which is
+ * rendered to text at report time only.
+ */
+class CallSites {
+
+    private static final String[] DEFAULT_FRAMEWORK_PACKAGES = {"org.jdbcmon.", "java.", "javax.", "jdk.", "sun.",
+            "com.sun."};
+
+    /**
+     * The default framework packages, no sampling
+     */
+    static final CallSites DEFAULT = new CallSites(1L);
+
+    private final long every;
+    private final String[] frameworkPackages;
+
+    /**
+     * @param every             one of this number of executions is attributed
+     * @param frameworkPackages the frames of the classes of these packages (prefixes) are skipped, in addition
+     *                          to the default ones
+     */
+    CallSites(long every, String... frameworkPackages) {
+        Utils.checkArgument(every >= 1L, "Illegal sampling %s", every);
+        this.every = every;
+        this.frameworkPackages = Arrays.copyOf(DEFAULT_FRAMEWORK_PACKAGES,
+                DEFAULT_FRAMEWORK_PACKAGES.length + frameworkPackages.length);
+        System.arraycopy(frameworkPackages, 0, this.frameworkPackages, DEFAULT_FRAMEWORK_PACKAGES.length,
+                frameworkPackages.length);
+    }
+
+    /**
+     * @return the weight of the execution if it is attributed, 0 if not
+     */
+    long sample() {
+        return Sampler.sampleOneOf(every);
+    }
+
+    /**
+     * @return the first frame of the current stack outside of the framework packages, null if none
+     */
+    //@Nullable
+    StackTraceElement callSite() {
+        for (StackTraceElement frame : new Throwable().getStackTrace()) {
+            if (!isFramework(frame.getClassName())) {
+                return frame;
+            }
+        }
+        return null;
+    }
+
+    private boolean isFramework(String className) {
+        for (String frameworkPackage : frameworkPackages) {
+            if (className.startsWith(frameworkPackage)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    String describe() {
+        return "1/" + every;
+    }
+
+    /**
+     * Statistics of the executions of a statement from a call site, estimated from the sampled executions
+     */
+    static final class Stat {
+        final StackTraceElement callSite;
+        final LongAdder executeCount = new LongAdder();
+        final LongAdder totalExecuteTimeNanos = new LongAdder();
+
+        Stat(StackTraceElement callSite) {
+            this.callSite = callSite;
+        }
+
+        void register(long timeNanos, long weight) {
+            executeCount.add(weight);
+            totalExecuteTimeNanos.add(timeNanos * weight);
+        }
+
+        Map<String, Object> report() {
+            long executeCount = this.executeCount.sum();
+            long totalExecuteTimeNanos = this.totalExecuteTimeNanos.sum();
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("callSite", callSite.toString());
+            map.put("executeCount", executeCount);
+            map.put("totalExecuteTime", TimeUnit.NANOSECONDS.toMillis(totalExecuteTimeNanos));
+            map.put("executeAvgTotalTime", formatAvg(totalExecuteTimeNanos, executeCount, NANOS_TO_MILLIS_MULTIPLIER));
+            return map;
+        }
+    }
+}
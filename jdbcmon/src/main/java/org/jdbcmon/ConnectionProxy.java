@@ -1,66 +1,528 @@
 package org.jdbcmon;
 
-import java.lang.reflect.InvocationHandler;
-import java.lang.reflect.Method;
-import java.lang.reflect.Proxy;
+import java.sql.Array;
+import java.sql.Blob;
 import java.sql.CallableStatement;
+import java.sql.Clob;
 import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.NClob;
 import java.sql.PreparedStatement;
+import java.sql.SQLClientInfoException;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.sql.SQLXML;
+import java.sql.Savepoint;
 import java.sql.Statement;
+import java.sql.Struct;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executor;
 
-class ConnectionProxy {
-
-    private static final Class[] CONNECTION_PROXY_INTERFACES = {Connection.class};
-
-    private static class ConnectionInvocationHandler implements InvocationHandler {
-        private final Connection delegate;
-        private final SqlStat sqlStat;
-
-        private ConnectionInvocationHandler(Connection delegate, SqlStat sqlStat) {
-            this.delegate = delegate;
-            this.sqlStat = sqlStat;
-        }
-
-        @Override
-        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-            String methodName = method.getName();
-            Throwable exception = null;
-
-            if (Statement.class.isAssignableFrom(method.getReturnType()) && "createStatement".equals(methodName)) {
-                Statement delegateS = (Statement) method.invoke(delegate, args);
-                return StatementProxy.proxy(delegateS, sqlStat);
-            } else if (PreparedStatement.class.isAssignableFrom(method.getReturnType()) && "prepareStatement".equals(methodName)
-                    && args.length >= 1 && args[0] instanceof String) {
-                String sql = (String) args[0];
-                try {
-                    PreparedStatement delegatePS = (PreparedStatement) method.invoke(delegate, args);
-                    return PreparedStatementProxy.proxy(sql, delegatePS, sqlStat);
-                } catch (Throwable e) {
-                    exception = e;
-                    throw e;
-                } finally {
-                    sqlStat.registerPrepare(sql, exception);
-                }
-            } else if (CallableStatement.class.isAssignableFrom(method.getReturnType()) && "prepareCall".equals(methodName)
-                    && args.length >= 1 && args[0] instanceof String) {
-                String sql = (String) args[0];
-                try {
-                    CallableStatement delegateCS = (CallableStatement) method.invoke(delegate, args);
-                    return CallableStatementProxy.proxy(sql, delegateCS, sqlStat);
-                } catch (Throwable e) {
-                    exception = e;
-                    throw e;
-                } finally {
-                    sqlStat.registerPrepare(sql, exception);
-                }
+/**
+ * Delegating {@link Connection} wrapper. Statements created by the connection are wrapped to be monitored,
+ * {@code prepareStatement} and {@code prepareCall} are registered in {@link SqlStat} with the prepare time, the statement
+ * handle is resolved once here and kept by the prepared statement wrapper. The prepared statements left open
+ * when the connection is closed are registered as leaked. The checkout (from creation
+ * to close), transactions, {@code commit}, {@code rollback} and {@code setAutoCommit} are registered
+ * in {@link ConnectionStat}, all the other calls are plain delegation.
+ * <p>
+ * The per-checkout counters are not synchronized: a connection is used by one thread at a time.
+ */
+class ConnectionProxy implements Connection {
+
+    private static final int MAX_OPEN_STATEMENTS = 256;
+
+    private final Connection delegate;
+    private final SqlStat sqlStat;
+    private final ConnectionStat connectionStat;
+
+    private final long checkoutNanos;
+    /**
+     * Time spent executing and fetching during the checkout
+     */
+    private long busyNanos;
+    private int executeCount;
+    /**
+     * Start of the first execution since the checkout or the end of the last transaction, 0 if none
+     */
+    private long transactionStartNanos;
+    private boolean closed;
+    /**
+     * Executions of the checkout, null until the first one or if not tracked
+     */
+    //@Nullable
+    private UnitOfWork unitOfWork;
+    /**
+     * Prepared statements not closed yet, they are registered as leaked when the connection is closed,
+     * the oldest first
+     */
+    private final List<PreparedStatementProxy<?>> openStatements = new ArrayList<>();
+
+    ConnectionProxy(Connection delegate, SqlStat sqlStat) {
+        this.delegate = delegate;
+        this.sqlStat = sqlStat;
+        this.connectionStat = sqlStat.connectionStat;
+        this.checkoutNanos = System.nanoTime();
+    }
+
+    void registerExecute(long timeNanos) {
+        executeCount++;
+        busyNanos += timeNanos;
+        if (transactionStartNanos == 0L) {
+            transactionStartNanos = System.nanoTime() - timeNanos;
+        }
+    }
+
+    void registerFetch(long timeNanos) {
+        busyNanos += timeNanos;
+    }
+
+    /**
+     * Tracks the statement until it is closed. The number of the tracked statements is bounded, so that
+     * a connection held for a long time does not keep the leaked ones: above the bound the oldest one is
+     * registered as leaked right away.
+     */
+    void registerOpen(PreparedStatementProxy<?> statement) {
+        if (openStatements.size() >= MAX_OPEN_STATEMENTS) {
+            openStatements.remove(0).registerLeaked();
+        }
+        openStatements.add(statement);
+    }
+
+    void registerClosed(PreparedStatementProxy<?> statement) {
+        // usually the last opened one
+        for (int i = openStatements.size() - 1; i >= 0; i--) {
+            if (openStatements.get(i) == statement) {
+                openStatements.remove(i);
+                return;
+            }
+        }
+    }
+
+    UnitOfWork unitOfWork(int nPlusOneThreshold) {
+        UnitOfWork unitOfWork = this.unitOfWork;
+        if (unitOfWork == null) {
+            unitOfWork = new UnitOfWork(sqlStat, nPlusOneThreshold);
+            this.unitOfWork = unitOfWork;
+        }
+        return unitOfWork;
+    }
+
+    private void endTransaction(long endNanos) {
+        if (transactionStartNanos != 0L) {
+            connectionStat.registerTransaction(endNanos - transactionStartNanos);
+            transactionStartNanos = 0L;
+        }
+    }
+
+    @Override
+    public Statement createStatement() throws SQLException {
+        return new StatementProxy<>(this, delegate.createStatement(), sqlStat);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql) throws SQLException {
+        SqlStatementStat stat = sqlStat.getSqlStat(sql);
+        Throwable exception = null;
+        long startNanos = System.nanoTime();
+        try {
+            return new PreparedStatementProxy<>(this, sql, stat, delegate.prepareStatement(sql), sqlStat);
+        } catch (Throwable e) {
+            exception = e;
+            throw e;
+        } finally {
+            sqlStat.registerPrepare(stat, System.nanoTime() - startNanos, exception);
+        }
+    }
+
+    @Override
+    public CallableStatement prepareCall(String sql) throws SQLException {
+        SqlStatementStat stat = sqlStat.getSqlStat(sql);
+        Throwable exception = null;
+        long startNanos = System.nanoTime();
+        try {
+            return new CallableStatementProxy(this, sql, stat, delegate.prepareCall(sql), sqlStat);
+        } catch (Throwable e) {
+            exception = e;
+            throw e;
+        } finally {
+            sqlStat.registerPrepare(stat, System.nanoTime() - startNanos, exception);
+        }
+    }
+
+    @Override
+    public String nativeSQL(String sql) throws SQLException {
+        return delegate.nativeSQL(sql);
+    }
+
+    @Override
+    public void setAutoCommit(boolean autoCommit) throws SQLException {
+        long startNanos = System.nanoTime();
+        try {
+            delegate.setAutoCommit(autoCommit);
+        } finally {
+            connectionStat.registerSetAutoCommit(System.nanoTime() - startNanos);
+            if (!autoCommit) {
+                // the statements executed in auto-commit mode are not a part of the transaction
+                transactionStartNanos = 0L;
             }
+        }
+    }
+
+    @Override
+    public boolean getAutoCommit() throws SQLException {
+        return delegate.getAutoCommit();
+    }
+
+    @Override
+    public void commit() throws SQLException {
+        Throwable exception = null;
+        long startNanos = System.nanoTime();
+        try {
+            delegate.commit();
+        } catch (Throwable e) {
+            exception = e;
+            throw e;
+        } finally {
+            long endNanos = System.nanoTime();
+            connectionStat.registerCommit(endNanos - startNanos, exception);
+            endTransaction(endNanos);
+        }
+    }
+
+    @Override
+    public void rollback() throws SQLException {
+        Throwable exception = null;
+        long startNanos = System.nanoTime();
+        try {
+            delegate.rollback();
+        } catch (Throwable e) {
+            exception = e;
+            throw e;
+        } finally {
+            long endNanos = System.nanoTime();
+            connectionStat.registerRollback(endNanos - startNanos, exception);
+            endTransaction(endNanos);
+        }
+    }
+
+    @Override
+    public void close() throws SQLException {
+        if (closed) {
+            delegate.close();
+            return;
+        }
+        closed = true;
+        long holdTimeNanos = System.nanoTime() - checkoutNanos;
+        try {
+            delegate.close();
+        } finally {
+            connectionStat.registerClose(holdTimeNanos, busyNanos, executeCount);
+            for (PreparedStatementProxy<?> statement : openStatements) {
+                statement.registerLeaked();
+            }
+            openStatements.clear();
+            if (unitOfWork != null) {
+                unitOfWork.finish();
+            }
+        }
+    }
+
+    @Override
+    public boolean isClosed() throws SQLException {
+        return delegate.isClosed();
+    }
+
+    @Override
+    public DatabaseMetaData getMetaData() throws SQLException {
+        return delegate.getMetaData();
+    }
+
+    @Override
+    public void setReadOnly(boolean readOnly) throws SQLException {
+        delegate.setReadOnly(readOnly);
+    }
+
+    @Override
+    public boolean isReadOnly() throws SQLException {
+        return delegate.isReadOnly();
+    }
+
+    @Override
+    public void setCatalog(String catalog) throws SQLException {
+        delegate.setCatalog(catalog);
+    }
+
+    @Override
+    public String getCatalog() throws SQLException {
+        return delegate.getCatalog();
+    }
+
+    @Override
+    public void setTransactionIsolation(int level) throws SQLException {
+        delegate.setTransactionIsolation(level);
+    }
+
+    @Override
+    public int getTransactionIsolation() throws SQLException {
+        return delegate.getTransactionIsolation();
+    }
+
+    @Override
+    public SQLWarning getWarnings() throws SQLException {
+        return delegate.getWarnings();
+    }
+
+    @Override
+    public void clearWarnings() throws SQLException {
+        delegate.clearWarnings();
+    }
+
+    @Override
+    public Statement createStatement(int resultSetType, int resultSetConcurrency) throws SQLException {
+        return new StatementProxy<>(this, delegate.createStatement(resultSetType, resultSetConcurrency), sqlStat);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+        SqlStatementStat stat = sqlStat.getSqlStat(sql);
+        Throwable exception = null;
+        long startNanos = System.nanoTime();
+        try {
+            return new PreparedStatementProxy<>(this, sql, stat, delegate.prepareStatement(sql, resultSetType, resultSetConcurrency), sqlStat);
+        } catch (Throwable e) {
+            exception = e;
+            throw e;
+        } finally {
+            sqlStat.registerPrepare(stat, System.nanoTime() - startNanos, exception);
+        }
+    }
+
+    @Override
+    public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+        SqlStatementStat stat = sqlStat.getSqlStat(sql);
+        Throwable exception = null;
+        long startNanos = System.nanoTime();
+        try {
+            return new CallableStatementProxy(this, sql, stat, delegate.prepareCall(sql, resultSetType, resultSetConcurrency), sqlStat);
+        } catch (Throwable e) {
+            exception = e;
+            throw e;
+        } finally {
+            sqlStat.registerPrepare(stat, System.nanoTime() - startNanos, exception);
+        }
+    }
+
+    @Override
+    public Map<String, Class<?>> getTypeMap() throws SQLException {
+        return delegate.getTypeMap();
+    }
+
+    @Override
+    public void setTypeMap(Map<String, Class<?>> map) throws SQLException {
+        delegate.setTypeMap(map);
+    }
+
+    @Override
+    public void setHoldability(int holdability) throws SQLException {
+        delegate.setHoldability(holdability);
+    }
+
+    @Override
+    public int getHoldability() throws SQLException {
+        return delegate.getHoldability();
+    }
+
+    @Override
+    public Savepoint setSavepoint() throws SQLException {
+        return delegate.setSavepoint();
+    }
+
+    @Override
+    public Savepoint setSavepoint(String name) throws SQLException {
+        return delegate.setSavepoint(name);
+    }
+
+    @Override
+    public void rollback(Savepoint savepoint) throws SQLException {
+        delegate.rollback(savepoint);
+    }
+
+    @Override
+    public void releaseSavepoint(Savepoint savepoint) throws SQLException {
+        delegate.releaseSavepoint(savepoint);
+    }
+
+    @Override
+    public Statement createStatement(int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+        return new StatementProxy<>(this, delegate.createStatement(resultSetType, resultSetConcurrency, resultSetHoldability), sqlStat);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+        SqlStatementStat stat = sqlStat.getSqlStat(sql);
+        Throwable exception = null;
+        long startNanos = System.nanoTime();
+        try {
+            return new PreparedStatementProxy<>(this, sql, stat, delegate.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability), sqlStat);
+        } catch (Throwable e) {
+            exception = e;
+            throw e;
+        } finally {
+            sqlStat.registerPrepare(stat, System.nanoTime() - startNanos, exception);
+        }
+    }
 
-            return method.invoke(delegate, args);
+    @Override
+    public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+        SqlStatementStat stat = sqlStat.getSqlStat(sql);
+        Throwable exception = null;
+        long startNanos = System.nanoTime();
+        try {
+            return new CallableStatementProxy(this, sql, stat, delegate.prepareCall(sql, resultSetType, resultSetConcurrency, resultSetHoldability), sqlStat);
+        } catch (Throwable e) {
+            exception = e;
+            throw e;
+        } finally {
+            sqlStat.registerPrepare(stat, System.nanoTime() - startNanos, exception);
         }
     }
 
-    static Connection proxy(Connection delegate, SqlStat sqlStat) {
-        InvocationHandler handler = new ConnectionInvocationHandler(delegate, sqlStat);
-        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), CONNECTION_PROXY_INTERFACES, handler);
+    @Override
+    public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys) throws SQLException {
+        SqlStatementStat stat = sqlStat.getSqlStat(sql);
+        Throwable exception = null;
+        long startNanos = System.nanoTime();
+        try {
+            return new PreparedStatementProxy<>(this, sql, stat, delegate.prepareStatement(sql, autoGeneratedKeys), sqlStat);
+        } catch (Throwable e) {
+            exception = e;
+            throw e;
+        } finally {
+            sqlStat.registerPrepare(stat, System.nanoTime() - startNanos, exception);
+        }
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int[] columnIndexes) throws SQLException {
+        SqlStatementStat stat = sqlStat.getSqlStat(sql);
+        Throwable exception = null;
+        long startNanos = System.nanoTime();
+        try {
+            return new PreparedStatementProxy<>(this, sql, stat, delegate.prepareStatement(sql, columnIndexes), sqlStat);
+        } catch (Throwable e) {
+            exception = e;
+            throw e;
+        } finally {
+            sqlStat.registerPrepare(stat, System.nanoTime() - startNanos, exception);
+        }
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, String[] columnNames) throws SQLException {
+        SqlStatementStat stat = sqlStat.getSqlStat(sql);
+        Throwable exception = null;
+        long startNanos = System.nanoTime();
+        try {
+            return new PreparedStatementProxy<>(this, sql, stat, delegate.prepareStatement(sql, columnNames), sqlStat);
+        } catch (Throwable e) {
+            exception = e;
+            throw e;
+        } finally {
+            sqlStat.registerPrepare(stat, System.nanoTime() - startNanos, exception);
+        }
+    }
+
+    @Override
+    public Clob createClob() throws SQLException {
+        return delegate.createClob();
+    }
+
+    @Override
+    public Blob createBlob() throws SQLException {
+        return delegate.createBlob();
+    }
+
+    @Override
+    public NClob createNClob() throws SQLException {
+        return delegate.createNClob();
+    }
+
+    @Override
+    public SQLXML createSQLXML() throws SQLException {
+        return delegate.createSQLXML();
+    }
+
+    @Override
+    public boolean isValid(int timeout) throws SQLException {
+        return delegate.isValid(timeout);
+    }
+
+    @Override
+    public void setClientInfo(String name, String value) throws SQLClientInfoException {
+        delegate.setClientInfo(name, value);
+    }
+
+    @Override
+    public void setClientInfo(Properties properties) throws SQLClientInfoException {
+        delegate.setClientInfo(properties);
+    }
+
+    @Override
+    public String getClientInfo(String name) throws SQLException {
+        return delegate.getClientInfo(name);
+    }
+
+    @Override
+    public Properties getClientInfo() throws SQLException {
+        return delegate.getClientInfo();
+    }
+
+    @Override
+    public Array createArrayOf(String typeName, Object[] elements) throws SQLException {
+        return delegate.createArrayOf(typeName, elements);
+    }
+
+    @Override
+    public Struct createStruct(String typeName, Object[] attributes) throws SQLException {
+        return delegate.createStruct(typeName, attributes);
+    }
+
+    @Override
+    public void setSchema(String schema) throws SQLException {
+        delegate.setSchema(schema);
+    }
+
+    @Override
+    public String getSchema() throws SQLException {
+        return delegate.getSchema();
+    }
+
+    @Override
+    public void abort(Executor executor) throws SQLException {
+        delegate.abort(executor);
+    }
+
+    @Override
+    public void setNetworkTimeout(Executor executor, int milliseconds) throws SQLException {
+        delegate.setNetworkTimeout(executor, milliseconds);
+    }
+
+    @Override
+    public int getNetworkTimeout() throws SQLException {
+        return delegate.getNetworkTimeout();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        return delegate.unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return delegate.isWrapperFor(iface);
     }
 }
@@ -0,0 +1,184 @@
+package org.jdbcmon;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.jdbcmon.SqlStat.formatAvg;
+import static org.jdbcmon.SqlStatementStat.getPercentilesReport;
+import static org.jdbcmon.SqlStatementStat.newTimeHistogram;
+
+/**
+ * Statistics of the connections of a data source: the time to acquire a connection from the delegate (the pool),
+ * the time it is held by the application from checkout to close, the part of it spent idle (not executing
+ * or fetching), the statements per checkout, transaction, commit, rollback and setAutoCommit latency, and the gauges
+ * of the connections checked out and being acquired right now. Thread safe and lock-free.
+ */
+class ConnectionStat {
+
+    private static final int HISTOGRAM_DIGITS = 1;
+    private static final long HIGHEST_TRACKABLE_STATEMENTS = 1_000_000L;
+
+    /**
+     * Start of the statistics, the average active connections are computed from it, moved by the reset
+     */
+    private volatile long startNanos = System.nanoTime();
+
+    // time histograms, in micros
+    private final Histogram acquireHistogram = newTimeHistogram(HISTOGRAM_DIGITS);
+    private final Histogram holdHistogram = newTimeHistogram(HISTOGRAM_DIGITS);
+    private final Histogram idleHistogram = newTimeHistogram(HISTOGRAM_DIGITS);
+    private final Histogram transactionHistogram = newTimeHistogram(HISTOGRAM_DIGITS);
+    private final Histogram commitHistogram = newTimeHistogram(HISTOGRAM_DIGITS);
+    private final Histogram rollbackHistogram = newTimeHistogram(HISTOGRAM_DIGITS);
+    private final Histogram setAutoCommitHistogram = newTimeHistogram(HISTOGRAM_DIGITS);
+    /**
+     * Executions per checkout
+     */
+    private final Histogram statementsHistogram = new Histogram(HIGHEST_TRACKABLE_STATEMENTS, HISTOGRAM_DIGITS);
+
+    private final LongAdder acquireFailCount = new LongAdder();
+    private final LongAdder commitFailCount = new LongAdder();
+    private final LongAdder rollbackFailCount = new LongAdder();
+    private final LongAdder totalHoldTimeNanos = new LongAdder();
+
+    /**
+     * Connections checked out and not closed yet
+     */
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger maxActive = new AtomicInteger();
+    /**
+     * Threads waiting in the delegate getConnection
+     */
+    private final AtomicInteger acquiring = new AtomicInteger();
+
+    void acquireStarted() {
+        acquiring.incrementAndGet();
+    }
+
+    /**
+     * @param acquired false if getConnection failed
+     */
+    void registerAcquire(long timeNanos, boolean acquired) {
+        acquiring.decrementAndGet();
+        acquireHistogram.record(TimeUnit.NANOSECONDS.toMicros(timeNanos));
+        if (acquired) {
+            int current = active.incrementAndGet();
+            int max = maxActive.get();
+            while (current > max && !maxActive.compareAndSet(max, current)) {
+                max = maxActive.get();
+            }
+        } else {
+            acquireFailCount.increment();
+        }
+    }
+
+    /**
+     * @param holdTimeNanos time from checkout to close
+     * @param busyTimeNanos part of the hold time spent executing statements and fetching result sets
+     * @param statements    executions during the checkout
+     */
+    void registerClose(long holdTimeNanos, long busyTimeNanos, int statements) {
+        active.decrementAndGet();
+        totalHoldTimeNanos.add(holdTimeNanos);
+        holdHistogram.record(TimeUnit.NANOSECONDS.toMicros(holdTimeNanos));
+        idleHistogram.record(TimeUnit.NANOSECONDS.toMicros(Math.max(holdTimeNanos - busyTimeNanos, 0L)));
+        statementsHistogram.record(statements);
+    }
+
+    void registerTransaction(long timeNanos) {
+        transactionHistogram.record(TimeUnit.NANOSECONDS.toMicros(timeNanos));
+    }
+
+    void registerCommit(long timeNanos, /*@Nullable*/ Throwable exception) {
+        commitHistogram.record(TimeUnit.NANOSECONDS.toMicros(timeNanos));
+        if (exception != null) {
+            commitFailCount.increment();
+        }
+    }
+
+    void registerRollback(long timeNanos, /*@Nullable*/ Throwable exception) {
+        rollbackHistogram.record(TimeUnit.NANOSECONDS.toMicros(timeNanos));
+        if (exception != null) {
+            rollbackFailCount.increment();
+        }
+    }
+
+    void registerSetAutoCommit(long timeNanos) {
+        setAutoCommitHistogram.record(TimeUnit.NANOSECONDS.toMicros(timeNanos));
+    }
+
+    Map<String, Object> report() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("active", active.get());
+        map.put("maxActive", maxActive.get());
+        map.put("acquiring", acquiring.get());
+        // average connections checked out since the start (or reset), evaluated as sum(hold time) / (lifetime),
+        // the connections not closed yet are not included
+        long uptimeNanos = Math.max(System.nanoTime() - startNanos, 1L);
+        map.put("avgActive", formatAvg(totalHoldTimeNanos.sum(), uptimeNanos, 1.0d));
+
+        map.put("acquireCount", acquireHistogram.getTotalCount());
+        long acquireFailCount = this.acquireFailCount.sum();
+        if (acquireFailCount > 0) {
+            map.put("acquireFailCount", acquireFailCount);
+        }
+        map.put("acquireTime", getPercentilesReport(acquireHistogram));
+
+        map.put("closeCount", holdHistogram.getTotalCount());
+        map.put("totalHoldTime", TimeUnit.NANOSECONDS.toMillis(totalHoldTimeNanos.sum()));
+        map.put("holdTime", getPercentilesReport(holdHistogram));
+        map.put("idleTime", getPercentilesReport(idleHistogram));
+        map.put("statementsPerCheckout", getCountPercentilesReport(statementsHistogram));
+
+        putTimeReport(map, "transaction", transactionHistogram, 0L);
+        putTimeReport(map, "commit", commitHistogram, commitFailCount.sum());
+        putTimeReport(map, "rollback", rollbackHistogram, rollbackFailCount.sum());
+        putTimeReport(map, "setAutoCommit", setAutoCommitHistogram, 0L);
+        return map;
+    }
+
+    private static void putTimeReport(Map<String, Object> map, String name, Histogram histogram, long failCount) {
+        long count = histogram.getTotalCount();
+        if (count > 0) {
+            map.put(name + "Count", count);
+            if (failCount > 0) {
+                map.put(name + "FailCount", failCount);
+            }
+            map.put(name + "Time", getPercentilesReport(histogram));
+        }
+    }
+
+    private static Map<String, Long> getCountPercentilesReport(Histogram histogram) {
+        Map<String, Long> map = new LinkedHashMap<>();
+        long[] values = histogram.getValuesAtPercentiles(new double[]{50.0d, 90.0d, 99.0d});
+        map.put("p50", values[0]);
+        map.put("p90", values[1]);
+        map.put("p99", values[2]);
+        map.put("max", histogram.getMaxValue());
+        return map;
+    }
+
+    /**
+     * Clears the histograms and counters and restarts the time of the average active connections. The gauges
+     * of the connections checked out and being acquired are kept, as these connections are still to be closed.
+     */
+    void reset() {
+        acquireHistogram.reset();
+        holdHistogram.reset();
+        idleHistogram.reset();
+        transactionHistogram.reset();
+        commitHistogram.reset();
+        rollbackHistogram.reset();
+        setAutoCommitHistogram.reset();
+        statementsHistogram.reset();
+        acquireFailCount.reset();
+        commitFailCount.reset();
+        rollbackFailCount.reset();
+        totalHoldTimeNanos.reset();
+        startNanos = System.nanoTime();
+        maxActive.set(active.get());
+    }
+}
@@ -0,0 +1,77 @@
+package org.jdbcmon;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@link MonitoringMXBean} of a data source. A JMX client reads the attributes one by one, so they are read
+ * from a shared snapshot taken at most once a second.
+ */
+class DataSourceMonitoring implements MonitoringMXBean {
+
+    private static final long MAX_SNAPSHOT_AGE_NANOS = TimeUnit.SECONDS.toNanos(1L);
+
+    private final SqlStat sqlStat;
+    private final int maxStatements;
+
+    DataSourceMonitoring(SqlStat sqlStat, int maxStatements) {
+        Utils.checkArgument(maxStatements >= 0, "Negative max statements: %s", maxStatements);
+        this.sqlStat = sqlStat;
+        this.maxStatements = maxStatements;
+    }
+
+    private MonitoringSnapshot snapshot() {
+        return sqlStat.snapshot(MAX_SNAPSHOT_AGE_NANOS);
+    }
+
+    @Override
+    public long getUptimeMillis() {
+        return snapshot().getUptimeMillis();
+    }
+
+    @Override
+    public long getTotalPrepareCount() {
+        return snapshot().getTotalPrepareCount();
+    }
+
+    @Override
+    public long getTotalExecuteCount() {
+        return snapshot().getTotalExecuteCount();
+    }
+
+    @Override
+    public long getTotalExecuteTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(snapshot().getTotalExecuteTimeNanos());
+    }
+
+    @Override
+    public long getTotalFetchTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(snapshot().getTotalFetchTimeNanos());
+    }
+
+    @Override
+    public long getEvictedStatementCount() {
+        return snapshot().getEvictedStatementCount();
+    }
+
+    @Override
+    public int getStatementCount() {
+        return snapshot().getStatements().size();
+    }
+
+    @Override
+    public List<StatementSnapshot> getStatements() {
+        List<StatementSnapshot> statements = snapshot().getStatements();
+        if (statements.size() <= maxStatements + 1) {
+            return statements;
+        }
+        // the [other] statement is the last one if present
+        List<StatementSnapshot> res = new ArrayList<>(statements.subList(0, maxStatements));
+        StatementSnapshot last = statements.get(statements.size() - 1);
+        if (last.isOther()) {
+            res.add(last);
+        }
+        return res;
+    }
+}
@@ -0,0 +1,241 @@
+package org.jdbcmon;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Converts the cumulative statistics of a data source to deltas for a collector: {@link #next()} returns only
+ * the statements changed since its previous call, with the changes of their counters and the percentiles of
+ * the executions of the interval.
+ * <p>
+ * The counters are monotonic and read without locks, so no writer is blocked, and an execution is included in
+ * exactly one delta, unlike with {@link MonitoringDataSource#reset()}. The totals of a statement evicted from
+ * the table are moved to the {@code [other]} statement, less the part already returned by the cursor, and so are
+ * the executions added to it by the writers which resolved it before the eviction.
+ * <p>
+ * A cursor keeps the last values and copies of the execute and fetch time histograms of the statements: a
+ * histogram takes about 3.7 KB at the default 1 significant digit, 26 KB at 2 and 188 KB at 3, so a cursor takes
+ * about 7.5 KB, 53 KB or 377 KB per statement, up to 2 MB, 14 MB or 97 MB for a full table. Each {@link #next()}
+ * copies both histograms of every changed statement, and allocates the histograms of their intervals as well.
+ * Cursors are independent, so several collectors may each have their own. Thread safe.
+ */
+public final class DeltaCursor {
+
+    static final int EXECUTE_COUNT = 0;
+    static final int FAIL_EXECUTE_COUNT = 1;
+    static final int EXECUTE_TIME = 2;
+    static final int FETCH_TIME = 3;
+    static final int RESULT_SET_SIZE = 4;
+    static final int EMPTY_RESULT_SETS = 5;
+    static final int PREPARE_COUNT = 6;
+    static final int PREPARE_TIME = 7;
+    static final int LEAKED_STATEMENTS = 8;
+    private static final int FIELDS = 9;
+
+    private final SqlStat sqlStat;
+
+    /**
+     * The values of the statements returned so far, by the statement handle
+     */
+    private Map<SqlStatementStat, Previous> previous = new IdentityHashMap<>();
+    private long previousNanos;
+    /**
+     * The {@code [other]} statement of the previous delta, replaced on reset
+     */
+    //@Nullable
+    private SqlStatementStat otherStat;
+    /**
+     * The values of the {@code [other]} totals returned so far: they are read from a new copy each time
+     */
+    //@Nullable
+    private Previous previousOther;
+    /**
+     * The values of the evicted statements already returned, merged to the {@code [other]} statement since
+     */
+    private final long[] otherCredit = new long[FIELDS];
+    //@Nullable
+    private Histogram otherExecuteCredit;
+    //@Nullable
+    private Histogram otherFetchCredit;
+
+    DeltaCursor(SqlStat sqlStat) {
+        this.sqlStat = sqlStat;
+        this.previousNanos = sqlStat.startNanos;
+    }
+
+    /**
+     * @return the changes since the previous call, or since the start of the monitoring for the first one
+     */
+    public synchronized MonitoringDelta next() {
+        long nowNanos = System.nanoTime();
+        List<SqlStatementStat> stats = new ArrayList<>();
+        sqlStat.forEachStatement(stats::add);
+        SqlStatementStat other = stats.get(stats.size() - 1);
+        SqlStatementStat otherHandle = sqlStat.getOtherStat();
+
+        Map<SqlStatementStat, Previous> current = new IdentityHashMap<>(stats.size() * 2);
+        for (SqlStatementStat stat : stats) {
+            if (stat != other) {
+                current.put(stat, previous.remove(stat));
+            }
+        }
+        // the statements left were evicted, or dropped by a reset which also replaced the [other] statement
+        if (otherHandle == otherStat) {
+            for (Map.Entry<SqlStatementStat, Previous> entry : previous.entrySet()) {
+                if (entry.getKey().evicted) {
+                    credit(other, entry.getValue());
+                }
+            }
+        } else {
+            otherStat = otherHandle;
+            previousOther = null;
+            Arrays.fill(otherCredit, 0L);
+            otherExecuteCredit = null;
+            otherFetchCredit = null;
+        }
+        previous = current;
+
+        List<StatementDelta> statements = new ArrayList<>();
+        StatementDelta otherDelta = null;
+        for (SqlStatementStat stat : stats) {
+            StatementDelta delta = delta(stat, stat == other);
+            if (delta == null) {
+                continue;
+            }
+            if (stat == other) {
+                otherDelta = delta;
+            } else {
+                statements.add(delta);
+            }
+        }
+        statements.sort(Comparator.comparingLong(StatementDelta::getExecuteCount).reversed());
+        if (otherDelta != null) {
+            statements.add(otherDelta);
+        }
+        MonitoringDelta res = new MonitoringDelta(previousNanos, nowNanos, statements);
+        previousNanos = nowNanos;
+        return res;
+    }
+
+    /**
+     * @return the changes of the statement, null if none
+     */
+    //@Nullable
+    private StatementDelta delta(SqlStatementStat stat, boolean isOther) {
+        Previous prev = isOther ? previousOther : previous.get(stat);
+        long[] values = read(stat);
+        long[] delta = new long[FIELDS];
+        boolean changed = false;
+        for (int field = 0; field < FIELDS; field++) {
+            delta[field] = values[field] - (prev == null ? 0L : prev.values[field]);
+            if (isOther) {
+                long credit = Math.min(otherCredit[field], delta[field]);
+                delta[field] -= credit;
+                otherCredit[field] -= credit;
+            }
+            changed |= delta[field] != 0L;
+        }
+        if (!changed) {
+            if (prev == null) {
+                store(stat, isOther, new Previous(values, null, null));
+            } else if (isOther) {
+                // the change was all credited: the values move on, the histograms keep their remaining credit
+                previousOther = new Previous(values, prev.executeHistogram, prev.fetchHistogram);
+            }
+            return null;
+        }
+
+        // the totals of [other] are a copy already
+        Histogram executeHistogram = isOther ? stat.executeHistogram : stat.executeHistogram.copy();
+        Histogram fetchHistogram = isOther ? stat.fetchHistogram : stat.fetchHistogram.copy();
+        Histogram executeInterval = prev == null ? executeHistogram : since(executeHistogram, prev.executeHistogram);
+        Histogram fetchInterval = prev == null ? fetchHistogram : since(fetchHistogram, prev.fetchHistogram);
+        if (isOther) {
+            executeInterval = since(executeInterval, otherExecuteCredit);
+            fetchInterval = since(fetchInterval, otherFetchCredit);
+            // the histograms are credited once: a rest left by a concurrent eviction is approximated away
+            otherExecuteCredit = null;
+            otherFetchCredit = null;
+        }
+        store(stat, isOther, new Previous(values, executeHistogram, fetchHistogram));
+        return new StatementDelta(stat.sql, isOther, delta, StatementSnapshot.percentiles(executeInterval),
+                StatementSnapshot.percentiles(fetchInterval));
+    }
+
+    private void store(SqlStatementStat stat, boolean isOther, Previous prev) {
+        if (isOther) {
+            previousOther = prev;
+        } else {
+            previous.put(stat, prev);
+        }
+    }
+
+    private static Histogram since(Histogram histogram, /*@Nullable*/ Histogram previous) {
+        return previous == null ? histogram : histogram.since(previous);
+    }
+
+    /**
+     * Registers the values of an evicted statement already returned, to be subtracted from the totals merged
+     * to the {@code [other]} statement
+     */
+    private void credit(SqlStatementStat other, /*@Nullable*/ Previous prev) {
+        if (prev == null) {
+            return;
+        }
+        for (int field = 0; field < FIELDS; field++) {
+            otherCredit[field] += prev.values[field];
+        }
+        if (prev.executeHistogram != null) {
+            if (otherExecuteCredit == null) {
+                otherExecuteCredit = newHistogram(other.executeHistogram);
+            }
+            otherExecuteCredit.add(prev.executeHistogram);
+        }
+        if (prev.fetchHistogram != null) {
+            if (otherFetchCredit == null) {
+                otherFetchCredit = newHistogram(other.fetchHistogram);
+            }
+            otherFetchCredit.add(prev.fetchHistogram);
+        }
+    }
+
+    private static Histogram newHistogram(Histogram layout) {
+        return new Histogram(layout.highestTrackableValue(), layout.significantDigits());
+    }
+
+    private static long[] read(SqlStatementStat stat) {
+        long[] values = new long[FIELDS];
+        values[EXECUTE_COUNT] = stat.executeCount.sum();
+        values[FAIL_EXECUTE_COUNT] = stat.failExecuteCount.sum();
+        values[EXECUTE_TIME] = stat.totalExecuteTimeNanos.sum();
+        values[FETCH_TIME] = stat.totalFetchTimeNanos.sum();
+        values[RESULT_SET_SIZE] = stat.totalResultSetSize.sum();
+        values[EMPTY_RESULT_SETS] = stat.totalEmptyResultSets.sum();
+        values[PREPARE_COUNT] = stat.prepareCount.sum();
+        values[PREPARE_TIME] = stat.totalPrepareTimeNanos.sum();
+        values[LEAKED_STATEMENTS] = stat.leakedStatementCount.sum();
+        return values;
+    }
+
+    private static final class Previous {
+
+        final long[] values;
+        /**
+         * Copies of the histograms, null if the statement had not changed when first seen
+         */
+        //@Nullable
+        final Histogram executeHistogram;
+        //@Nullable
+        final Histogram fetchHistogram;
+
+        Previous(long[] values, /*@Nullable*/ Histogram executeHistogram, /*@Nullable*/ Histogram fetchHistogram) {
+            this.values = values;
+            this.executeHistogram = executeHistogram;
+            this.fetchHistogram = fetchHistogram;
+        }
+    }
+}
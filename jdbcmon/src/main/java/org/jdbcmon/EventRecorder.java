@@ -0,0 +1,395 @@
+package org.jdbcmon;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Flight recorder of the JDBC events: writes compact binary records to a ring of memory-mapped segment files,
+ * overwriting the oldest segment when the current one is full. The events are read back by
+ * {@link RecordingReader}.
+ * <p>
+ * Recording reserves the space of a record with an atomic add and writes it to the mapped memory with absolute
+ * puts, so it does not allocate, lock or make a system call; the page cache is written to disk by the OS.
+ * The next segment is mapped ahead in the background, the thread filling a segment only switches to it: the events
+ * which do not fit while it is still being mapped are dropped. The sql of the statements is interned: a statement
+ * is defined once per segment, the events refer to it by id.
+ * <p>
+ * Segment layout, big endian: a header of {@link #HEADER_SIZE} bytes (magic, version, generation, start time),
+ * then records aligned to 8 bytes. A record starts with an int of its type, flags and length, followed by
+ * the generation of the segment: the records of an older generation, left by the previous use of the file, end
+ * the segment. The header and the generation are written last, together with one long put after a store fence,
+ * so a reader of a live segment sees either the end of the records or a complete record.
+ */
+class EventRecorder implements AutoCloseable {
+
+    static final long MAGIC = 0x4A44_4243_4D4F_4E52L; // JDBCMONR
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final String FILE_PREFIX = "events-";
+    static final String FILE_SUFFIX = ".jdbcmon";
+
+    static final int TYPE_DEFINE = 1;
+    static final int TYPE_PREPARE = 2;
+    static final int TYPE_EXECUTE = 3;
+    static final int TYPE_FETCH = 4;
+    static final int TYPE_UPDATE = 5;
+    static final int TYPE_RESULT_SET_SIZE = 6;
+    static final int FLAG_FAILED = 1;
+
+    /**
+     * Event record: header, generation, sql id, weight, timestamp (epoch micros), value (duration in nanos or
+     * rows), error code, SQLState (see {@link #encodeSqlState(String)})
+     */
+    static final int EVENT_LENGTH = 40;
+    /**
+     * Define record: header, generation, sql id, sql length, sql (UTF-8), padded to 8 bytes
+     */
+    static final int DEFINE_HEADER_LENGTH = 16;
+    private static final int MAX_SQL_BYTES = 16 * 1024;
+    private static final int SQL_STATE_LENGTH = 5;
+
+    /**
+     * Ids of the statements, unique in the JVM so that the statements of different recorders never mix
+     */
+    private static final AtomicInteger NEXT_SQL_ID = new AtomicInteger();
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int segmentCount;
+    /**
+     * The longest sql of a define record, so that a define and an event always fit in an empty segment
+     */
+    private final int maxSqlBytes;
+    private final long baseEpochMicros;
+    private final long baseNanos;
+    /**
+     * Maps the next segment
+     */
+    private final Executor mapper;
+
+    private volatile Segment current;
+    /**
+     * The segment to continue with, mapped but not started, null while it is being mapped
+     */
+    //@Nullable
+    private volatile Segment next;
+    private volatile boolean closed;
+
+    /**
+     * @param segmentSize  the size of a segment file in bytes
+     * @param segmentCount the number of the segment files, the oldest one is overwritten when all are full
+     */
+    EventRecorder(Path directory, int segmentSize, int segmentCount) throws IOException {
+        this(directory, segmentSize, segmentCount, Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "jdbcmon-recorder");
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+
+    /**
+     * @param mapper maps the next segment in the background, shut down on close if it is an executor service
+     */
+    EventRecorder(Path directory, int segmentSize, int segmentCount, Executor mapper) throws IOException {
+        Utils.checkArgument(segmentSize >= 4096 && segmentSize <= 1 << 30, "Illegal segment size: %s", segmentSize);
+        Utils.checkArgument(segmentCount >= 2, "Illegal segment count: %s", segmentCount);
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.segmentCount = segmentCount;
+        this.maxSqlBytes = Math.min(MAX_SQL_BYTES,
+                segmentSize - HEADER_SIZE - DEFINE_HEADER_LENGTH - EVENT_LENGTH) & ~7;
+        this.baseEpochMicros = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+        this.baseNanos = System.nanoTime();
+        this.mapper = mapper;
+        Files.createDirectories(directory);
+        // continue after the newest segment of the previous recordings
+        int generation = 0;
+        for (int i = 0; i < segmentCount; i++) {
+            generation = Math.max(generation, readGeneration(segmentPath(directory, i)));
+        }
+        Segment segment = map(generation + 1);
+        segment.start(nowMicros());
+        this.current = segment;
+        mapper.execute(() -> mapNext(segment.generation + 1));
+    }
+
+    static Path segmentPath(Path directory, int index) {
+        return directory.resolve(FILE_PREFIX + index + FILE_SUFFIX);
+    }
+
+    /**
+     * @return the generation of the segment file, 0 if it is missing or not a segment
+     */
+    private static int readGeneration(Path path) throws IOException {
+        if (!Files.isRegularFile(path)) {
+            return 0;
+        }
+        try (FileChannel channel = FileChannel.open(path)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // read the header fully
+            }
+            header.flip();
+            if (header.remaining() < HEADER_SIZE || header.getLong() != MAGIC || header.getInt() != VERSION) {
+                return 0;
+            }
+            return header.getInt();
+        }
+    }
+
+    /**
+     * Maps the segment file, its previous records are kept until the segment is started
+     */
+    private Segment map(int generation) throws IOException {
+        Path path = segmentPath(directory, Math.floorMod(generation, segmentCount));
+        MappedByteBuffer buffer;
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.setLength(segmentSize);
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0L, segmentSize);
+        }
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        return new Segment(buffer, generation);
+    }
+
+    /**
+     * Maps the segment to continue with, on the mapper thread
+     */
+    private void mapNext(int generation) {
+        try {
+            next = map(generation);
+        } catch (IOException | RuntimeException e) {
+            // the monitoring must not fail the application: stop recording
+            closed = true;
+        }
+    }
+
+    /**
+     * Replaces the segment by the next one, unless another thread did it already, and has the one after it mapped
+     *
+     * @return the current segment, null to drop the event: the recorder is closed or failed, or the next segment
+     * is still being mapped
+     */
+    //@Nullable
+    private synchronized Segment rotate(Segment full) {
+        if (closed) {
+            return null;
+        }
+        Segment segment = current;
+        if (segment == full) {
+            segment = next;
+            if (segment == null) {
+                return null;
+            }
+            next = null;
+            segment.start(nowMicros());
+            current = segment;
+            int generation = segment.generation + 1;
+            mapper.execute(() -> mapNext(generation));
+        }
+        return segment;
+    }
+
+    private long nowMicros() {
+        return baseEpochMicros + (System.nanoTime() - baseNanos) / 1000L;
+    }
+
+    void recordPrepare(SqlStatementStat stat, long timeNanos, /*@Nullable*/ Throwable exception) {
+        record(TYPE_PREPARE, stat, timeNanos, 1L, exception);
+    }
+
+    void recordExecute(SqlStatementStat stat, long timeNanos, /*@Nullable*/ Throwable exception) {
+        record(TYPE_EXECUTE, stat, timeNanos, 1L, exception);
+    }
+
+    void recordFetch(SqlStatementStat stat, long timeNanos, long weight) {
+        record(TYPE_FETCH, stat, timeNanos, weight, null);
+    }
+
+    void recordUpdate(SqlStatementStat stat, long rows) {
+        record(TYPE_UPDATE, stat, rows, 1L, null);
+    }
+
+    void recordResultSetSize(SqlStatementStat stat, long rows, long weight) {
+        record(TYPE_RESULT_SET_SIZE, stat, rows, weight, null);
+    }
+
+    private void record(int type, SqlStatementStat stat, long value, long weight, /*@Nullable*/ Throwable exception) {
+        Segment segment = current;
+        boolean defineFailed = false;
+        while (segment != null && !closed) {
+            if (stat.recordSegment != segment && !define(segment, stat)) {
+                if (defineFailed) {
+                    // even a new segment, filled meanwhile by the other threads, has no room: drop the event
+                    return;
+                }
+                defineFailed = true;
+                segment = rotate(segment);
+                continue;
+            }
+            int offset = segment.reserve(EVENT_LENGTH);
+            if (offset < 0) {
+                segment = rotate(segment);
+                continue;
+            }
+            int flags = 0;
+            int errorCode = 0;
+            int sqlState = 0;
+            if (exception != null) {
+                flags = FLAG_FAILED;
+                if (exception instanceof SQLException) {
+                    errorCode = ((SQLException) exception).getErrorCode();
+                    sqlState = encodeSqlState(((SQLException) exception).getSQLState());
+                }
+            }
+            ByteBuffer buffer = segment.buffer;
+            buffer.putInt(offset + 8, stat.recordId);
+            buffer.putInt(offset + 12, (int) Math.min(weight, Integer.MAX_VALUE));
+            buffer.putLong(offset + 16, nowMicros());
+            buffer.putLong(offset + 24, value);
+            buffer.putInt(offset + 32, errorCode);
+            buffer.putInt(offset + 36, sqlState);
+            publish(segment, offset, header(type, flags, EVENT_LENGTH));
+            return;
+        }
+    }
+
+    /**
+     * Writes the sql of the statement to the segment. Concurrent threads may define a statement twice.
+     *
+     * @return false if the segment is full
+     */
+    private boolean define(Segment segment, SqlStatementStat stat) {
+        if (stat.recordId == 0) {
+            stat.recordId = NEXT_SQL_ID.incrementAndGet();
+        }
+        byte[] sql = stat.sql.getBytes(StandardCharsets.UTF_8);
+        int sqlLength = Math.min(sql.length, maxSqlBytes);
+        int length = (DEFINE_HEADER_LENGTH + sqlLength + 7) & ~7;
+        int offset = segment.reserve(length);
+        if (offset < 0) {
+            return false;
+        }
+        ByteBuffer buffer = segment.buffer;
+        buffer.putInt(offset + 8, stat.recordId);
+        buffer.putInt(offset + 12, sqlLength);
+        for (int i = 0; i < sqlLength; i++) {
+            buffer.put(offset + DEFINE_HEADER_LENGTH + i, sql[i]);
+        }
+        publish(segment, offset, header(TYPE_DEFINE, 0, length));
+        stat.recordSegment = segment;
+        return true;
+    }
+
+    /**
+     * Writes the header and the generation of a record whose body is written: the long put of an aligned offset
+     * is not torn, and the fence keeps it after the body
+     */
+    private static void publish(Segment segment, int offset, int header) {
+        Utils.storeFence();
+        segment.buffer.putLong(offset, (long) header << 32 | (segment.generation & 0xFFFF_FFFFL));
+    }
+
+    /**
+     * Packs a standard SQLState, 5 digits or upper case letters, into an int: 6 bits per character
+     *
+     * @return 0 for null or a non-standard SQLState
+     */
+    static int encodeSqlState(/*@Nullable*/ String sqlState) {
+        if (sqlState == null || sqlState.length() != SQL_STATE_LENGTH) {
+            return 0;
+        }
+        int res = 0;
+        for (int i = 0; i < SQL_STATE_LENGTH; i++) {
+            char c = sqlState.charAt(i);
+            int code = c >= '0' && c <= '9' ? c - '0' + 1 : c >= 'A' && c <= 'Z' ? c - 'A' + 11 : 0;
+            if (code == 0) {
+                return 0;
+            }
+            res = res << 6 | code;
+        }
+        return res;
+    }
+
+    /**
+     * @return the SQLState packed by {@link #encodeSqlState(String)}, null for 0
+     */
+    //@Nullable
+    static String decodeSqlState(int encoded) {
+        if (encoded == 0) {
+            return null;
+        }
+        char[] chars = new char[SQL_STATE_LENGTH];
+        for (int i = SQL_STATE_LENGTH - 1; i >= 0; i--) {
+            int code = encoded & 0x3F;
+            chars[i] = (char) (code <= 10 ? '0' + code - 1 : 'A' + code - 11);
+            encoded >>>= 6;
+        }
+        return new String(chars);
+    }
+
+    static int header(int type, int flags, int length) {
+        return type << 24 | flags << 16 | length;
+    }
+
+    /**
+     * Stops recording and writes the current segment to disk
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (mapper instanceof ExecutorService) {
+            ((ExecutorService) mapper).shutdown();
+        }
+        current.buffer.force();
+    }
+
+    private final class Segment {
+
+        final MappedByteBuffer buffer;
+        final int generation;
+        /**
+         * Offset of the next record
+         */
+        private final AtomicInteger position = new AtomicInteger(HEADER_SIZE);
+
+        Segment(MappedByteBuffer buffer, int generation) {
+            this.buffer = buffer;
+            this.generation = generation;
+        }
+
+        /**
+         * Writes the header: the records of the previous use of the file end here
+         */
+        void start(long startMicros) {
+            buffer.putLong(0, MAGIC);
+            buffer.putInt(8, VERSION);
+            buffer.putInt(12, generation);
+            buffer.putLong(16, startMicros);
+        }
+
+        /**
+         * @return the offset of the reserved space, -1 if the segment is full
+         */
+        int reserve(int length) {
+            int offset = position.getAndAdd(length);
+            // the records are at most 64 KB: the position does not overflow before the segment is replaced
+            return offset >= 0 && offset <= segmentSize - length ? offset : -1;
+        }
+    }
+}
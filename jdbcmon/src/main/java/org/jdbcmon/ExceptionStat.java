@@ -0,0 +1,232 @@
+package org.jdbcmon;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Statistics of the exceptions of a statement with the same signature: the exception class and, for
+ * {@link SQLException}s, the SQLState and the vendor error code, so that the exceptions which differ only by
+ * the values in the message are counted together.
+ * <p>
+ * Thread safe and lock-free. The stack trace is captured for the first occurrence and then at most once per
+ * {@link #CAPTURE_INTERVAL_NANOS}, as the frames only: it is rendered to text at report time. So a storm
+ * of failures costs an increment per failure.
+ */
+class ExceptionStat {
+
+    private static final long CAPTURE_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1L);
+    private static final int MAX_FRAMES = 64;
+
+    //@Nullable
+    final String sqlState;
+    final int errorCode;
+    private final LongAdder count = new LongAdder();
+    /**
+     * Time of the last capture, to rate limit the captures
+     */
+    private final AtomicLong captureNanos = new AtomicLong();
+
+    /**
+     * The last captured occurrence
+     */
+    private volatile Captured captured;
+
+    private static final class Captured {
+        final String message;
+        final StackTraceElement[] frames;
+        final int totalFrames;
+        //@Nullable
+        final String cause;
+
+        Captured(String message, StackTraceElement[] frames, int totalFrames, /*@Nullable*/ String cause) {
+            this.message = message;
+            this.frames = frames;
+            this.totalFrames = totalFrames;
+            this.cause = cause;
+        }
+    }
+
+    /**
+     * @param exception the first occurrence, captured with the stack trace
+     */
+    ExceptionStat(Throwable exception) {
+        if (exception instanceof SQLException) {
+            SQLException sqlException = (SQLException) exception;
+            this.sqlState = sqlException.getSQLState();
+            this.errorCode = sqlException.getErrorCode();
+        } else {
+            this.sqlState = null;
+            this.errorCode = 0;
+        }
+        this.captureNanos.set(System.nanoTime());
+        this.captured = capture(exception);
+    }
+
+    /**
+     * Stat of the failures known by their signature values only, the message is the signature
+     */
+    ExceptionStat(/*@Nullable*/ String sqlState, int errorCode) {
+        this(sqlState, errorCode, new Captured(signature(sqlState, errorCode), new StackTraceElement[0], 0, null));
+    }
+
+    private ExceptionStat(/*@Nullable*/ String sqlState, int errorCode, Captured captured) {
+        this.sqlState = sqlState;
+        this.errorCode = errorCode;
+        this.captured = captured;
+    }
+
+    /**
+     * @return the key of the exception in the per-statement map
+     */
+    static String signature(Throwable exception) {
+        String className = exception.getClass().getName();
+        if (exception instanceof SQLException) {
+            SQLException sqlException = (SQLException) exception;
+            return className + signature(sqlException.getSQLState(), sqlException.getErrorCode());
+        }
+        return className;
+    }
+
+    /**
+     * @return the key of a failure known by its SQLState and vendor error code only
+     */
+    static String signature(/*@Nullable*/ String sqlState, int errorCode) {
+        return "[" + sqlState + '/' + errorCode + ']';
+    }
+
+    /**
+     * Counts the occurrence, captures it if the last capture is older than the interval
+     *
+     * @param captureStackTrace false to only count the exception
+     */
+    void register(Throwable exception, boolean captureStackTrace) {
+        count.increment();
+        if (!captureStackTrace) {
+            return;
+        }
+        long nowNanos = System.nanoTime();
+        long lastNanos = captureNanos.get();
+        if (nowNanos - lastNanos >= CAPTURE_INTERVAL_NANOS && captureNanos.compareAndSet(lastNanos, nowNanos)) {
+            captured = capture(exception);
+        }
+    }
+
+    private static Captured capture(Throwable exception) {
+        StackTraceElement[] frames = exception.getStackTrace();
+        int totalFrames = frames.length;
+        if (frames.length > MAX_FRAMES) {
+            frames = Arrays.copyOf(frames, MAX_FRAMES);
+        }
+        Throwable cause = exception.getCause();
+        return new Captured(exception.toString(), frames, totalFrames, cause == null ? null : cause.toString());
+    }
+
+    /**
+     * @return a stat with the count and the last captured occurrence of this one, not shared with it
+     */
+    ExceptionStat copy() {
+        ExceptionStat copy = new ExceptionStat(sqlState, errorCode, captured);
+        copy.add(getCount());
+        return copy;
+    }
+
+    long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Adds the occurrences of a restored exception with the same signature
+     */
+    void add(long count) {
+        this.count.add(count);
+    }
+
+    /**
+     * Writes the signature values, the count and the last captured occurrence, see {@link StatisticsFile}
+     */
+    void write(DataOutput out) throws IOException {
+        StatisticsFile.writeString(out, sqlState);
+        out.writeInt(errorCode);
+        out.writeLong(getCount());
+        Captured captured = this.captured;
+        StatisticsFile.writeString(out, captured.message);
+        StatisticsFile.writeString(out, captured.cause);
+        out.writeInt(captured.totalFrames);
+        out.writeInt(captured.frames.length);
+        for (StackTraceElement frame : captured.frames) {
+            StatisticsFile.writeString(out, frame.getClassName());
+            StatisticsFile.writeString(out, frame.getMethodName());
+            StatisticsFile.writeString(out, frame.getFileName());
+            out.writeInt(frame.getLineNumber());
+        }
+    }
+
+    /**
+     * Reads an exception stat written by {@link #write(DataOutput)}
+     */
+    static ExceptionStat read(DataInput in) throws IOException {
+        String sqlState = StatisticsFile.readString(in);
+        int errorCode = in.readInt();
+        long count = in.readLong();
+        String message = StatisticsFile.readNonNullString(in);
+        String cause = StatisticsFile.readString(in);
+        int totalFrames = in.readInt();
+        int frameCount = in.readInt();
+        if (frameCount < 0 || frameCount > MAX_FRAMES) {
+            throw new IOException("Corrupt exception: " + frameCount + " frames");
+        }
+        StackTraceElement[] frames = new StackTraceElement[frameCount];
+        for (int i = 0; i < frameCount; i++) {
+            frames[i] = new StackTraceElement(StatisticsFile.readNonNullString(in),
+                    StatisticsFile.readNonNullString(in), StatisticsFile.readString(in), in.readInt());
+        }
+        ExceptionStat exceptionStat = new ExceptionStat(sqlState, errorCode,
+                new Captured(message, frames, totalFrames, cause));
+        exceptionStat.add(count);
+        return exceptionStat;
+    }
+
+    Map<String, Object> report() {
+        Captured captured = this.captured;
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("message", captured.message);
+        if (sqlState != null) {
+            map.put("sqlState", sqlState);
+            map.put("errorCode", errorCode);
+        }
+        map.put("count", getCount());
+        map.put("stackTrace", renderStackTrace(captured));
+        return map;
+    }
+
+    private static String renderStackTrace(Captured captured) {
+        StringBuilder sb = new StringBuilder(captured.message);
+        for (StackTraceElement frame : captured.frames) {
+            sb.append("\n\tat ").append(frame);
+        }
+        if (captured.totalFrames > captured.frames.length) {
+            sb.append("\n\t... ").append(captured.totalFrames - captured.frames.length).append(" more");
+        }
+        if (captured.cause != null) {
+            sb.append("\nCaused by: ").append(captured.cause);
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "ExceptionStat{" +
+                "sqlState=" + sqlState +
+                ", errorCode=" + errorCode +
+                ", count=" + count +
+                '}';
+    }
+}
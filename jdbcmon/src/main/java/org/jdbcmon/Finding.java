@@ -0,0 +1,50 @@
+package org.jdbcmon;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Totals of a kind of avoidable executions of a statement detected in the units of work, see {@link UnitOfWork}.
+ * Thread safe.
+ */
+class Finding {
+
+    final String type;
+    final String sql;
+    /**
+     * Number of the units of work with the finding
+     */
+    final LongAdder occurrences = new LongAdder();
+    final LongAdder executeCount = new LongAdder();
+    final LongAccumulator maxExecuteCount = new LongAccumulator(Math::max, 0L);
+    /**
+     * Time of the executions which could be avoided: all but one per unit of work
+     */
+    final LongAdder wastedTimeNanos = new LongAdder();
+
+    Finding(String type, String sql) {
+        this.type = type;
+        this.sql = sql;
+    }
+
+    void register(int executeCount, long timeNanos) {
+        occurrences.increment();
+        this.executeCount.add(executeCount);
+        maxExecuteCount.accumulate(executeCount);
+        wastedTimeNanos.add(timeNanos - timeNanos / executeCount);
+    }
+
+    Map<String, Object> report() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("type", type);
+        map.put("sql", sql);
+        map.put("occurrences", occurrences.sum());
+        map.put("executeCount", executeCount.sum());
+        map.put("maxExecuteCount", maxExecuteCount.get());
+        map.put("wastedTime", TimeUnit.NANOSECONDS.toMillis(wastedTimeNanos.sum()));
+        return map;
+    }
+}
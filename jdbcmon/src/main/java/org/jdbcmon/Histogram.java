@@ -0,0 +1,282 @@
+package org.jdbcmon;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static org.jdbcmon.Utils.checkArgument;
+
+/**
+ * Log-linear histogram of non-negative long values with a fixed counts array, in the HdrHistogram layout:
+ * values are grouped into power-of-two buckets, each split into linear sub-buckets, so the relative error of
+ * any recorded value is bounded by the configured number of significant decimal digits.
+ * <p>
+ * Thread safe and lock-free, recording does not allocate. Values above the highest trackable value are recorded
+ * as the highest trackable value. Histograms are mergeable, also the ones with a different precision.
+ */
+class Histogram {
+
+    private final int significantDigits;
+    private final long highestTrackableValue;
+
+    private final int subBucketHalfCountMagnitude;
+    private final int subBucketHalfCount;
+    private final long subBucketMask;
+    private final int leadingZeroCountBase;
+
+    private final AtomicLongArray counts;
+    private final AtomicLong maxValue = new AtomicLong();
+
+    /**
+     * @param highestTrackableValue the highest value to be tracked, at least 2
+     * @param significantDigits     number of significant decimal digits of the values to keep, 1..3
+     */
+    Histogram(long highestTrackableValue, int significantDigits) {
+        checkArgument(highestTrackableValue >= 2, "Illegal highest trackable value %s", highestTrackableValue);
+        checkArgument(significantDigits >= 1 && significantDigits <= 3, "Illegal significant digits %s", significantDigits);
+        this.significantDigits = significantDigits;
+        this.highestTrackableValue = highestTrackableValue;
+
+        long largestValueWithSingleUnitResolution = 2 * (long) Math.pow(10, significantDigits);
+        int subBucketCountMagnitude = (int) Math.ceil(Math.log(largestValueWithSingleUnitResolution) / Math.log(2));
+        this.subBucketHalfCountMagnitude = subBucketCountMagnitude - 1;
+        int subBucketCount = 1 << subBucketCountMagnitude;
+        this.subBucketHalfCount = subBucketCount / 2;
+        this.subBucketMask = subBucketCount - 1;
+        this.leadingZeroCountBase = 64 - subBucketHalfCountMagnitude - 1;
+
+        long smallestUntrackableValue = subBucketCount;
+        int bucketCount = 1;
+        while (smallestUntrackableValue <= highestTrackableValue) {
+            if (smallestUntrackableValue > Long.MAX_VALUE / 2) {
+                bucketCount++;
+                break;
+            }
+            smallestUntrackableValue <<= 1;
+            bucketCount++;
+        }
+        this.counts = new AtomicLongArray((bucketCount + 1) * subBucketHalfCount);
+    }
+
+    int significantDigits() {
+        return significantDigits;
+    }
+
+    long highestTrackableValue() {
+        return highestTrackableValue;
+    }
+
+    void record(long value) {
+        record(value, 1L);
+    }
+
+    void record(long value, long count) {
+        if (value < 0L) {
+            throw new IllegalArgumentException("Illegal value " + value);
+        }
+        long trackedValue = Math.min(value, highestTrackableValue);
+        counts.addAndGet(countsIndex(trackedValue), count);
+        long max = maxValue.get();
+        while (trackedValue > max && !maxValue.compareAndSet(max, trackedValue)) {
+            max = maxValue.get();
+        }
+    }
+
+    /**
+     * Adds all the values of the other histogram to this one. Values are re-recorded by the median of their
+     * bucket, so the histograms may have different precision and range.
+     */
+    void add(Histogram other) {
+        for (int i = 0; i < other.counts.length(); i++) {
+            long count = other.counts.get(i);
+            if (count != 0L) {
+                record(other.medianEquivalentValue(i), count);
+            }
+        }
+        long otherMax = Math.min(other.maxValue.get(), highestTrackableValue);
+        long max = maxValue.get();
+        while (otherMax > max && !maxValue.compareAndSet(max, otherMax)) {
+            max = maxValue.get();
+        }
+    }
+
+    /**
+     * Copy of the histogram with the same precision. Concurrent recording may be partially included.
+     */
+    Histogram copy() {
+        Histogram copy = new Histogram(highestTrackableValue, significantDigits);
+        for (int i = 0; i < counts.length(); i++) {
+            copy.counts.set(i, counts.get(i));
+        }
+        copy.maxValue.set(maxValue.get());
+        return copy;
+    }
+
+    /**
+     * Histogram of the values recorded since an earlier copy: the counts of this histogram minus the counts of
+     * the copy, not below zero. The max is bounded by the highest value equivalent to the highest non-empty bucket.
+     *
+     * @param previous an earlier copy of this histogram, or a histogram with the same precision and range
+     */
+    Histogram since(Histogram previous) {
+        checkArgument(previous.counts.length() == counts.length() && previous.significantDigits == significantDigits,
+                "Incompatible histograms %s", previous);
+        Histogram res = new Histogram(highestTrackableValue, significantDigits);
+        int highestIndex = -1;
+        for (int i = 0; i < counts.length(); i++) {
+            long count = counts.get(i) - previous.counts.get(i);
+            if (count > 0L) {
+                res.counts.set(i, count);
+                highestIndex = i;
+            }
+        }
+        if (highestIndex >= 0) {
+            res.maxValue.set(Math.min(highestEquivalentValue(highestIndex), maxValue.get()));
+        }
+        return res;
+    }
+
+    /**
+     * Writes the precision, the range, the max and the non-empty buckets, see {@link StatisticsFile}
+     */
+    void write(DataOutput out) throws IOException {
+        out.writeByte(significantDigits);
+        out.writeLong(highestTrackableValue);
+        out.writeLong(maxValue.get());
+        int size = 0;
+        long[] values = new long[counts.length()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = counts.get(i);
+            if (values[i] != 0L) {
+                size++;
+            }
+        }
+        out.writeInt(size);
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != 0L) {
+                out.writeInt(i);
+                out.writeLong(values[i]);
+            }
+        }
+    }
+
+    /**
+     * Reads a histogram written by {@link #write(DataOutput)}
+     */
+    static Histogram read(DataInput in) throws IOException {
+        int significantDigits = in.readByte();
+        long highestTrackableValue = in.readLong();
+        if (significantDigits < 1 || significantDigits > 3 || highestTrackableValue < 2L) {
+            throw new IOException("Corrupt histogram: " + significantDigits + " digits, " + highestTrackableValue);
+        }
+        Histogram histogram = new Histogram(highestTrackableValue, significantDigits);
+        histogram.maxValue.set(in.readLong());
+        int size = in.readInt();
+        for (int i = 0; i < size; i++) {
+            int index = in.readInt();
+            if (index < 0 || index >= histogram.counts.length()) {
+                throw new IOException("Corrupt histogram: index " + index);
+            }
+            histogram.counts.set(index, in.readLong());
+        }
+        return histogram;
+    }
+
+    void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0L);
+        }
+        maxValue.set(0L);
+    }
+
+    long getTotalCount() {
+        long total = 0L;
+        for (int i = 0; i < counts.length(); i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    long getMaxValue() {
+        return maxValue.get();
+    }
+
+    /**
+     * Value at the percentile, as the highest value equivalent (within the precision) to the recorded one,
+     * but not more than the max recorded value
+     *
+     * @param percentile 0.0..100.0
+     * @return 0 if the histogram is empty
+     */
+    long getValueAtPercentile(double percentile) {
+        return getValuesAtPercentiles(new double[]{percentile})[0];
+    }
+
+    /**
+     * Values at several ascending percentiles, computed in a single pass over the counts
+     */
+    long[] getValuesAtPercentiles(double[] percentiles) {
+        long[] values = new long[percentiles.length];
+        long totalCount = getTotalCount();
+        if (totalCount == 0L) {
+            return values;
+        }
+        long max = maxValue.get();
+        int p = 0;
+        long countToIndex = 0L;
+        for (int i = 0; i < counts.length() && p < percentiles.length; i++) {
+            countToIndex += counts.get(i);
+            while (p < percentiles.length && countToIndex >= countAtPercentile(percentiles[p], totalCount)) {
+                values[p++] = Math.min(highestEquivalentValue(i), max);
+            }
+        }
+        while (p < percentiles.length) {
+            values[p++] = max;
+        }
+        return values;
+    }
+
+    private static long countAtPercentile(double percentile, long totalCount) {
+        double fraction = Math.min(Math.max(percentile, 0.0d), 100.0d) / 100.0d;
+        return Math.max(1L, (long) Math.ceil(fraction * totalCount));
+    }
+
+    int countsLength() {
+        return counts.length();
+    }
+
+    long countAtIndex(int index) {
+        return counts.get(index);
+    }
+
+    private int countsIndex(long value) {
+        int bucketIndex = leadingZeroCountBase - Long.numberOfLeadingZeros(value | subBucketMask);
+        int subBucketIndex = (int) (value >>> bucketIndex);
+        return ((bucketIndex + 1) << subBucketHalfCountMagnitude) + (subBucketIndex - subBucketHalfCount);
+    }
+
+    long lowestEquivalentValue(int index) {
+        int bucketIndex = (index >> subBucketHalfCountMagnitude) - 1;
+        int subBucketIndex = (index & (subBucketHalfCount - 1)) + subBucketHalfCount;
+        if (bucketIndex < 0) {
+            subBucketIndex -= subBucketHalfCount;
+            bucketIndex = 0;
+        }
+        return ((long) subBucketIndex) << bucketIndex;
+    }
+
+    private long bucketWidth(int index) {
+        int bucketIndex = (index >> subBucketHalfCountMagnitude) - 1;
+        return 1L << Math.max(bucketIndex, 0);
+    }
+
+    long highestEquivalentValue(int index) {
+        return lowestEquivalentValue(index) + bucketWidth(index) - 1;
+    }
+
+    long medianEquivalentValue(int index) {
+        return lowestEquivalentValue(index) + (bucketWidth(index) >> 1);
+    }
+}
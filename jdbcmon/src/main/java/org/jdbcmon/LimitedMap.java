@@ -1,9 +1,9 @@
 package org.jdbcmon;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.function.BiConsumer;
 import java.util.function.Supplier;
 
@@ -11,7 +11,8 @@ import java.util.function.Supplier;
  * Limited size map.
  * If size exceeds limits, just creates a new object with supplier and returns it, but does not replace existing old
  * key values to prevent gc troubles with old generation.
- * Non-thread safe, requires external synchronization.
+ * Thread safe, lookups of existing keys are lock-free. The size limit is checked without locking, so under a race
+ * the map can exceed it by the number of concurrently inserting threads.
  *
  * @param <K>
  * @param <V>
@@ -19,11 +20,11 @@ import java.util.function.Supplier;
 class LimitedMap<K, V> {
 
     private final int size;
-    private final Map<K, V> map;
+    private final ConcurrentMap<K, V> map;
 
     LimitedMap(int size) {
         this.size = size;
-        this.map = new HashMap<>();
+        this.map = new ConcurrentHashMap<>();
     }
 
     V computeIfAbsent(K key, Supplier<? extends V> supplier) {
@@ -33,11 +34,30 @@ class LimitedMap<K, V> {
         }
         value = supplier.get();
         if (value != null && map.size() < size) {
-            map.put(key, value);
+            V existing = map.putIfAbsent(key, value);
+            if (existing != null) {
+                return existing;
+            }
         }
         return value;
     }
 
+    /**
+     * Unlike {@link #computeIfAbsent(Object, Supplier)} does not create a value when the map is full
+     *
+     * @return the value of the key, null if there is no room for a new key
+     */
+    //@Nullable
+    V computeIfRoom(K key, Supplier<? extends V> supplier) {
+        V value = map.get(key);
+        if (value != null || map.size() >= size) {
+            return value;
+        }
+        value = supplier.get();
+        V existing = map.putIfAbsent(key, value);
+        return existing != null ? existing : value;
+    }
+
     List<V> copyValues() {
         return new ArrayList<>(map.values());
     }
@@ -0,0 +1,177 @@
+package org.jdbcmon;
+
+/**
+ * Tags the statements executed by the current thread, for example by the endpoint and the tenant of the request
+ * being processed, so that the statistics are also aggregated per tag set, and accumulates the database time
+ * of the context itself, to be logged at the end of the request:
+ * <pre>
+ * try (MonitoringContext context = MonitoringContext.open("endpoint", "/orders", "tenant", tenantId)) {
+ *     chain.doFilter(request, response);
+ *     log.info("SQL: {} queries, {} ms", context.getExecuteCount(), context.getExecuteTimeMillis());
+ * }
+ * </pre>
+ * A context is open on the thread which opened it until closed, closing it restores the previous context of
+ * the thread. The accumulators are plain fields updated by that thread, so a context should not be shared
+ * by concurrent threads.
+ */
+public final class MonitoringContext implements AutoCloseable {
+
+    private static final ThreadLocal<MonitoringContext> CURRENT = new ThreadLocal<>();
+
+    private final String tags;
+    //@Nullable
+    private final MonitoringContext previous;
+    private boolean closed;
+
+    private long executeCount;
+    private long failExecuteCount;
+    private long executeTimeNanos;
+    private long fetchTimeNanos;
+
+    /**
+     * The tag stat of the last data source, resolved on the first execution
+     */
+    //@Nullable
+    private LimitedMap<String, TagStat> cachedTagStats;
+    //@Nullable
+    private TagStat cachedTagStat;
+    /**
+     * Executions of the context, null until the first one or if not tracked
+     */
+    //@Nullable
+    private UnitOfWork unitOfWork;
+
+    private MonitoringContext(String tags, /*@Nullable*/ MonitoringContext previous) {
+        this.tags = tags;
+        this.previous = previous;
+    }
+
+    /**
+     * Opens a context on the current thread
+     *
+     * @param tags names and values of the tags, e.g. {@code "endpoint", "/orders"}; the number of the distinct tag
+     *             sets aggregated per data source is limited, so the values should not be unique per request
+     */
+    public static MonitoringContext open(String... tags) {
+        Utils.checkArgument(tags.length % 2 == 0, "Tags are not name-value pairs: %s", tags.length);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < tags.length; i += 2) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(tags[i]).append('=').append(tags[i + 1]);
+        }
+        MonitoringContext context = new MonitoringContext(sb.toString(), CURRENT.get());
+        CURRENT.set(context);
+        return context;
+    }
+
+    /**
+     * @return the context open on the current thread, null if none
+     */
+    //@Nullable
+    public static MonitoringContext current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * @return the tags as {@code name=value} pairs separated by commas
+     */
+    public String getTags() {
+        return tags;
+    }
+
+    public long getExecuteCount() {
+        return executeCount;
+    }
+
+    public long getFailExecuteCount() {
+        return failExecuteCount;
+    }
+
+    public long getExecuteTimeNanos() {
+        return executeTimeNanos;
+    }
+
+    public long getExecuteTimeMillis() {
+        return executeTimeNanos / 1_000_000L;
+    }
+
+    /**
+     * @return the time spent fetching the monitored result sets (as sampled), see
+     * {@link MonitoringDataSource#setSampling(double)}
+     */
+    public long getFetchTimeNanos() {
+        return fetchTimeNanos;
+    }
+
+    /**
+     * Restores the previous context of the thread
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (unitOfWork != null) {
+            unitOfWork.finish();
+        }
+        if (CURRENT.get() == this) {
+            if (previous == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(previous);
+            }
+        }
+    }
+
+    void registerExecute(long timeNanos, boolean failed) {
+        executeCount++;
+        executeTimeNanos += timeNanos;
+        if (failed) {
+            failExecuteCount++;
+        }
+    }
+
+    void registerFetch(long timeNanos) {
+        fetchTimeNanos += timeNanos;
+    }
+
+    /**
+     * The unit of work of the context is tracked for the first data source which executes in it
+     *
+     * @return the unit of work of the context for the data source, null if it belongs to another one
+     */
+    //@Nullable
+    UnitOfWork unitOfWork(SqlStat sqlStat, int nPlusOneThreshold) {
+        UnitOfWork unitOfWork = this.unitOfWork;
+        if (unitOfWork == null) {
+            unitOfWork = new UnitOfWork(sqlStat, nPlusOneThreshold);
+            this.unitOfWork = unitOfWork;
+        }
+        return unitOfWork.sqlStat == sqlStat ? unitOfWork : null;
+    }
+
+    /**
+     * @param tagStats the tag stats of the data source, replaced on reset
+     * @return the tag stat of the context in the map, null if the map has no room for it
+     */
+    //@Nullable
+    TagStat tagStat(LimitedMap<String, TagStat> tagStats) {
+        if (cachedTagStats != tagStats) {
+            cachedTagStat = tagStats.computeIfRoom(tags, () -> new TagStat(tags));
+            cachedTagStats = tagStats;
+        }
+        return cachedTagStat;
+    }
+
+    @Override
+    public String toString() {
+        return "MonitoringContext{" +
+                "tags=" + tags +
+                ", executeCount=" + executeCount +
+                ", executeTimeNanos=" + executeTimeNanos +
+                '}';
+    }
+}
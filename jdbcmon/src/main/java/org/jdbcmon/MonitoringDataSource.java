@@ -1,15 +1,21 @@
 package org.jdbcmon;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
 import javax.sql.DataSource;
+import java.io.IOException;
 import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.SQLFeatureNotSupportedException;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.TimeUnit;
 
-public class MonitoringDataSource implements DataSource {
+public class MonitoringDataSource implements DataSource, AutoCloseable {
 
     private final DataSource delegate;
     private final SqlStat sqlStat;
@@ -23,20 +29,303 @@ public class MonitoringDataSource implements DataSource {
         return sqlStat.report(null, false);
     }
 
+    /**
+     * @return typed statistics of the statements, read once from the live counters
+     */
+    public MonitoringSnapshot snapshot() {
+        return sqlStat.snapshot();
+    }
+
+    /**
+     * Lets the exporters which read the statistics value by value share one snapshot instead of taking one per value
+     *
+     * @param maxAge the max age of the last snapshot to return, a new one is taken if it is older
+     */
+    public MonitoringSnapshot snapshot(long maxAge, TimeUnit unit) {
+        return sqlStat.snapshot(unit.toNanos(maxAge));
+    }
+
+    /**
+     * Registers a {@link MonitoringMXBean} of the data source in the platform MBean server, named
+     * {@code org.jdbcmon:type=MonitoringDataSource,name=<name>}. Unregister it when the data source is closed.
+     *
+     * @param maxStatements number of the most executed statements exposed, to bound the size of the attribute
+     * @return the name of the registered bean
+     */
+    public ObjectName registerMBean(String name, int maxStatements) throws JMException {
+        ObjectName objectName = new ObjectName("org.jdbcmon:type=MonitoringDataSource,name=" + name);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new DataSourceMonitoring(sqlStat, maxStatements),
+                objectName);
+        return objectName;
+    }
+
+    /**
+     * Streams the statistics of the statements as JSON, with no intermediate maps or strings. To write to
+     * an {@link java.io.OutputStream}, wrap it with a buffered {@link java.io.OutputStreamWriter}.
+     */
+    public void writeJson(Appendable out) throws IOException {
+        new ReportWriter(out).writeJson(sqlStat.snapshot());
+    }
+
+    /**
+     * Streams the statistics of the statements in the OpenMetrics text format (also readable by Prometheus),
+     * labeled by the sql, see {@link #writeJson(Appendable)}
+     */
+    public void writeOpenMetrics(Appendable out) throws IOException {
+        new ReportWriter(out).writeOpenMetrics(sqlStat.snapshot());
+    }
+
+    /**
+     * Creates a cursor returning the changes of the statistics since its previous call, for the collectors
+     * which need deltas rather than cumulative values
+     */
+    public DeltaCursor newDeltaCursor() {
+        return new DeltaCursor(sqlStat);
+    }
+
+    /**
+     * Clears the statistics. The executions registered while resetting may be partially lost, a
+     * {@link DeltaCursor} reads the changes with no loss and no reset.
+     */
     public void reset() {
         sqlStat.reset();
     }
 
+    /**
+     * Stops the background work of the monitoring: the {@link #setAsyncAggregation asynchronous aggregation} thread,
+     * the {@link #setStatisticsPersistence statistics persistence}, which saves one last time, and the
+     * {@link #setEventRecording event recording}. The statistics are kept and the connections are still monitored,
+     * on the calling threads. The delegate is not closed.
+     */
+    @Override
+    public void close() {
+        sqlStat.close();
+    }
+
+    /**
+     * Sets the precision of the execute and fetch time histograms of the statements registered from now on.
+     * The default is 1 digit (about 3-6% relative error, ~4 KB per histogram), 2 digits cost about 7 times more memory,
+     * 3 digits about 50 times, and so do the copies a {@link DeltaCursor} keeps.
+     *
+     * @param significantDigits significant decimal digits of the time values, 1..3
+     */
+    public void setHistogramSignificantDigits(int significantDigits) {
+        sqlStat.setHistogramDigits(significantDigits);
+    }
+
+    /**
+     * Sets the time slices of the rolling statistics: the report shows the rates, latency percentiles and errors
+     * of the last 1, 5 and 15 minutes (as far as the retention allows) besides the totals since the start.
+     * The default is 90 slices of 10 seconds. The windowed statistics collected so far are dropped.
+     *
+     * @param interval   duration of a slice, at least 1 ms
+     * @param unit       time unit of the interval
+     * @param sliceCount number of retained slices
+     */
+    public void setRollingWindow(long interval, TimeUnit unit, int sliceCount) {
+        sqlStat.setRollingWindow(interval, unit, sliceCount);
+    }
+
+    /**
+     * Moves the aggregation of the statistics off the application threads: the calling thread only publishes
+     * a compact event to a preallocated lock-free ring buffer, a background daemon thread aggregates the events.
+     * Disabled by default. The connection statistics are always registered on the calling thread.
+     *
+     * @param bufferSize     number of events the buffer holds (rounded up to a power of two), 0 to disable
+     * @param dropOnOverflow what to do when the buffer is full: true to drop the event (the drops are counted
+     *                       in the report), false to aggregate it on the calling thread
+     */
+    public void setAsyncAggregation(int bufferSize, boolean dropOnOverflow) {
+        sqlStat.setAsyncAggregation(bufferSize, dropOnOverflow);
+    }
+
+    /**
+     * Samples the expensive part of the monitoring: time histograms, averages, rolling windows, fetch time
+     * and stack traces of exceptions are registered for about the given fraction of the calls, scaled
+     * to represent all of them. The execute counts and total times are always exact.
+     * Default is 1.0, every call is sampled.
+     *
+     * @param rate 0.0 (exclusive) to 1.0
+     */
+    public void setSampling(double rate) {
+        sqlStat.setSampler(rate == 1.0d ? null : Sampler.fixedRate(rate));
+    }
+
+    /**
+     * Samples about the given number of calls per second of every statement, see {@link #setSampling(double)}.
+     * The rarely executed statements are sampled completely.
+     */
+    public void setAdaptiveSampling(int samplesPerSecond) {
+        sqlStat.setSampler(Sampler.adaptive(samplesPerSecond));
+    }
+
+    /**
+     * Samples at most the given number of calls per second in total, see {@link #setSampling(double)}
+     */
+    public void setTokenBucketSampling(int samplesPerSecond) {
+        sqlStat.setSampler(Sampler.tokenBucket(samplesPerSecond));
+    }
+
+    /**
+     * Sets the execute time from which the calls are slow: they are always sampled, regardless of the sampling
+     * policy, and logged in the slow query log if enabled. Not set by default.
+     */
+    public void setSlowThreshold(long slowThreshold, TimeUnit unit) {
+        sqlStat.setSlowThreshold(slowThreshold, unit);
+    }
+
+    /**
+     * Sets the slow threshold of a particular statement, overriding the global one. The sql is normalized
+     * if the normalization is enabled, so set it before.
+     */
+    public void setSlowThreshold(String sql, long slowThreshold, TimeUnit unit) {
+        sqlStat.setSlowThreshold(sql, slowThreshold, unit);
+    }
+
+    /**
+     * Keeps the given number of the slowest executions above the slow threshold, with the sql, the bind parameters
+     * (if captured), the duration, the thread and the exception. Disabled by default.
+     *
+     * @param size               0 to disable
+     * @param captureCallerFrame true to also keep the first application frame of the stack, which costs a stack
+     *                           walk per logged execution
+     * @see #setSlowThreshold(long, TimeUnit)
+     * @see #slowQueries()
+     */
+    public void setSlowQueryLog(int size, boolean captureCallerFrame) {
+        sqlStat.setSlowQueryLog(size, captureCallerFrame);
+    }
+
+    /**
+     * Attributes a sample of the executions to their application call sites: the first frame of the stack outside
+     * of jdbcmon, the JDK and the given framework packages. The report shows the estimated execute count and time
+     * per statement and call site, for at most 16 call sites per statement. Disabled by default.
+     *
+     * @param sampleRate        fraction of the executions to walk the stack of, 0.0 to disable
+     * @param frameworkPackages package prefixes of the frames to skip, e.g. {@code "org.springframework."}
+     */
+    public void setCallSiteAttribution(double sampleRate, String... frameworkPackages) {
+        sqlStat.setCallSiteAttribution(sampleRate, frameworkPackages);
+    }
+
+    /**
+     * Detects the avoidable round trips in the units of work: a {@link MonitoringContext} if one is open,
+     * otherwise a connection checkout. A statement executed more than the threshold number of times in a unit
+     * is reported as an N+1 finding (enable the sql normalization to detect it for the ad-hoc statements with
+     * literals), the same sql executed repeatedly with the same bind parameters is reported as repeated (the bind
+     * parameters must be captured, see {@link #setBindParameterCapture(int, int, boolean)}). The findings are
+     * reported with the number of the units, the executions and the time wasted by all but one execution per unit.
+     * Disabled by default.
+     *
+     * @param threshold 0 to disable
+     */
+    public void setNPlusOneDetection(int threshold) {
+        sqlStat.setNPlusOneDetection(threshold);
+    }
+
+    /**
+     * Captures the bind parameters of the statements prepared from now on, for the slow query log. The values are
+     * kept in a fixed-size array per statement and rendered only if the execution is logged. Streams and LOBs
+     * are not read, only their types are logged. Disabled by default.
+     *
+     * @param maxParameters  number of the first parameters to capture, 0 to disable
+     * @param maxValueLength length the string values are truncated to
+     * @param redact         true to log the types of the values only
+     */
+    public void setBindParameterCapture(int maxParameters, int maxValueLength, boolean redact) {
+        sqlStat.setBindParameterCapture(maxParameters, maxValueLength, redact);
+    }
+
+    /**
+     * @return the slowest executions logged since the start or the last reset, the slowest first
+     */
+    public List<Map<String, ?>> slowQueries() {
+        return sqlStat.slowQueries();
+    }
+
+    /**
+     * Records the prepare, execute, fetch and update events to a ring of memory-mapped files in the directory,
+     * as compact binary records, to be analyzed after the fact with {@link RecordingReader}. Recording does not
+     * allocate or lock, the oldest file is overwritten when all are full. The next file is mapped in the background,
+     * the events which fill the current one before it is mapped are dropped. Disabled by default.
+     *
+     * @param directory    null to stop recording
+     * @param segmentSize  the size of a file in bytes, an event takes 40 bytes
+     * @param segmentCount the number of the files, at least 2
+     */
+    public void setEventRecording(/*@Nullable*/ Path directory, int segmentSize, int segmentCount)
+            throws IOException {
+        sqlStat.setEventRecorder(directory == null ? null : new EventRecorder(directory, segmentSize, segmentCount));
+    }
+
+    /**
+     * Keeps the statistics across restarts: merges the file saved by the previous run, if any, then saves
+     * the statistics to it periodically and at the JVM shutdown, see {@link StatisticsFile}. The rates are
+     * computed over the total monitoring time of the runs. A file these statistics were already saved to or
+     * merged from is not merged again, so the persistence can be re-enabled. Disabled by default.
+     *
+     * @param file null to stop saving, the statistics are saved one last time
+     */
+    public void setStatisticsPersistence(/*@Nullable*/ Path file, long interval, TimeUnit unit) throws IOException {
+        sqlStat.setPersistence(file == null ? null : new StatisticsPersistence(sqlStat, file, unit.toNanos(interval)));
+    }
+
+    /**
+     * Saves the statistics to a {@link StatisticsFile}
+     */
+    public void saveStatistics(Path file) throws IOException {
+        StatisticsFile.write(sqlStat, file);
+    }
+
+    /**
+     * Adds the statistics of a {@link StatisticsFile} collected before these ones, e.g. by a previous run. Does
+     * nothing if they include the file already: it was merged, restored or saved to.
+     */
+    public void mergeStatistics(Path file) throws IOException {
+        if (sqlStat.containsStatisticsFile(file)) {
+            return;
+        }
+        StatisticsFile.read(file, sqlStat, false);
+        sqlStat.addStatisticsFile(file);
+    }
+
+    /**
+     * Enables sql normalization: literals are replaced with {@code ?}, IN-lists are collapsed, whitespace and case
+     * are normalized, so that ad-hoc statements which differ only by values are registered as one statement.
+     * Disabled by default. Statements registered before the change keep their entries.
+     *
+     * @param enabled true to normalize the sql
+     */
+    public void setSqlNormalization(boolean enabled) {
+        sqlStat.setSqlNormalization(enabled);
+    }
+
     @Override
     public Connection getConnection() throws SQLException {
-        Connection delegateConnection = delegate.getConnection();
-        return ConnectionProxy.proxy(delegateConnection, sqlStat);
+        ConnectionStat connectionStat = sqlStat.connectionStat;
+        connectionStat.acquireStarted();
+        long startNanos = System.nanoTime();
+        Connection delegateConnection = null;
+        try {
+            delegateConnection = delegate.getConnection();
+        } finally {
+            connectionStat.registerAcquire(System.nanoTime() - startNanos, delegateConnection != null);
+        }
+        return new ConnectionProxy(delegateConnection, sqlStat);
     }
 
     @Override
     public Connection getConnection(String username, String password) throws SQLException {
-        Connection delegateConnection = delegate.getConnection(username, password);
-        return ConnectionProxy.proxy(delegateConnection, sqlStat);
+        ConnectionStat connectionStat = sqlStat.connectionStat;
+        connectionStat.acquireStarted();
+        long startNanos = System.nanoTime();
+        Connection delegateConnection = null;
+        try {
+            delegateConnection = delegate.getConnection(username, password);
+        } finally {
+            connectionStat.registerAcquire(System.nanoTime() - startNanos, delegateConnection != null);
+        }
+        return new ConnectionProxy(delegateConnection, sqlStat);
     }
 
     @Override
@@ -0,0 +1,59 @@
+package org.jdbcmon;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Changes of the statistics of a data source during an interval of a {@link DeltaCursor}. Immutable.
+ */
+public final class MonitoringDelta {
+
+    private final long startNanos;
+    private final long endNanos;
+    private final List<StatementDelta> statements;
+
+    MonitoringDelta(long startNanos, long endNanos, List<StatementDelta> statements) {
+        this.startNanos = startNanos;
+        this.endNanos = endNanos;
+        this.statements = Collections.unmodifiableList(statements);
+    }
+
+    /**
+     * @return the length of the interval: since the previous delta of the cursor, or since the start of
+     * the monitoring for the first one
+     */
+    public long getIntervalNanos() {
+        return endNanos - startNanos;
+    }
+
+    /**
+     * @return the statements changed during the interval, the {@code [other]} statement last
+     */
+    public List<StatementDelta> getStatements() {
+        return statements;
+    }
+
+    public long getExecuteCount() {
+        long res = 0L;
+        for (StatementDelta statement : statements) {
+            res += statement.getExecuteCount();
+        }
+        return res;
+    }
+
+    public long getTotalExecuteTimeNanos() {
+        long res = 0L;
+        for (StatementDelta statement : statements) {
+            res += statement.getTotalExecuteTimeNanos();
+        }
+        return res;
+    }
+
+    @Override
+    public String toString() {
+        return "MonitoringDelta{" +
+                "intervalNanos=" + getIntervalNanos() +
+                ", statements=" + statements +
+                '}';
+    }
+}
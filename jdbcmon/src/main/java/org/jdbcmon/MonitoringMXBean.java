@@ -0,0 +1,33 @@
+package org.jdbcmon;
+
+import java.util.List;
+
+/**
+ * Statistics of a {@link MonitoringDataSource} exposed over JMX, see
+ * {@link MonitoringDataSource#registerMBean(String, int)}. The statements are mapped to composite data with
+ * the values of {@link StatementSnapshot}, including the execute and fetch time percentiles.
+ */
+public interface MonitoringMXBean {
+
+    long getUptimeMillis();
+
+    long getTotalPrepareCount();
+
+    long getTotalExecuteCount();
+
+    long getTotalExecuteTimeMillis();
+
+    long getTotalFetchTimeMillis();
+
+    long getEvictedStatementCount();
+
+    /**
+     * @return number of the statements in the table, including the ones not exposed
+     */
+    int getStatementCount();
+
+    /**
+     * @return the most executed statements, up to the limit of the bean, and the {@code [other]} statement
+     */
+    List<StatementSnapshot> getStatements();
+}
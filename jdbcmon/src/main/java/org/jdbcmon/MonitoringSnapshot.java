@@ -0,0 +1,75 @@
+package org.jdbcmon;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Statistics of a data source read once from the live counters, with typed values, see {@link StatementSnapshot}.
+ * Immutable.
+ */
+public final class MonitoringSnapshot {
+
+    private final long timestampMillis;
+    final long nanoTime;
+    private final long uptimeMillis;
+    private final long totalPrepareCount;
+    private final long totalExecuteCount;
+    private final long totalExecuteTimeNanos;
+    private final long totalFetchTimeNanos;
+    private final long evictedStatementCount;
+    private final List<StatementSnapshot> statements;
+
+    MonitoringSnapshot(long uptimeMillis, long totalPrepareCount, long totalExecuteCount, long totalExecuteTimeNanos,
+                       long totalFetchTimeNanos, long evictedStatementCount, List<StatementSnapshot> statements) {
+        this.timestampMillis = System.currentTimeMillis();
+        this.nanoTime = System.nanoTime();
+        this.uptimeMillis = uptimeMillis;
+        this.totalPrepareCount = totalPrepareCount;
+        this.totalExecuteCount = totalExecuteCount;
+        this.totalExecuteTimeNanos = totalExecuteTimeNanos;
+        this.totalFetchTimeNanos = totalFetchTimeNanos;
+        this.evictedStatementCount = evictedStatementCount;
+        this.statements = Collections.unmodifiableList(statements);
+    }
+
+    public long getTimestampMillis() {
+        return timestampMillis;
+    }
+
+    /**
+     * @return time since the start of the monitoring or the last reset
+     */
+    public long getUptimeMillis() {
+        return uptimeMillis;
+    }
+
+    public long getTotalPrepareCount() {
+        return totalPrepareCount;
+    }
+
+    public long getTotalExecuteCount() {
+        return totalExecuteCount;
+    }
+
+    public long getTotalExecuteTimeNanos() {
+        return totalExecuteTimeNanos;
+    }
+
+    public long getTotalFetchTimeNanos() {
+        return totalFetchTimeNanos;
+    }
+
+    /**
+     * @return number of the statements evicted from the table, their totals are in the {@code [other]} statement
+     */
+    public long getEvictedStatementCount() {
+        return evictedStatementCount;
+    }
+
+    /**
+     * @return the statements, the most executed first, and the {@code [other]} statement if not empty
+     */
+    public List<StatementSnapshot> getStatements() {
+        return statements;
+    }
+}
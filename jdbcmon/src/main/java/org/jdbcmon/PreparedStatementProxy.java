@@ -1,59 +1,661 @@
 package org.jdbcmon;
 
-import java.lang.reflect.InvocationHandler;
-import java.lang.reflect.Method;
-import java.lang.reflect.Proxy;
+import java.io.InputStream;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.net.URL;
+import java.sql.Array;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.Date;
+import java.sql.NClob;
+import java.sql.ParameterMetaData;
 import java.sql.PreparedStatement;
+import java.sql.Ref;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.RowId;
+import java.sql.SQLException;
+import java.sql.SQLType;
+import java.sql.SQLXML;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.Calendar;
 
-import static org.jdbcmon.Utils.invokeTarget;
-import static org.jdbcmon.Utils.matches;
-
-class PreparedStatementProxy {
-
-    private static final Class[] PREPARED_STATEMENT_PROXY_INTERFACES = {PreparedStatement.class};
-
-    static class PreparedStatementInvocationHandler<T extends PreparedStatement> extends StatementProxy.StatementInvocationHandler<T> {
-        final String sql;
-
-        PreparedStatementInvocationHandler(String sql, T delegate, SqlStat sqlStat) {
-            super(delegate, sqlStat);
-            this.sql = sql;
-        }
-
-        @Override
-        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-            Throwable exception = null;
-
-            if (matches(method, "execute")) {
-                long startNanos = System.nanoTime();
-                try {
-                    return invokeTarget(method, delegate, args);
-                } catch (Throwable e) {
-                    exception = e;
-                    throw e;
-                } finally {
-                    sqlStat.registerExecute(sql, System.nanoTime() - startNanos, exception);
-                }
-            } else if (matches(method, "executeQuery")) {
-                long startNanos = System.nanoTime();
-                try {
-                    return invokeTarget(method, delegate, args);
-                } catch (Throwable e) {
-                    exception = e;
-                    throw e;
-                } finally {
-                    sqlStat.registerExecute(sql, System.nanoTime() - startNanos, exception);
-                }
+/**
+ * Delegating {@link PreparedStatement} wrapper, executions are registered in {@link SqlStat} with the statement handle
+ * of the prepared sql, resolved at prepare time, so there is no map lookup per execution.
+ *
+ * @param <S> type of the delegate statement
+ */
+class PreparedStatementProxy<S extends PreparedStatement> extends StatementProxy<S> implements PreparedStatement {
+
+    final String sql;
+    /**
+     * Handle of the sql, replaced if it is evicted from the table
+     */
+    private SqlStatementStat stat;
+    /**
+     * Number of {@link #addBatch()} calls since the last batch execution
+     */
+    private int batchSize;
+    /**
+     * Null if the bind parameters are not captured
+     */
+    //@Nullable
+    private final BindParameters parameters;
+
+    // lifecycle of the statement
+    private final long createNanos = System.nanoTime();
+    private int executeCount;
+    private boolean closed;
+
+    PreparedStatementProxy(ConnectionProxy connection, String sql, SqlStatementStat stat, S delegate,
+                           SqlStat sqlStat) {
+        super(connection, delegate, sqlStat);
+        this.sql = sql;
+        this.stat = stat;
+        this.lastSql = sql;
+        this.parameters = sqlStat.newBindParameters();
+        connection.registerOpen(this);
+    }
+
+    private SqlStatementStat stat() {
+        SqlStatementStat stat = this.stat;
+        if (stat.evicted) {
+            stat = sqlStat.resolve(stat);
+            this.stat = stat;
+        }
+        return stat;
+    }
+
+    @Override
+    void registerResultSet(String sql, long fetchTimeNanos, int rows, long weight) {
+        if (sql != this.sql) {
+            // a result set of an execute(String) call
+            super.registerResultSet(sql, fetchTimeNanos, rows, weight);
+            return;
+        }
+        connection.registerFetch(fetchTimeNanos * weight);
+        sqlStat.registerContextFetch(fetchTimeNanos * weight);
+        SqlStatementStat stat = stat();
+        sqlStat.registerFetch(stat, fetchTimeNanos, weight);
+        sqlStat.registerResultSetSize(stat, rows, weight);
+    }
+
+    @Override
+    void registerExecute(String sql, SqlStatementStat stat, long timeNanos, /*@Nullable*/ Throwable exception) {
+        executeCount++;
+        super.registerExecute(sql, stat, timeNanos, exception);
+    }
+
+    @Override
+    public void close() throws SQLException {
+        try {
+            super.close();
+        } finally {
+            if (!closed) {
+                closed = true;
+                connection.registerClosed(this);
+                sqlStat.registerStatementClose(stat(), executeCount, System.nanoTime() - createNanos, false);
             }
+        }
+    }
+
+    /**
+     * Registers the statement as leaked: it is still open when its connection is closed, or when too many newer
+     * statements of the connection are open, see {@link ConnectionProxy#registerOpen(PreparedStatementProxy)}
+     */
+    void registerLeaked() {
+        if (!closed) {
+            closed = true;
+            sqlStat.registerStatementClose(stat(), executeCount, System.nanoTime() - createNanos, true);
+        }
+    }
+
+    @Override
+    //@Nullable
+    BindParameters bindParameters() {
+        return parameters;
+    }
+
+    @Override
+    long sampleFetch(String sql) {
+        return sql == this.sql ? sqlStat.sample(stat()) : super.sampleFetch(sql);
+    }
+
+    @Override
+    public ResultSet executeQuery() throws SQLException {
+        registerFetch();
+        Throwable exception = null;
+        long startNanos = System.nanoTime();
+        try {
+            return wrap(delegate.executeQuery(), sql);
+        } catch (Throwable e) {
+            exception = e;
+            throw e;
+        } finally {
+            registerExecute(sql, stat(), System.nanoTime() - startNanos, exception);
+        }
+    }
+
+    @Override
+    public int executeUpdate() throws SQLException {
+        registerFetch();
+        Throwable exception = null;
+        long startNanos = System.nanoTime();
+        try {
+            int result = delegate.executeUpdate();
+            sqlStat.registerUpdate(stat(), result);
+            return result;
+        } catch (Throwable e) {
+            exception = e;
+            throw e;
+        } finally {
+            registerExecute(sql, stat(), System.nanoTime() - startNanos, exception);
+        }
+    }
+
+    @Override
+    public void setNull(int parameterIndex, int sqlType) throws SQLException {
+        delegate.setNull(parameterIndex, sqlType);
+        if (parameters != null) {
+            parameters.setNull(parameterIndex);
+        }
+    }
+
+    @Override
+    public void setBoolean(int parameterIndex, boolean x) throws SQLException {
+        delegate.setBoolean(parameterIndex, x);
+        if (parameters != null) {
+            parameters.setBoolean(parameterIndex, x);
+        }
+    }
+
+    @Override
+    public void setByte(int parameterIndex, byte x) throws SQLException {
+        delegate.setByte(parameterIndex, x);
+        if (parameters != null) {
+            parameters.setLong(parameterIndex, x);
+        }
+    }
+
+    @Override
+    public void setShort(int parameterIndex, short x) throws SQLException {
+        delegate.setShort(parameterIndex, x);
+        if (parameters != null) {
+            parameters.setLong(parameterIndex, x);
+        }
+    }
+
+    @Override
+    public void setInt(int parameterIndex, int x) throws SQLException {
+        delegate.setInt(parameterIndex, x);
+        if (parameters != null) {
+            parameters.setLong(parameterIndex, x);
+        }
+    }
+
+    @Override
+    public void setLong(int parameterIndex, long x) throws SQLException {
+        delegate.setLong(parameterIndex, x);
+        if (parameters != null) {
+            parameters.setLong(parameterIndex, x);
+        }
+    }
+
+    @Override
+    public void setFloat(int parameterIndex, float x) throws SQLException {
+        delegate.setFloat(parameterIndex, x);
+        if (parameters != null) {
+            parameters.setDouble(parameterIndex, x);
+        }
+    }
 
-            return super.invoke(proxy, method, args);
+    @Override
+    public void setDouble(int parameterIndex, double x) throws SQLException {
+        delegate.setDouble(parameterIndex, x);
+        if (parameters != null) {
+            parameters.setDouble(parameterIndex, x);
         }
     }
 
-    static PreparedStatement proxy(String sql, PreparedStatement delegate, SqlStat sqlStat) {
-        InvocationHandler handler = new PreparedStatementInvocationHandler<>(sql, delegate, sqlStat);
+    @Override
+    public void setBigDecimal(int parameterIndex, BigDecimal x) throws SQLException {
+        delegate.setBigDecimal(parameterIndex, x);
+        if (parameters != null) {
+            parameters.setObject(parameterIndex, x);
+        }
+    }
+
+    @Override
+    public void setString(int parameterIndex, String x) throws SQLException {
+        delegate.setString(parameterIndex, x);
+        if (parameters != null) {
+            parameters.setObject(parameterIndex, x);
+        }
+    }
+
+    @Override
+    public void setBytes(int parameterIndex, byte[] x) throws SQLException {
+        delegate.setBytes(parameterIndex, x);
+        if (parameters != null) {
+            parameters.setObject(parameterIndex, x);
+        }
+    }
+
+    @Override
+    public void setDate(int parameterIndex, Date x) throws SQLException {
+        delegate.setDate(parameterIndex, x);
+        if (parameters != null) {
+            parameters.setObject(parameterIndex, x);
+        }
+    }
+
+    @Override
+    public void setTime(int parameterIndex, Time x) throws SQLException {
+        delegate.setTime(parameterIndex, x);
+        if (parameters != null) {
+            parameters.setObject(parameterIndex, x);
+        }
+    }
+
+    @Override
+    public void setTimestamp(int parameterIndex, Timestamp x) throws SQLException {
+        delegate.setTimestamp(parameterIndex, x);
+        if (parameters != null) {
+            parameters.setObject(parameterIndex, x);
+        }
+    }
+
+    @Override
+    public void setAsciiStream(int parameterIndex, InputStream x, int length) throws SQLException {
+        delegate.setAsciiStream(parameterIndex, x, length);
+        if (parameters != null) {
+            parameters.setStream(parameterIndex, x);
+        }
+    }
+
+    @Deprecated
+    @Override
+    public void setUnicodeStream(int parameterIndex, InputStream x, int length) throws SQLException {
+        delegate.setUnicodeStream(parameterIndex, x, length);
+        if (parameters != null) {
+            parameters.setStream(parameterIndex, x);
+        }
+    }
+
+    @Override
+    public void setBinaryStream(int parameterIndex, InputStream x, int length) throws SQLException {
+        delegate.setBinaryStream(parameterIndex, x, length);
+        if (parameters != null) {
+            parameters.setStream(parameterIndex, x);
+        }
+    }
+
+    @Override
+    public void clearParameters() throws SQLException {
+        delegate.clearParameters();
+        if (parameters != null) {
+            parameters.clear();
+        }
+    }
+
+    @Override
+    public void setObject(int parameterIndex, Object x, int targetSqlType) throws SQLException {
+        delegate.setObject(parameterIndex, x, targetSqlType);
+        if (parameters != null) {
+            parameters.setObject(parameterIndex, x);
+        }
+    }
+
+    @Override
+    public void setObject(int parameterIndex, Object x) throws SQLException {
+        delegate.setObject(parameterIndex, x);
+        if (parameters != null) {
+            parameters.setObject(parameterIndex, x);
+        }
+    }
+
+    @Override
+    public boolean execute() throws SQLException {
+        registerFetch();
+        Throwable exception = null;
+        long startNanos = System.nanoTime();
+        try {
+            return delegate.execute();
+        } catch (Throwable e) {
+            exception = e;
+            throw e;
+        } finally {
+            registerExecute(sql, stat(), System.nanoTime() - startNanos, exception);
+        }
+    }
+
+    @Override
+    public void addBatch() throws SQLException {
+        delegate.addBatch();
+        batchSize++;
+    }
+
+    @Override
+    public void setCharacterStream(int parameterIndex, Reader reader, int length) throws SQLException {
+        delegate.setCharacterStream(parameterIndex, reader, length);
+        if (parameters != null) {
+            parameters.setStream(parameterIndex, reader);
+        }
+    }
+
+    @Override
+    public void setRef(int parameterIndex, Ref x) throws SQLException {
+        delegate.setRef(parameterIndex, x);
+        if (parameters != null) {
+            parameters.setObject(parameterIndex, x);
+        }
+    }
+
+    @Override
+    public void setBlob(int parameterIndex, Blob x) throws SQLException {
+        delegate.setBlob(parameterIndex, x);
+        if (parameters != null) {
+            parameters.setStream(parameterIndex, x);
+        }
+    }
+
+    @Override
+    public void setClob(int parameterIndex, Clob x) throws SQLException {
+        delegate.setClob(parameterIndex, x);
+        if (parameters != null) {
+            parameters.setStream(parameterIndex, x);
+        }
+    }
+
+    @Override
+    public void setArray(int parameterIndex, Array x) throws SQLException {
+        delegate.setArray(parameterIndex, x);
+        if (parameters != null) {
+            parameters.setObject(parameterIndex, x);
+        }
+    }
+
+    @Override
+    public ResultSetMetaData getMetaData() throws SQLException {
+        return delegate.getMetaData();
+    }
+
+    @Override
+    public void setDate(int parameterIndex, Date x, Calendar cal) throws SQLException {
+        delegate.setDate(parameterIndex, x, cal);
+        if (parameters != null) {
+            parameters.setObject(parameterIndex, x);
+        }
+    }
+
+    @Override
+    public void setTime(int parameterIndex, Time x, Calendar cal) throws SQLException {
+        delegate.setTime(parameterIndex, x, cal);
+        if (parameters != null) {
+            parameters.setObject(parameterIndex, x);
+        }
+    }
+
+    @Override
+    public void setTimestamp(int parameterIndex, Timestamp x, Calendar cal) throws SQLException {
+        delegate.setTimestamp(parameterIndex, x, cal);
+        if (parameters != null) {
+            parameters.setObject(parameterIndex, x);
+        }
+    }
+
+    @Override
+    public void setNull(int parameterIndex, int sqlType, String typeName) throws SQLException {
+        delegate.setNull(parameterIndex, sqlType, typeName);
+        if (parameters != null) {
+            parameters.setNull(parameterIndex);
+        }
+    }
+
+    @Override
+    public void setURL(int parameterIndex, URL x) throws SQLException {
+        delegate.setURL(parameterIndex, x);
+        if (parameters != null) {
+            parameters.setObject(parameterIndex, x);
+        }
+    }
+
+    @Override
+    public ParameterMetaData getParameterMetaData() throws SQLException {
+        return delegate.getParameterMetaData();
+    }
+
+    @Override
+    public void setRowId(int parameterIndex, RowId x) throws SQLException {
+        delegate.setRowId(parameterIndex, x);
+        if (parameters != null) {
+            parameters.setObject(parameterIndex, x);
+        }
+    }
+
+    @Override
+    public void setNString(int parameterIndex, String value) throws SQLException {
+        delegate.setNString(parameterIndex, value);
+        if (parameters != null) {
+            parameters.setObject(parameterIndex, value);
+        }
+    }
+
+    @Override
+    public void setNCharacterStream(int parameterIndex, Reader value, long length) throws SQLException {
+        delegate.setNCharacterStream(parameterIndex, value, length);
+        if (parameters != null) {
+            parameters.setStream(parameterIndex, value);
+        }
+    }
+
+    @Override
+    public void setNClob(int parameterIndex, NClob value) throws SQLException {
+        delegate.setNClob(parameterIndex, value);
+        if (parameters != null) {
+            parameters.setStream(parameterIndex, value);
+        }
+    }
+
+    @Override
+    public void setClob(int parameterIndex, Reader reader, long length) throws SQLException {
+        delegate.setClob(parameterIndex, reader, length);
+        if (parameters != null) {
+            parameters.setStream(parameterIndex, reader);
+        }
+    }
+
+    @Override
+    public void setBlob(int parameterIndex, InputStream inputStream, long length) throws SQLException {
+        delegate.setBlob(parameterIndex, inputStream, length);
+        if (parameters != null) {
+            parameters.setStream(parameterIndex, inputStream);
+        }
+    }
+
+    @Override
+    public void setNClob(int parameterIndex, Reader reader, long length) throws SQLException {
+        delegate.setNClob(parameterIndex, reader, length);
+        if (parameters != null) {
+            parameters.setStream(parameterIndex, reader);
+        }
+    }
+
+    @Override
+    public void setSQLXML(int parameterIndex, SQLXML xmlObject) throws SQLException {
+        delegate.setSQLXML(parameterIndex, xmlObject);
+        if (parameters != null) {
+            parameters.setStream(parameterIndex, xmlObject);
+        }
+    }
+
+    @Override
+    public void setObject(int parameterIndex, Object x, int targetSqlType, int scaleOrLength) throws SQLException {
+        delegate.setObject(parameterIndex, x, targetSqlType, scaleOrLength);
+        if (parameters != null) {
+            parameters.setObject(parameterIndex, x);
+        }
+    }
+
+    @Override
+    public void setAsciiStream(int parameterIndex, InputStream x, long length) throws SQLException {
+        delegate.setAsciiStream(parameterIndex, x, length);
+        if (parameters != null) {
+            parameters.setStream(parameterIndex, x);
+        }
+    }
+
+    @Override
+    public void setBinaryStream(int parameterIndex, InputStream x, long length) throws SQLException {
+        delegate.setBinaryStream(parameterIndex, x, length);
+        if (parameters != null) {
+            parameters.setStream(parameterIndex, x);
+        }
+    }
+
+    @Override
+    public void setCharacterStream(int parameterIndex, Reader reader, long length) throws SQLException {
+        delegate.setCharacterStream(parameterIndex, reader, length);
+        if (parameters != null) {
+            parameters.setStream(parameterIndex, reader);
+        }
+    }
+
+    @Override
+    public void setAsciiStream(int parameterIndex, InputStream x) throws SQLException {
+        delegate.setAsciiStream(parameterIndex, x);
+        if (parameters != null) {
+            parameters.setStream(parameterIndex, x);
+        }
+    }
+
+    @Override
+    public void setBinaryStream(int parameterIndex, InputStream x) throws SQLException {
+        delegate.setBinaryStream(parameterIndex, x);
+        if (parameters != null) {
+            parameters.setStream(parameterIndex, x);
+        }
+    }
+
+    @Override
+    public void setCharacterStream(int parameterIndex, Reader reader) throws SQLException {
+        delegate.setCharacterStream(parameterIndex, reader);
+        if (parameters != null) {
+            parameters.setStream(parameterIndex, reader);
+        }
+    }
+
+    @Override
+    public void setNCharacterStream(int parameterIndex, Reader value) throws SQLException {
+        delegate.setNCharacterStream(parameterIndex, value);
+        if (parameters != null) {
+            parameters.setStream(parameterIndex, value);
+        }
+    }
+
+    @Override
+    public void setClob(int parameterIndex, Reader reader) throws SQLException {
+        delegate.setClob(parameterIndex, reader);
+        if (parameters != null) {
+            parameters.setStream(parameterIndex, reader);
+        }
+    }
+
+    @Override
+    public void setBlob(int parameterIndex, InputStream inputStream) throws SQLException {
+        delegate.setBlob(parameterIndex, inputStream);
+        if (parameters != null) {
+            parameters.setStream(parameterIndex, inputStream);
+        }
+    }
+
+    @Override
+    public void setNClob(int parameterIndex, Reader reader) throws SQLException {
+        delegate.setNClob(parameterIndex, reader);
+        if (parameters != null) {
+            parameters.setStream(parameterIndex, reader);
+        }
+    }
+
+    @Override
+    public void setObject(int parameterIndex, Object x, SQLType targetSqlType, int scaleOrLength) throws SQLException {
+        delegate.setObject(parameterIndex, x, targetSqlType, scaleOrLength);
+        if (parameters != null) {
+            parameters.setObject(parameterIndex, x);
+        }
+    }
+
+    @Override
+    public void setObject(int parameterIndex, Object x, SQLType targetSqlType) throws SQLException {
+        delegate.setObject(parameterIndex, x, targetSqlType);
+        if (parameters != null) {
+            parameters.setObject(parameterIndex, x);
+        }
+    }
+
+    @Override
+    public long executeLargeUpdate() throws SQLException {
+        registerFetch();
+        Throwable exception = null;
+        long startNanos = System.nanoTime();
+        try {
+            long result = delegate.executeLargeUpdate();
+            sqlStat.registerUpdate(stat(), result);
+            return result;
+        } catch (Throwable e) {
+            exception = e;
+            throw e;
+        } finally {
+            registerExecute(sql, stat(), System.nanoTime() - startNanos, exception);
+        }
+    }
+
+    @Override
+    public int[] executeBatch() throws SQLException {
+        registerFetch();
+        int batchSize = this.batchSize;
+        this.batchSize = 0;
+        Throwable exception = null;
+        long startNanos = System.nanoTime();
+        try {
+            int[] result = delegate.executeBatch();
+            sqlStat.registerUpdates(stat(), result);
+            return result;
+        } catch (Throwable e) {
+            exception = e;
+            throw e;
+        } finally {
+            registerExecute(sql, stat(), System.nanoTime() - startNanos, exception);
+            sqlStat.registerBatchSize(stat(), batchSize);
+        }
+    }
+
+    @Override
+    public long[] executeLargeBatch() throws SQLException {
+        registerFetch();
+        int batchSize = this.batchSize;
+        this.batchSize = 0;
+        Throwable exception = null;
+        long startNanos = System.nanoTime();
+        try {
+            long[] result = delegate.executeLargeBatch();
+            sqlStat.registerUpdates(stat(), result);
+            return result;
+        } catch (Throwable e) {
+            exception = e;
+            throw e;
+        } finally {
+            registerExecute(sql, stat(), System.nanoTime() - startNanos, exception);
+            sqlStat.registerBatchSize(stat(), batchSize);
+        }
+    }
 
-        return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
-                PREPARED_STATEMENT_PROXY_INTERFACES, handler);
+    @Override
+    public void clearBatch() throws SQLException {
+        delegate.clearBatch();
+        batchSize = 0;
     }
 }
@@ -0,0 +1,173 @@
+package org.jdbcmon;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.jdbcmon.EventRecorder.DEFINE_HEADER_LENGTH;
+import static org.jdbcmon.EventRecorder.FLAG_FAILED;
+import static org.jdbcmon.EventRecorder.HEADER_SIZE;
+import static org.jdbcmon.EventRecorder.TYPE_DEFINE;
+import static org.jdbcmon.EventRecorder.TYPE_EXECUTE;
+import static org.jdbcmon.EventRecorder.TYPE_FETCH;
+import static org.jdbcmon.EventRecorder.TYPE_PREPARE;
+import static org.jdbcmon.EventRecorder.TYPE_RESULT_SET_SIZE;
+import static org.jdbcmon.EventRecorder.TYPE_UPDATE;
+
+/**
+ * Reads the events recorded by {@link MonitoringDataSource#setEventRecording(Path, int, int)}, also while
+ * the recording goes on or from a copy of the files, and rebuilds the statistics of any time range:
+ * <pre>
+ * RecordingReader reader = new RecordingReader(Paths.get("/var/log/app/jdbcmon"));
+ * List&lt;Map&lt;String, ?&gt;&gt; report = reader.report(incidentStart, incidentEnd);
+ * </pre>
+ * The reports have the format of {@link MonitoringDataSource#report()}, with the rates computed over the recorded
+ * part of the range. The rolling windows are not meaningful for a past range, and the failures are reported by
+ * their SQLState and error code only, with no stack trace.
+ */
+public final class RecordingReader {
+
+    private final Path directory;
+
+    public RecordingReader(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @return the report of the events of the range
+     */
+    public List<Map<String, ?>> report(long fromEpochMillis, long toEpochMillis) throws IOException {
+        return replay(fromEpochMillis, toEpochMillis).report(null, false);
+    }
+
+    /**
+     * @return the statistics of the events of the range
+     */
+    public MonitoringSnapshot snapshot(long fromEpochMillis, long toEpochMillis) throws IOException {
+        return replay(fromEpochMillis, toEpochMillis).snapshot();
+    }
+
+    private SqlStat replay(long fromEpochMillis, long toEpochMillis) throws IOException {
+        long fromMicros = TimeUnit.MILLISECONDS.toMicros(fromEpochMillis);
+        long toMicros = TimeUnit.MILLISECONDS.toMicros(toEpochMillis);
+        List<ByteBuffer> segments = segments();
+
+        long[] range = {Long.MAX_VALUE, Long.MIN_VALUE};
+        for (ByteBuffer segment : segments) {
+            read(segment, fromMicros, toMicros, (type, flags, sql, timestampMicros, value, sqlState, errorCode,
+                                                 weight) -> {
+                range[0] = Math.min(range[0], timestampMicros);
+                range[1] = Math.max(range[1], timestampMicros);
+            });
+        }
+        long coveredNanos = range[0] > range[1] ? 0L : TimeUnit.MICROSECONDS.toNanos(range[1] - range[0]);
+
+        SqlStat sqlStat = new SqlStat(System.nanoTime() - coveredNanos);
+        for (ByteBuffer segment : segments) {
+            read(segment, fromMicros, toMicros, (type, flags, sql, timestampMicros, value, sqlState, errorCode,
+                                                 weight) -> {
+                SqlStatementStat stat = sqlStat.getSqlStat(sql);
+                switch (type) {
+                    case TYPE_PREPARE:
+                        // the prepare failures are not counted
+                        sqlStat.registerPrepare(stat, value, null);
+                        break;
+                    case TYPE_EXECUTE:
+                        if ((flags & FLAG_FAILED) == 0) {
+                            sqlStat.registerExecute(stat, value, null);
+                        } else {
+                            sqlStat.registerFailedExecute(stat, value, sqlState, errorCode);
+                        }
+                        break;
+                    case TYPE_FETCH:
+                        sqlStat.registerFetch(stat, value, weight);
+                        break;
+                    case TYPE_UPDATE:
+                        sqlStat.registerUpdate(stat, value);
+                        break;
+                    case TYPE_RESULT_SET_SIZE:
+                        sqlStat.registerResultSetSize(stat, (int) value, weight);
+                        break;
+                    default:
+                        // written by a newer version
+                        break;
+                }
+            });
+        }
+        return sqlStat;
+    }
+
+    /**
+     * @return the segment files, the oldest first
+     */
+    private List<ByteBuffer> segments() throws IOException {
+        List<ByteBuffer> segments = new ArrayList<>();
+        try (DirectoryStream<Path> paths = Files.newDirectoryStream(directory,
+                EventRecorder.FILE_PREFIX + "*" + EventRecorder.FILE_SUFFIX)) {
+            for (Path path : paths) {
+                MappedByteBuffer buffer;
+                try (FileChannel channel = FileChannel.open(path)) {
+                    buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size());
+                }
+                if (buffer.capacity() >= HEADER_SIZE && buffer.getLong(0) == EventRecorder.MAGIC
+                        && buffer.getInt(8) == EventRecorder.VERSION) {
+                    segments.add(buffer);
+                }
+            }
+        }
+        segments.sort((a, b) -> Integer.compare(a.getInt(12), b.getInt(12)));
+        return segments;
+    }
+
+    private static void read(ByteBuffer segment, long fromMicros, long toMicros, EventVisitor visitor) {
+        int generation = segment.getInt(12);
+        Map<Integer, String> sqls = new HashMap<>();
+        int offset = HEADER_SIZE;
+        while (offset + DEFINE_HEADER_LENGTH <= segment.capacity()) {
+            // the header and the generation are written together, after the body of the record
+            long headerAndGeneration = segment.getLong(offset);
+            int header = (int) (headerAndGeneration >>> 32);
+            int type = header >>> 24;
+            int length = header & 0xFFFF;
+            if (header == 0 || length < DEFINE_HEADER_LENGTH || offset + length > segment.capacity()
+                    || (int) headerAndGeneration != generation) {
+                // the end of the records of the segment
+                break;
+            }
+            Utils.loadFence();
+            int sqlId = segment.getInt(offset + 8);
+            if (type == TYPE_DEFINE) {
+                byte[] sql = new byte[segment.getInt(offset + 12)];
+                for (int i = 0; i < sql.length; i++) {
+                    sql[i] = segment.get(offset + DEFINE_HEADER_LENGTH + i);
+                }
+                sqls.put(sqlId, new String(sql, StandardCharsets.UTF_8));
+            } else {
+                long timestampMicros = segment.getLong(offset + 16);
+                String sql = sqls.get(sqlId);
+                if (sql != null && timestampMicros >= fromMicros && timestampMicros < toMicros) {
+                    visitor.visit(type, (header >>> 16) & 0xFF, sql, timestampMicros, segment.getLong(offset + 24),
+                            EventRecorder.decodeSqlState(segment.getInt(offset + 36)), segment.getInt(offset + 32),
+                            segment.getInt(offset + 12));
+                }
+            }
+            offset += length;
+        }
+    }
+
+    private interface EventVisitor {
+
+        void visit(int type, int flags, String sql, long timestampMicros, long value, /*@Nullable*/ String sqlState,
+                   int errorCode, long weight);
+    }
+}
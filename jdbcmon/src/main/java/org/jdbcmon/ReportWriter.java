@@ -0,0 +1,260 @@
+package org.jdbcmon;
+
+import java.io.IOException;
+
+/**
+ * Streams a {@link MonitoringSnapshot} as JSON or as OpenMetrics (Prometheus) text. The numbers are written
+ * digit by digit from the raw counters, with no intermediate strings, maps or format parsing. Not thread safe.
+ */
+final class ReportWriter {
+
+    private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p99.9"};
+    private static final String[] QUANTILES = {"0.5", "0.9", "0.99", "0.999"};
+
+    private final Appendable out;
+    /**
+     * Digits of the number being written, in reverse order
+     */
+    private final char[] digits = new char[20];
+
+    ReportWriter(Appendable out) {
+        this.out = out;
+    }
+
+    void writeJson(MonitoringSnapshot snapshot) throws IOException {
+        out.append("{\"uptimeMs\":");
+        appendLong(snapshot.getUptimeMillis());
+        out.append(",\"totalPrepareCount\":");
+        appendLong(snapshot.getTotalPrepareCount());
+        out.append(",\"totalExecuteCount\":");
+        appendLong(snapshot.getTotalExecuteCount());
+        out.append(",\"totalExecuteTimeMs\":");
+        appendMillis(snapshot.getTotalExecuteTimeNanos());
+        out.append(",\"totalFetchTimeMs\":");
+        appendMillis(snapshot.getTotalFetchTimeNanos());
+        out.append(",\"evictedStatements\":");
+        appendLong(snapshot.getEvictedStatementCount());
+        out.append(",\"statements\":[");
+        boolean first = true;
+        for (StatementSnapshot statement : snapshot.getStatements()) {
+            if (!first) {
+                out.append(',');
+            }
+            first = false;
+            writeJson(statement);
+        }
+        out.append("]}");
+    }
+
+    private void writeJson(StatementSnapshot statement) throws IOException {
+        out.append("{\"sql\":");
+        appendJsonString(statement.getSql());
+        out.append(",\"executeCount\":");
+        appendLong(statement.executeCount);
+        if (statement.getExecuteCountError() > 0L) {
+            out.append(",\"executeCountError\":");
+            appendLong(statement.getExecuteCountError());
+        }
+        out.append(",\"failExecuteCount\":");
+        appendLong(statement.failExecuteCount);
+        out.append(",\"totalExecuteTimeMs\":");
+        appendMillis(statement.totalExecuteTimeNanos);
+        out.append(",\"executeAvgTimeMs\":");
+        appendMillis(avg(statement.totalExecuteTimeNanos, statement.executeCount));
+        out.append(",\"executeTimeMs\":");
+        appendPercentilesJson(statement.executeTimeMicros);
+        if (statement.totalFetchTimeNanos > 0L) {
+            out.append(",\"totalFetchTimeMs\":");
+            appendMillis(statement.totalFetchTimeNanos);
+            out.append(",\"fetchTimeMs\":");
+            appendPercentilesJson(statement.fetchTimeMicros);
+        }
+        out.append(",\"totalResultSetSize\":");
+        appendLong(statement.totalResultSetSize);
+        out.append(",\"totalEmptyResultSets\":");
+        appendLong(statement.totalEmptyResultSets);
+        if (statement.prepareCount > 0L) {
+            out.append(",\"prepareCount\":");
+            appendLong(statement.prepareCount);
+            out.append(",\"totalPrepareTimeMs\":");
+            appendMillis(statement.totalPrepareTimeNanos);
+        }
+        if (statement.closedStatementCount > 0L) {
+            out.append(",\"closedStatements\":");
+            appendLong(statement.closedStatementCount);
+            out.append(",\"closedStatementExecuteCount\":");
+            appendLong(statement.closedStatementExecuteCount);
+            out.append(",\"singleUseStatements\":");
+            appendLong(statement.singleUseStatementCount);
+            out.append(",\"leakedStatements\":");
+            appendLong(statement.leakedStatementCount);
+        }
+        out.append('}');
+    }
+
+    private void appendPercentilesJson(long[] micros) throws IOException {
+        out.append('{');
+        for (int i = 0; i < PERCENTILE_NAMES.length; i++) {
+            out.append('"').append(PERCENTILE_NAMES[i]).append("\":");
+            appendDecimal(micros[i], 3);
+            out.append(',');
+        }
+        out.append("\"max\":");
+        appendDecimal(micros[PERCENTILE_NAMES.length], 3);
+        out.append('}');
+    }
+
+    /**
+     * Writes the statements as OpenMetrics families labeled by the sql
+     */
+    void writeOpenMetrics(MonitoringSnapshot snapshot) throws IOException {
+        out.append("# TYPE jdbcmon_statement_execute_seconds summary\n");
+        out.append("# UNIT jdbcmon_statement_execute_seconds seconds\n");
+        out.append("# HELP jdbcmon_statement_execute_seconds Execute time of the statements.\n");
+        for (StatementSnapshot statement : snapshot.getStatements()) {
+            for (int i = 0; i < QUANTILES.length; i++) {
+                appendSample("jdbcmon_statement_execute_seconds", statement, QUANTILES[i]);
+                appendDecimal(statement.executeTimeMicros[i], 6);
+                out.append('\n');
+            }
+            appendSample("jdbcmon_statement_execute_seconds_count", statement, null);
+            appendLong(statement.executeCount);
+            out.append('\n');
+            appendSample("jdbcmon_statement_execute_seconds_sum", statement, null);
+            appendDecimal(statement.totalExecuteTimeNanos, 9);
+            out.append('\n');
+        }
+
+        out.append("# TYPE jdbcmon_statement_failures counter\n");
+        out.append("# HELP jdbcmon_statement_failures Failed executions of the statements.\n");
+        for (StatementSnapshot statement : snapshot.getStatements()) {
+            appendSample("jdbcmon_statement_failures_total", statement, null);
+            appendLong(statement.failExecuteCount);
+            out.append('\n');
+        }
+
+        out.append("# TYPE jdbcmon_statement_fetch_seconds counter\n");
+        out.append("# UNIT jdbcmon_statement_fetch_seconds seconds\n");
+        out.append("# HELP jdbcmon_statement_fetch_seconds Fetch time of the result sets of the statements.\n");
+        for (StatementSnapshot statement : snapshot.getStatements()) {
+            appendSample("jdbcmon_statement_fetch_seconds_total", statement, null);
+            appendDecimal(statement.totalFetchTimeNanos, 9);
+            out.append('\n');
+        }
+
+        out.append("# TYPE jdbcmon_statement_rows counter\n");
+        out.append("# HELP jdbcmon_statement_rows Rows fetched from the result sets of the statements.\n");
+        for (StatementSnapshot statement : snapshot.getStatements()) {
+            appendSample("jdbcmon_statement_rows_total", statement, null);
+            appendLong(statement.totalResultSetSize);
+            out.append('\n');
+        }
+
+        out.append("# TYPE jdbcmon_statement_prepares counter\n");
+        out.append("# HELP jdbcmon_statement_prepares Prepare calls of the statements.\n");
+        for (StatementSnapshot statement : snapshot.getStatements()) {
+            appendSample("jdbcmon_statement_prepares_total", statement, null);
+            appendLong(statement.prepareCount);
+            out.append('\n');
+        }
+        out.append("# EOF\n");
+    }
+
+    private void appendSample(String name, StatementSnapshot statement, /*@Nullable*/ String quantile)
+            throws IOException {
+        out.append(name).append("{sql=\"");
+        appendLabelValue(statement.getSql());
+        if (quantile != null) {
+            out.append("\",quantile=\"").append(quantile);
+        }
+        out.append("\"} ");
+    }
+
+    private static long avg(long total, long count) {
+        return count == 0L ? 0L : total / count;
+    }
+
+    /**
+     * Writes nanos as millis with 2 decimals
+     */
+    private void appendMillis(long nanos) throws IOException {
+        appendDecimal((nanos + 5_000L) / 10_000L, 2);
+    }
+
+    /**
+     * Writes a fixed point number
+     *
+     * @param units the value multiplied by 10^scale
+     */
+    private void appendDecimal(long units, int scale) throws IOException {
+        if (units < 0L) {
+            out.append('-');
+            units = -units;
+        }
+        int count = 0;
+        do {
+            digits[count++] = (char) ('0' + units % 10L);
+            units /= 10L;
+        } while (units > 0L || count <= scale);
+        while (count > 0) {
+            if (count == scale) {
+                out.append('.');
+            }
+            out.append(digits[--count]);
+        }
+    }
+
+    private void appendLong(long value) throws IOException {
+        if (value == Long.MIN_VALUE) {
+            out.append(Long.toString(value));
+            return;
+        }
+        appendDecimal(value, 0);
+    }
+
+    private void appendJsonString(String value) throws IOException {
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.append("\\u00");
+                        out.append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xF, 16));
+                    } else {
+                        out.append(c);
+                    }
+                    break;
+            }
+        }
+        out.append('"');
+    }
+
+    private void appendLabelValue(String value) throws IOException {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c == '\n') {
+                out.append("\\n");
+            } else {
+                out.append(c);
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package org.jdbcmon;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Supplier;
+
+/**
+ * Ring of per-interval slices of counters (and optionally of histograms) of a {@link RollingWindow}. A slot of
+ * the ring is reused for a new slice when the first value of that slice is registered, so the memory is fixed.
+ * <p>
+ * Thread safe: counters are updated lock-free, only the rotation of a slot (once per interval) is synchronized.
+ * A writer which is delayed for a whole ring period may add its value to a newer slice.
+ */
+class RollingCounters {
+
+    final RollingWindow window;
+    private final int fields;
+    /**
+     * Slice of every slot, -1 if the slot is not used yet
+     */
+    private final AtomicLongArray slotSlices;
+    /**
+     * Counters, {@code fields} per slot
+     */
+    private final AtomicLongArray values;
+    //@Nullable
+    private final Histogram[] histograms;
+
+    /**
+     * @param fields           number of counters per slice
+     * @param histogramFactory null if the slices have no histogram
+     */
+    RollingCounters(RollingWindow window, int fields, /*@Nullable*/ Supplier<Histogram> histogramFactory) {
+        this.window = window;
+        this.fields = fields;
+        this.slotSlices = new AtomicLongArray(window.sliceCount);
+        for (int i = 0; i < window.sliceCount; i++) {
+            slotSlices.set(i, -1L);
+        }
+        this.values = new AtomicLongArray(window.sliceCount * fields);
+        if (histogramFactory == null) {
+            this.histograms = null;
+        } else {
+            this.histograms = new Histogram[window.sliceCount];
+            for (int i = 0; i < window.sliceCount; i++) {
+                histograms[i] = histogramFactory.get();
+            }
+        }
+    }
+
+    /**
+     * @return slot of the current slice to register the values to
+     */
+    int currentSlot() {
+        return slot(window.currentSlice(System.nanoTime()));
+    }
+
+    private int slot(long slice) {
+        int slot = (int) (slice % window.sliceCount);
+        if (slotSlices.get(slot) != slice) {
+            rotate(slot, slice);
+        }
+        return slot;
+    }
+
+    private synchronized void rotate(int slot, long slice) {
+        if (slotSlices.get(slot) < slice) {
+            for (int field = 0; field < fields; field++) {
+                values.set(slot * fields + field, 0L);
+            }
+            if (histograms != null) {
+                histograms[slot].reset();
+            }
+            slotSlices.set(slot, slice);
+        }
+    }
+
+    void add(int slot, int field, long delta) {
+        values.addAndGet(slot * fields + field, delta);
+    }
+
+    void record(int slot, long value, long count) {
+        histograms[slot].record(value, count);
+    }
+
+    /**
+     * Sum of the field over the last {@code slices} slices up to the current one
+     */
+    long sum(int field, int slices, long currentSlice) {
+        long sum = 0L;
+        for (int slot = 0; slot < window.sliceCount; slot++) {
+            if (inWindow(slotSlices.get(slot), slices, currentSlice)) {
+                sum += values.get(slot * fields + field);
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Merged histogram of the last {@code slices} slices up to the current one
+     */
+    Histogram histogram(int slices, long currentSlice) {
+        Histogram histogram = null;
+        for (int slot = 0; slot < window.sliceCount; slot++) {
+            if (histogram == null) {
+                histogram = new Histogram(histograms[slot].highestTrackableValue(), histograms[slot].significantDigits());
+            }
+            if (inWindow(slotSlices.get(slot), slices, currentSlice)) {
+                histogram.add(histograms[slot]);
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Adds the counters of the retained slices of another ring of the same window to this one
+     */
+    void add(RollingCounters other) {
+        if (other.window != window || other.fields != fields) {
+            return;
+        }
+        long currentSlice = window.currentSlice(System.nanoTime());
+        for (int otherSlot = 0; otherSlot < window.sliceCount; otherSlot++) {
+            long slice = other.slotSlices.get(otherSlot);
+            if (inWindow(slice, window.sliceCount, currentSlice)) {
+                int slot = slot(slice);
+                for (int field = 0; field < fields; field++) {
+                    add(slot, field, other.values.get(otherSlot * fields + field));
+                }
+                if (histograms != null && other.histograms != null) {
+                    histograms[slot].add(other.histograms[otherSlot]);
+                }
+            }
+        }
+    }
+
+    private static boolean inWindow(long slice, int slices, long currentSlice) {
+        return slice >= 0L && slice <= currentSlice && slice > currentSlice - slices;
+    }
+}
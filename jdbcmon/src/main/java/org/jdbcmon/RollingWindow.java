@@ -0,0 +1,81 @@
+package org.jdbcmon;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.jdbcmon.Utils.checkArgument;
+
+/**
+ * Time axis of the rolling (time-windowed) statistics: the time since the window is created is split into slices
+ * of a fixed interval, the last {@code sliceCount} slices are retained by {@link RollingCounters}.
+ * Also defines the windows of the report: the last 1, 5 and 15 minutes (rounded up to whole slices), as far as
+ * the retention allows. Immutable.
+ */
+class RollingWindow {
+
+    private static final long[] REPORT_WINDOW_MINUTES = {1L, 5L, 15L};
+
+    final long intervalNanos;
+    final int sliceCount;
+    private final long startNanos;
+
+    /**
+     * Sizes of the report windows in slices, ascending
+     */
+    final int[] reportSlices;
+    /**
+     * Names of the report windows, e.g. "5m"
+     */
+    final String[] reportNames;
+
+    RollingWindow(long interval, TimeUnit unit, int sliceCount) {
+        this.intervalNanos = unit.toNanos(interval);
+        checkArgument(intervalNanos >= TimeUnit.MILLISECONDS.toNanos(1L), "Illegal interval %s %s", interval, unit);
+        checkArgument(sliceCount >= 1, "Illegal slice count %s", sliceCount);
+        this.sliceCount = sliceCount;
+        this.startNanos = System.nanoTime();
+
+        List<Integer> slices = new ArrayList<>();
+        for (long minutes : REPORT_WINDOW_MINUTES) {
+            long windowNanos = TimeUnit.MINUTES.toNanos(minutes);
+            int windowSlices = (int) Math.min((windowNanos + intervalNanos - 1) / intervalNanos, Integer.MAX_VALUE);
+            if (windowSlices <= sliceCount && !slices.contains(windowSlices)) {
+                slices.add(windowSlices);
+            }
+        }
+        if (slices.isEmpty()) {
+            // the retention is shorter than the smallest report window
+            slices.add(sliceCount);
+        }
+        this.reportSlices = new int[slices.size()];
+        this.reportNames = new String[slices.size()];
+        for (int i = 0; i < reportSlices.length; i++) {
+            reportSlices[i] = slices.get(i);
+            reportNames[i] = formatDuration(reportSlices[i] * intervalNanos);
+        }
+    }
+
+    long currentSlice(long nowNanos) {
+        return (nowNanos - startNanos) / intervalNanos;
+    }
+
+    /**
+     * Time covered by the last {@code slices} slices, the current one is covered only up to now. Not more than
+     * the time since the start, at least 1 ns.
+     */
+    long coveredNanos(int slices, long nowNanos) {
+        long elapsed = nowNanos - startNanos;
+        long covered = (slices - 1) * intervalNanos + elapsed % intervalNanos;
+        return Math.max(1L, Math.min(covered, elapsed));
+    }
+
+    private static String formatDuration(long nanos) {
+        if (nanos % TimeUnit.MINUTES.toNanos(1L) == 0L) {
+            return TimeUnit.NANOSECONDS.toMinutes(nanos) + "m";
+        } else if (nanos % TimeUnit.SECONDS.toNanos(1L) == 0L) {
+            return TimeUnit.NANOSECONDS.toSeconds(nanos) + "s";
+        }
+        return TimeUnit.NANOSECONDS.toMillis(nanos) + "ms";
+    }
+}
@@ -1,25 +0,0 @@
-package org.jdbcmon;
-
-enum RoundMode {
-
-    UP() {
-        @Override
-        long round(double value) {
-            return Math.round(Math.ceil(value));
-        }
-    },
-    DOWN() {
-        @Override
-        long round(double value) {
-            return Math.round(Math.floor(value));
-        }
-    },
-    ROUND() {
-        @Override
-        long round(double value) {
-            return Math.round(value);
-        }
-    };
-
-    abstract long round(double value);
-}
@@ -0,0 +1,196 @@
+package org.jdbcmon;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.jdbcmon.Utils.checkArgument;
+
+/**
+ * Sampling policy of the expensive part of the monitoring: time histograms, averages, rolling windows, fetch
+ * accounting and stack trace capture. The counters are always exact. A sampled call is registered with a weight,
+ * the number of calls it represents, so the histograms and sums are scaled estimates of all the calls.
+ * Thread safe.
+ */
+interface Sampler {
+
+    /**
+     * @param stat the statement of the call, null if it is not resolved (only used if {@link #isPerStatement()})
+     * @return the weight of the call if it is sampled, 0 if not
+     */
+    long sample(/*@Nullable*/ SqlStatementStat stat);
+
+    /**
+     * @return true if the sampling depends on the statement
+     */
+    boolean isPerStatement();
+
+    String describe();
+
+    /**
+     * Samples the calls with a fixed probability
+     */
+    static Sampler fixedRate(double rate) {
+        checkArgument(rate > 0.0d && rate <= 1.0d, "Illegal sampling rate %s", rate);
+        return new FixedRate(Math.max(1L, Math.round(1.0d / rate)));
+    }
+
+    /**
+     * Samples about the given number of calls per second of every statement, the rarely executed statements
+     * are sampled completely
+     */
+    static Sampler adaptive(int samplesPerSecond) {
+        checkArgument(samplesPerSecond >= 1, "Illegal samples per second %s", samplesPerSecond);
+        return new Adaptive(samplesPerSecond);
+    }
+
+    /**
+     * Samples at most the given number of calls per second in total
+     */
+    static Sampler tokenBucket(int samplesPerSecond) {
+        checkArgument(samplesPerSecond >= 1, "Illegal samples per second %s", samplesPerSecond);
+        return new TokenBucket(samplesPerSecond);
+    }
+
+    final class FixedRate implements Sampler {
+        private final long every;
+
+        private FixedRate(long every) {
+            this.every = every;
+        }
+
+        @Override
+        public long sample(/*@Nullable*/ SqlStatementStat stat) {
+            return sampleOneOf(every);
+        }
+
+        @Override
+        public boolean isPerStatement() {
+            return false;
+        }
+
+        @Override
+        public String describe() {
+            return "fixedRate 1/" + every;
+        }
+    }
+
+    final class Adaptive implements Sampler {
+        private static final long PERIOD_NANOS = TimeUnit.SECONDS.toNanos(1L);
+
+        private final long samplesPerSecond;
+
+        private Adaptive(long samplesPerSecond) {
+            this.samplesPerSecond = samplesPerSecond;
+        }
+
+        @Override
+        public long sample(/*@Nullable*/ SqlStatementStat stat) {
+            if (stat == null) {
+                return 1L;
+            }
+            Rate rate = stat.sampleRate;
+            long period = System.nanoTime() / PERIOD_NANOS;
+            long ratePeriod = rate.period.get();
+            if (period != ratePeriod && rate.period.compareAndSet(ratePeriod, period)) {
+                // once per period: the rate of the statement in the last period defines the sampling of the next one
+                long count = stat.executeCount.sum();
+                long calls = (count - rate.baseCount) / Math.max(period - ratePeriod, 1L);
+                rate.baseCount = count;
+                rate.every = Math.max(1L, calls / samplesPerSecond);
+            }
+            return sampleOneOf(rate.every);
+        }
+
+        @Override
+        public boolean isPerStatement() {
+            return true;
+        }
+
+        @Override
+        public String describe() {
+            return "adaptive " + samplesPerSecond + "/s per statement";
+        }
+    }
+
+    final class TokenBucket implements Sampler {
+        private static final long PERIOD_NANOS = TimeUnit.MILLISECONDS.toNanos(100L);
+
+        private final long samplesPerSecond;
+        private final long tokensPerPeriod;
+
+        private final AtomicLong period = new AtomicLong(-1L);
+        /**
+         * Calls in the current period, striped: every call counts
+         */
+        private final LongAdder calls = new LongAdder();
+        /**
+         * Samples left in the current period, only the sampled calls take one
+         */
+        private final AtomicLong tokens = new AtomicLong();
+        /**
+         * Set when no token is left, so the calls do not touch the tokens until the next period
+         */
+        private volatile boolean exhausted;
+        /**
+         * Calls per sample, from the calls of the previous period
+         */
+        private volatile long every = 1L;
+
+        private TokenBucket(long samplesPerSecond) {
+            this.samplesPerSecond = samplesPerSecond;
+            this.tokensPerPeriod = Math.max(1L, samplesPerSecond * PERIOD_NANOS / TimeUnit.SECONDS.toNanos(1L));
+        }
+
+        @Override
+        public long sample(/*@Nullable*/ SqlStatementStat stat) {
+            long period = System.nanoTime() / PERIOD_NANOS;
+            long currentPeriod = this.period.get();
+            if (period != currentPeriod && this.period.compareAndSet(currentPeriod, period)) {
+                // once per period: the calls of the last period define the probability of the next one, the tokens
+                // only cap a burst
+                long calls = this.calls.sumThenReset() / Math.max(period - currentPeriod, 1L);
+                every = Math.max(1L, (calls + tokensPerPeriod - 1) / tokensPerPeriod);
+                tokens.set(tokensPerPeriod);
+                exhausted = false;
+            }
+            calls.increment();
+            if (exhausted) {
+                return 0L;
+            }
+            long weight = sampleOneOf(every);
+            if (weight != 0L && tokens.decrementAndGet() < 0L) {
+                exhausted = true;
+                return 0L;
+            }
+            return weight;
+        }
+
+        @Override
+        public boolean isPerStatement() {
+            return false;
+        }
+
+        @Override
+        public String describe() {
+            return "tokenBucket " + samplesPerSecond + "/s";
+        }
+    }
+
+    /**
+     * Per-statement state of the {@link Adaptive} sampling
+     */
+    final class Rate {
+        private final AtomicLong period = new AtomicLong(-1L);
+        private volatile long baseCount;
+        private volatile long every = 1L;
+    }
+
+    static long sampleOneOf(long every) {
+        if (every == 1L) {
+            return 1L;
+        }
+        return ThreadLocalRandom.current().nextLong(every) == 0L ? every : 0L;
+    }
+}
@@ -0,0 +1,120 @@
+package org.jdbcmon;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import static org.jdbcmon.SqlStat.formatAvg;
+import static org.jdbcmon.SqlStatementStat.NANOS_TO_MILLIS_MULTIPLIER;
+
+/**
+ * Bounded buffer of the slowest executions: sql, bind parameters, duration, thread, optional caller frame
+ * and exception. Only the executions above the slow threshold get here, so adding is synchronized, but when
+ * the buffer is full the executions faster than all the kept ones are rejected without locking.
+ */
+class SlowQueryLog {
+
+    private static final Comparator<Entry> BY_DURATION = Comparator.comparingLong(e -> e.durationNanos);
+
+    static final class Entry {
+        final String sql;
+        //@Nullable
+        final String parameters;
+        final long durationNanos;
+        final long timestampMillis;
+        final String thread;
+        //@Nullable
+        final String caller;
+        //@Nullable
+        final String exception;
+
+        Entry(String sql, /*@Nullable*/ String parameters, long durationNanos, long timestampMillis, String thread,
+              /*@Nullable*/ String caller, /*@Nullable*/ String exception) {
+            this.sql = sql;
+            this.parameters = parameters;
+            this.durationNanos = durationNanos;
+            this.timestampMillis = timestampMillis;
+            this.thread = thread;
+            this.caller = caller;
+            this.exception = exception;
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("sql", sql);
+            if (parameters != null) {
+                map.put("parameters", parameters);
+            }
+            map.put("durationMs", formatAvg(durationNanos, 1L, NANOS_TO_MILLIS_MULTIPLIER));
+            map.put("timestamp", timestampMillis);
+            map.put("thread", thread);
+            if (caller != null) {
+                map.put("caller", caller);
+            }
+            if (exception != null) {
+                map.put("exception", exception);
+            }
+            return map;
+        }
+    }
+
+    private final int size;
+    final boolean captureCaller;
+    /**
+     * Min-heap of the kept entries by duration
+     */
+    private final PriorityQueue<Entry> entries;
+    /**
+     * Duration of the fastest kept entry when the buffer is full, 0 otherwise
+     */
+    private volatile long minDurationNanos;
+
+    /**
+     * @param captureCaller true to capture the first application frame of the stack
+     */
+    SlowQueryLog(int size, boolean captureCaller) {
+        Utils.checkArgument(size >= 1, "Illegal slow query log size %s", size);
+        this.size = size;
+        this.captureCaller = captureCaller;
+        this.entries = new PriorityQueue<>(size, BY_DURATION);
+    }
+
+    /**
+     * @return an empty log of the same size
+     */
+    SlowQueryLog copyConfiguration() {
+        return new SlowQueryLog(size, captureCaller);
+    }
+
+    /**
+     * @return true if an execution of the duration would be kept
+     */
+    boolean accepts(long durationNanos) {
+        return durationNanos > minDurationNanos;
+    }
+
+    synchronized void add(Entry entry) {
+        if (entries.size() >= size) {
+            if (entry.durationNanos <= entries.peek().durationNanos) {
+                return;
+            }
+            entries.poll();
+        }
+        entries.add(entry);
+        if (entries.size() >= size) {
+            minDurationNanos = entries.peek().durationNanos;
+        }
+    }
+
+    /**
+     * @return the entries, the slowest first
+     */
+    synchronized List<Entry> entries() {
+        List<Entry> list = new ArrayList<>(entries);
+        list.sort(BY_DURATION.reversed());
+        return list;
+    }
+}
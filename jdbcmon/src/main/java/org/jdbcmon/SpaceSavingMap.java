@@ -0,0 +1,106 @@
+package org.jdbcmon;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+
+/**
+ * Bounded map which keeps the heavy hitters with the Space-Saving algorithm (Metwally et al.). While there is room
+ * every new key is added. When the map is full, a new key replaces the entry with the minimal count, and the new
+ * value starts with that count as its overestimation, so that a key seen after the warm-up can still win its place
+ * from rarely used ones, while established heavy hitters are never evicted by one-off keys.
+ * <p>
+ * Thread safe: lookups of existing keys are lock-free, inserts are synchronized and scan the entries for the
+ * minimum only when the map is full.
+ *
+ * @param <K>
+ * @param <V>
+ */
+class SpaceSavingMap<K, V> {
+
+    interface Factory<K, V> {
+        /**
+         * @param overestimation the count inherited from the evicted entry, zero if nothing was evicted
+         */
+        V create(K key, long overestimation);
+    }
+
+    private final int size;
+    private final Factory<K, V> factory;
+    private final ToLongFunction<? super V> counter;
+    private final Consumer<? super V> evictionListener;
+    private final ConcurrentMap<K, V> map;
+
+    /**
+     * @param counter          count of the value (including the overestimation) the heavy hitters are selected by
+     * @param evictionListener notified about the evicted values
+     */
+    SpaceSavingMap(int size, Factory<K, V> factory, ToLongFunction<? super V> counter,
+                   Consumer<? super V> evictionListener) {
+        this.size = size;
+        this.factory = factory;
+        this.counter = counter;
+        this.evictionListener = evictionListener;
+        this.map = new ConcurrentHashMap<>();
+    }
+
+    V get(K key) {
+        V value = map.get(key);
+        if (value != null) {
+            return value;
+        }
+        return insert(key);
+    }
+
+    private synchronized V insert(K key) {
+        V value = map.get(key);
+        if (value != null) {
+            return value;
+        }
+        long overestimation = 0L;
+        if (map.size() >= size) {
+            K minKey = null;
+            V minValue = null;
+            long minCount = Long.MAX_VALUE;
+            for (Map.Entry<K, V> entry : map.entrySet()) {
+                long count = counter.applyAsLong(entry.getValue());
+                if (count < minCount) {
+                    minKey = entry.getKey();
+                    minValue = entry.getValue();
+                    minCount = count;
+                }
+            }
+            if (minKey != null) {
+                map.remove(minKey);
+                evictionListener.accept(minValue);
+                overestimation = minCount;
+            }
+        }
+        value = factory.create(key, overestimation);
+        map.put(key, value);
+        return value;
+    }
+
+    List<V> copyValues() {
+        return new ArrayList<>(map.values());
+    }
+
+    void forEach(BiConsumer<? super K, ? super V> visitor) {
+        map.forEach(visitor);
+    }
+
+    /**
+     * Removes all the entries. Unlike the evicted ones, the removed values are not passed to the eviction listener.
+     *
+     * @param removalListener notified about the removed values
+     */
+    synchronized void clear(Consumer<? super V> removalListener) {
+        map.values().forEach(removalListener);
+        map.clear();
+    }
+}
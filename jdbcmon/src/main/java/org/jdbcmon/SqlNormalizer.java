@@ -0,0 +1,347 @@
+package org.jdbcmon;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Normalizes sql text, so that statements which differ only by literal values collapse into one stat entry:
+ * <ul>
+ * <li>string and numeric literals are replaced with {@code ?}, a unary sign of a number included</li>
+ * <li>IN-lists of values of any arity are collapsed to {@code in (?)}</li>
+ * <li>comments are removed, whitespace runs are collapsed to a single space, there are no spaces inside
+ * parentheses or before commas, one after a comma and one around an operator</li>
+ * <li>unquoted text is lower-cased, quoted identifiers are kept as is</li>
+ * </ul>
+ * The normalization is a single pass over the text into one builder. The results are cached, the cache is bounded
+ * and is simply cleared when full. Thread safe.
+ */
+class SqlNormalizer {
+
+    private static final int WORD = 1;
+    private static final int VALUE = 2;
+    private static final int QUOTED = 3;
+    private static final int PUNCT = 4;
+
+    // IN-list collapsing states
+    private static final int LIST_NONE = 0;
+    private static final int LIST_IN = 1;
+    private static final int LIST_OPEN = 2;
+    private static final int LIST_VALUE = 3;
+    private static final int LIST_COMMA = 4;
+
+    /**
+     * Keywords after which a sign starts a number, after the other words it is a binary operator
+     */
+    private static final String[] SIGN_KEYWORDS = {"and", "or", "not", "select", "where", "between", "when",
+            "then", "else", "values", "like", "having", "on", "case", "return", "limit", "offset", "by"};
+
+    private final int cacheSize;
+    private final ConcurrentMap<String, String> cache = new ConcurrentHashMap<>();
+
+    SqlNormalizer(int cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    String normalize(String sql) {
+        String normalized = cache.get(sql);
+        if (normalized == null) {
+            normalized = normalizeUncached(sql);
+            if (cache.size() >= cacheSize) {
+                cache.clear();
+            }
+            cache.put(sql, normalized);
+        }
+        return normalized;
+    }
+
+    static String normalizeUncached(String sql) {
+        int length = sql.length();
+        StringBuilder sb = new StringBuilder(length);
+        boolean space = false;
+        boolean lastOperator = false;
+        boolean lastSign = false;
+        // true if a value may start here, then a sign is unary
+        boolean valueExpected = true;
+        int listState = LIST_NONE;
+        int i = 0;
+        while (i < length) {
+            char c = sql.charAt(i);
+            char next = i + 1 < length ? sql.charAt(i + 1) : 0;
+
+            if (Character.isWhitespace(c)) {
+                space = true;
+                i++;
+                continue;
+            }
+            if (c == '-' && next == '-') {
+                i = skipLineComment(sql, i);
+                space = true;
+                continue;
+            }
+            if (c == '/' && next == '*') {
+                i = skipBlockComment(sql, i);
+                space = true;
+                continue;
+            }
+
+            int type;
+            int end;
+            boolean operator = false;
+            boolean sign = false;
+            int number = valueExpected && (c == '-' || c == '+') ? skipSign(sql, i + 1) : -1;
+            if (number >= 0) {
+                type = VALUE;
+                end = skipNumber(sql, number);
+            } else if (c == '\'') {
+                type = VALUE;
+                end = skipQuoted(sql, i, '\'');
+            } else if (isLiteralPrefix(c) && next == '\'') {
+                // N'...', E'...', X'...', B'...'
+                type = VALUE;
+                end = skipQuoted(sql, i + 1, '\'');
+            } else if (c == '"' || c == '`') {
+                type = QUOTED;
+                end = skipQuoted(sql, i, c);
+            } else if (c == '[' && (Character.isLetter(next) || next == '_')) {
+                // [identifier] of SQL Server, not an array subscript
+                type = QUOTED;
+                end = skipQuoted(sql, i, ']');
+            } else if (isDigit(c) || (c == '.' && isDigit(next))) {
+                type = VALUE;
+                end = skipNumber(sql, i);
+            } else if (c == '?' || (c == '$' && isDigit(next))) {
+                type = VALUE;
+                end = c == '?' ? i + 1 : skipNumber(sql, i + 1);
+            } else if (Character.isLetter(c) || c == '_') {
+                type = WORD;
+                end = skipWord(sql, i);
+            } else if (isOperator(c)) {
+                type = PUNCT;
+                // a unary sign of an expression, as in -b, is written with no space after
+                sign = valueExpected && (c == '-' || c == '+');
+                end = sign ? i + 1 : skipOperator(sql, i);
+                operator = true;
+            } else {
+                type = PUNCT;
+                end = i + 1;
+            }
+
+            // IN-list collapsing: the first value of the list is written, the next ones are dropped with their commas
+            switch (listState) {
+                case LIST_IN:
+                    listState = type == PUNCT && c == '(' ? LIST_OPEN : LIST_NONE;
+                    break;
+                case LIST_OPEN:
+                    listState = type == VALUE ? LIST_VALUE : LIST_NONE;
+                    break;
+                case LIST_VALUE:
+                    if (type == PUNCT && c == ',') {
+                        listState = LIST_COMMA;
+                        i = end;
+                        space = false;
+                        valueExpected = true;
+                        continue;
+                    }
+                    listState = LIST_NONE;
+                    break;
+                case LIST_COMMA:
+                    if (type == VALUE) {
+                        listState = LIST_VALUE;
+                        i = end;
+                        space = false;
+                        valueExpected = false;
+                        continue;
+                    }
+                    // not a list of values, write the dropped comma
+                    appendSeparator(sb, false, false, ',');
+                    sb.append(',');
+                    listState = LIST_NONE;
+                    break;
+                default:
+                    break;
+            }
+
+            if (!lastSign) {
+                appendSeparator(sb, space, operator || lastOperator, c);
+            }
+            space = false;
+            lastOperator = operator && !sign;
+            lastSign = sign;
+            valueExpected = type == WORD ? isSignKeyword(sql, i, end) : type == PUNCT && c != ')' && c != ']';
+            if (type == VALUE) {
+                sb.append('?');
+            } else if (type == WORD) {
+                for (int j = i; j < end; j++) {
+                    sb.append(Character.toLowerCase(sql.charAt(j)));
+                }
+                if (end - i == 2 && (c == 'i' || c == 'I') && (next == 'n' || next == 'N')) {
+                    listState = LIST_IN;
+                }
+            } else {
+                sb.append(sql, i, end);
+            }
+            i = end;
+        }
+        if (listState == LIST_COMMA) {
+            sb.append(',');
+        }
+        return sql.contentEquals(sb) ? sql : sb.toString();
+    }
+
+    /**
+     * @param operator true if the token or the previous one is an operator, then they are separated by a space
+     *                 as if the sql had one
+     */
+    private static void appendSeparator(StringBuilder sb, boolean space, boolean operator, char tokenStart) {
+        int length = sb.length();
+        if (length == 0) {
+            return;
+        }
+        char last = sb.charAt(length - 1);
+        if (last == ',') {
+            sb.append(' ');
+        } else if ((space || operator && last != '.') && last != '(' && tokenStart != ')' && tokenStart != ',') {
+            sb.append(' ');
+        }
+    }
+
+    /**
+     * @param i index after a sign
+     * @return index of the number the sign is followed by, -1 if it is not
+     */
+    private static int skipSign(String sql, int i) {
+        int length = sql.length();
+        int j = i;
+        while (j < length && Character.isWhitespace(sql.charAt(j))) {
+            j++;
+        }
+        if (j < length && (isDigit(sql.charAt(j))
+                || (sql.charAt(j) == '.' && j + 1 < length && isDigit(sql.charAt(j + 1))))) {
+            return j;
+        }
+        return -1;
+    }
+
+    private static boolean isSignKeyword(String sql, int i, int end) {
+        for (String keyword : SIGN_KEYWORDS) {
+            if (keyword.length() == end - i && sql.regionMatches(true, i, keyword, 0, keyword.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isLiteralPrefix(char c) {
+        switch (c) {
+            case 'n': case 'N': case 'e': case 'E': case 'x': case 'X': case 'b': case 'B':
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isOperator(char c) {
+        switch (c) {
+            case '<': case '>': case '=': case '!': case '|': case '&': case '+': case '-': case '*': case '/':
+            case '%': case '^': case '~':
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static int skipLineComment(String sql, int i) {
+        int end = sql.indexOf('\n', i + 2);
+        return end < 0 ? sql.length() : end + 1;
+    }
+
+    private static int skipBlockComment(String sql, int i) {
+        int end = sql.indexOf("*/", i + 2);
+        return end < 0 ? sql.length() : end + 2;
+    }
+
+    /**
+     * @return index after the closing quote, a doubled closing quote is an escaped one
+     */
+    private static int skipQuoted(String sql, int i, char close) {
+        int length = sql.length();
+        int j = i + 1;
+        while (j < length) {
+            if (sql.charAt(j) == close) {
+                if (j + 1 < length && sql.charAt(j + 1) == close && close != ']') {
+                    j += 2;
+                    continue;
+                }
+                return j + 1;
+            }
+            j++;
+        }
+        return length;
+    }
+
+    private static int skipNumber(String sql, int i) {
+        int length = sql.length();
+        int j = i;
+        if (sql.charAt(j) == '0' && j + 1 < length && (sql.charAt(j + 1) == 'x' || sql.charAt(j + 1) == 'X')) {
+            j += 2;
+            while (j < length && Character.digit(sql.charAt(j), 16) >= 0) {
+                j++;
+            }
+            return j;
+        }
+        while (j < length) {
+            char c = sql.charAt(j);
+            if (isDigit(c) || c == '.') {
+                j++;
+            } else if ((c == 'e' || c == 'E') && j + 1 < length) {
+                char next = sql.charAt(j + 1);
+                if (isDigit(next)) {
+                    j += 2;
+                } else if ((next == '+' || next == '-') && j + 2 < length && isDigit(sql.charAt(j + 2))) {
+                    j += 3;
+                } else {
+                    break;
+                }
+            } else {
+                break;
+            }
+        }
+        return j;
+    }
+
+    private static int skipWord(String sql, int i) {
+        int length = sql.length();
+        int j = i + 1;
+        while (j < length) {
+            char c = sql.charAt(j);
+            if (Character.isLetterOrDigit(c) || c == '_' || c == '$' || c == '#') {
+                j++;
+            } else {
+                break;
+            }
+        }
+        return j;
+    }
+
+    private static int skipOperator(String sql, int i) {
+        int length = sql.length();
+        int j = i + 1;
+        while (j < length && isOperator(sql.charAt(j))) {
+            char c = sql.charAt(j);
+            char next = j + 1 < length ? sql.charAt(j + 1) : 0;
+            if ((c == '-' && next == '-') || (c == '/' && next == '*')) {
+                break;
+            }
+            // a sign, as in a=-1 or a<-b, but not the arrows
+            if ((c == '-' || c == '+') && !isOperator(next)) {
+                break;
+            }
+            j++;
+        }
+        return j;
+    }
+}
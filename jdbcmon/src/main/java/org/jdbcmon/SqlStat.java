@@ -2,70 +2,647 @@ package org.jdbcmon;
 
 import static java.util.Comparator.reverseOrder;
 
-import java.io.PrintWriter;
-import java.io.StringWriter;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
+/**
+ * Statistics of all the statements of a data source. Thread safe and lock-free: the recording path only updates
+ * striped counters, so threads executing different (or the same) statements do not serialize on a shared monitor.
+ * Reports are built from snapshots of the counters and never block writers.
+ */
 class SqlStat {
 
-    private static final double AVG_FACTOR = 0.2d;
     private static final int MAP_SIZE = 256;
+    private static final int NORMALIZER_CACHE_SIZE = 1024;
+    static final String OTHER_SQL = "[other]";
+    private static final int TAG_SETS_SIZE = 128;
+    private static final String OTHER_TAGS = "[other]";
+    private static final int FINDINGS_SIZE = 64;
+
+    // types of the findings of the units of work
+    static final String FINDING_N_PLUS_ONE = "N+1";
+    static final String FINDING_REPEATED = "repeated";
+    private static final int DEFAULT_HISTOGRAM_DIGITS = 1;
+    private static final long DEFAULT_WINDOW_INTERVAL_SECONDS = 10L;
+    private static final int DEFAULT_WINDOW_SLICES = 90;
+
+    // types of the events of the AsyncAggregator
+    private static final int EVENT_PREPARE = 1;
+    private static final int EVENT_EXECUTE = 2;
+    private static final int EVENT_FETCH = 3;
+    private static final int EVENT_BATCH_SIZE = 4;
+    private static final int EVENT_UPDATE = 5;
+    private static final int EVENT_UPDATES = 6;
+    private static final int EVENT_LARGE_UPDATES = 7;
+    private static final int EVENT_RESULT_SET_SIZE = 8;
+
+    final long startNanos;
     /**
-     * Multiplier constant to convert nanos to millis
+     * Monitoring time of the statistics restored from files, see {@link StatisticsFile}
      */
-    private static final double NANOS_TO_MILLIS_MULTIPLIER = 0.000001d;
+    private final AtomicLong restoredUptimeMs = new AtomicLong();
 
-    private final long startNanos = System.nanoTime();
+    private final LongAdder totalPrepareCount = new LongAdder();
+    private final LongAdder totalExecuteCount = new LongAdder();
+    private final LongAdder totalExecuteTimeNanos = new LongAdder();
+    private final LongAdder totalFetchTimeNanos = new LongAdder();
 
-    private long totalPrepareCount;
-    private long totalExecuteCount;
-    private long totalExecuteTimeNanos;
-    private long totalFetchTimeNanos;
+    /**
+     * Significant decimal digits of the time histograms of the statements registered from now on
+     */
+    private volatile int histogramDigits = DEFAULT_HISTOGRAM_DIGITS;
 
-    private final LimitedMap<String, SqlStatementStat> sqlMap = new LimitedMap<>(MAP_SIZE);
+    private volatile RollingWindow window = new RollingWindow(DEFAULT_WINDOW_INTERVAL_SECONDS, TimeUnit.SECONDS,
+            DEFAULT_WINDOW_SLICES);
+    /**
+     * Totals of the recent time slices, with the execute time histogram
+     */
+    private volatile RollingCounters totalWindowCounters = newTotalWindowCounters(window);
+
+    private final SpaceSavingMap<String, SqlStatementStat> sqlMap = new SpaceSavingMap<>(MAP_SIZE,
+            (sql, overestimation) -> new SqlStatementStat(sql, overestimation, histogramDigits, window),
+            SqlStatementStat::count, this::evict);
+    /**
+     * Totals of the statements evicted from {@link #sqlMap} and folded from {@link #retiredStats}, replaced on reset
+     */
+    private volatile SqlStatementStat otherStat = newOtherStat();
+    /**
+     * The evicted statements which writers resolved before the eviction may still add to: their live counters are
+     * added to the {@code [other]} totals when read, until the last writer is done and they are folded into
+     * {@link #otherStat}. Guarded by itself, with otherStat.
+     */
+    private final List<SqlStatementStat> retiredStats = new ArrayList<>();
+    private final LongAdder evictedCount = new LongAdder();
+    /**
+     * The last snapshot, shared by the readers which accept a stale one
+     */
+    //@Nullable
+    private volatile MonitoringSnapshot lastSnapshot;
+
+    final ConnectionStat connectionStat = new ConnectionStat();
+
+    /**
+     * Tag set of {@link MonitoringContext} -> totals, replaced on reset
+     */
+    private volatile LimitedMap<String, TagStat> tagStats = new LimitedMap<>(TAG_SETS_SIZE);
+    /**
+     * Totals of the tag sets which do not fit into {@link #tagStats}
+     */
+    private volatile TagStat otherTagStat = new TagStat(OTHER_TAGS);
+
+    /**
+     * Null if the sql is used as is
+     */
+    //@Nullable
+    private volatile SqlNormalizer normalizer;
+    /**
+     * Null if the events are aggregated on the calling threads
+     */
+    //@Nullable
+    private volatile AsyncAggregator aggregator;
+    /**
+     * Null if every call is sampled
+     */
+    //@Nullable
+    private volatile Sampler sampler;
+    /**
+     * The executions of at least this time are slow: always sampled and logged in {@link #slowQueryLog}
+     */
+    private volatile long slowThresholdNanos = Long.MAX_VALUE;
+    /**
+     * Slow thresholds of particular statements by (normalized) sql, overriding {@link #slowThresholdNanos}
+     */
+    private final ConcurrentMap<String, Long> sqlSlowThresholds = new ConcurrentHashMap<>();
+    /**
+     * Minimum of all the slow thresholds, the faster executions are not checked further
+     */
+    private volatile long minSlowThresholdNanos = Long.MAX_VALUE;
+    /**
+     * Null if the slow queries are not logged
+     */
+    //@Nullable
+    private volatile SlowQueryLog slowQueryLog;
+    /**
+     * Null if the executions are not attributed to the call sites
+     */
+    //@Nullable
+    private volatile CallSites callSites;
+    /**
+     * The executions of a statement above this number in a unit of work are reported as N+1,
+     * 0 if the units of work are not tracked
+     */
+    private volatile int nPlusOneThreshold;
+    /**
+     * Type and (normalized) sql -> the totals of the finding
+     */
+    private volatile LimitedMap<String, Finding> findings = new LimitedMap<>(FINDINGS_SIZE);
+    /**
+     * Number of the bind parameters captured per prepared statement, 0 if not captured
+     */
+    private volatile int bindParameterCount;
+    private volatile int bindParameterMaxLength;
+    private volatile boolean bindParameterRedact;
+    /**
+     * Records the events to disk, null if not enabled
+     */
+    //@Nullable
+    private volatile EventRecorder recorder;
+    /**
+     * Writes the statistics to a file periodically, null if not enabled
+     */
+    //@Nullable
+    private volatile StatisticsPersistence persistence;
+    /**
+     * The statistics files these statistics were saved to or merged from, normalized: the persistence does not
+     * restore them again
+     */
+    private final Set<Path> statisticsFiles = ConcurrentHashMap.newKeySet();
 
     SqlStat() {
+        this(System.nanoTime());
+    }
+
+    /**
+     * @param startNanos the start of the monitoring, the rates of the report are computed from it
+     */
+    SqlStat(long startNanos) {
+        this.startNanos = startNanos;
+    }
+
+    void setHistogramDigits(int histogramDigits) {
+        Utils.checkArgument(histogramDigits >= 1 && histogramDigits <= 3, "Illegal histogram digits %s", histogramDigits);
+        this.histogramDigits = histogramDigits;
+    }
+
+    /**
+     * Replaces the rolling window, the windowed statistics collected so far are dropped
+     */
+    void setRollingWindow(long interval, TimeUnit unit, int sliceCount) {
+        RollingWindow window = new RollingWindow(interval, unit, sliceCount);
+        this.window = window;
+        this.totalWindowCounters = newTotalWindowCounters(window);
+        sqlMap.forEach((sql, stat) -> stat.windowCounters = SqlStatementStat.newWindowCounters(window));
+        synchronized (retiredStats) {
+            retiredStats.forEach(stat -> stat.windowCounters = SqlStatementStat.newWindowCounters(window));
+            otherStat.windowCounters = SqlStatementStat.newWindowCounters(window);
+        }
+    }
+
+    private RollingCounters newTotalWindowCounters(RollingWindow window) {
+        int digits = histogramDigits;
+        return new RollingCounters(window, SqlStatementStat.WINDOW_FIELDS,
+                () -> SqlStatementStat.newTimeHistogram(digits));
+    }
+
+    private SqlStatementStat newOtherStat() {
+        return new SqlStatementStat(OTHER_SQL, 0L, DEFAULT_HISTOGRAM_DIGITS, window);
+    }
+
+    /**
+     * @param bufferSize 0 to aggregate on the calling threads
+     */
+    synchronized void setAsyncAggregation(int bufferSize, boolean dropOnOverflow) {
+        AsyncAggregator previous = this.aggregator;
+        this.aggregator = bufferSize == 0 ? null : new AsyncAggregator(bufferSize, dropOnOverflow, this::handleEvent);
+        if (previous != null) {
+            previous.stop();
+        }
+    }
+
+    void setSampler(/*@Nullable*/ Sampler sampler) {
+        this.sampler = sampler;
+    }
+
+    void setSlowThreshold(long slowThreshold, TimeUnit unit) {
+        Utils.checkArgument(slowThreshold > 0L, "Illegal slow threshold %s", slowThreshold);
+        this.slowThresholdNanos = unit.toNanos(slowThreshold);
+        updateMinSlowThreshold();
+    }
+
+    /**
+     * Slow threshold of a particular statement, overrides the global one
+     */
+    void setSlowThreshold(String sql, long slowThreshold, TimeUnit unit) {
+        Utils.checkArgument(slowThreshold > 0L, "Illegal slow threshold %s", slowThreshold);
+        sqlSlowThresholds.put(key(sql), unit.toNanos(slowThreshold));
+        updateMinSlowThreshold();
+    }
+
+    private synchronized void updateMinSlowThreshold() {
+        long min = slowThresholdNanos;
+        for (long threshold : sqlSlowThresholds.values()) {
+            min = Math.min(min, threshold);
+        }
+        this.minSlowThresholdNanos = min;
+    }
+
+    /**
+     * @param key the (normalized) sql
+     */
+    private long slowThreshold(String key) {
+        Long threshold = sqlSlowThresholds.get(key);
+        return threshold == null ? slowThresholdNanos : threshold;
+    }
+
+    private boolean isSlow(SqlStatementStat stat, long timeNanos) {
+        return timeNanos >= minSlowThresholdNanos && timeNanos >= slowThreshold(stat.sql);
+    }
+
+    /**
+     * Replaces the statistics persistence, closing the previous one
+     *
+     * @param persistence null to stop persisting
+     */
+    void setPersistence(/*@Nullable*/ StatisticsPersistence persistence) {
+        StatisticsPersistence previous = this.persistence;
+        this.persistence = persistence;
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    /**
+     * Registers a file the statistics were saved to or merged from
+     */
+    void addStatisticsFile(Path file) {
+        statisticsFiles.add(file.toAbsolutePath().normalize());
+    }
+
+    /**
+     * @return true if the statistics were saved to or merged from the file, then they include its content
+     */
+    boolean containsStatisticsFile(Path file) {
+        return statisticsFiles.contains(file.toAbsolutePath().normalize());
+    }
+
+    /**
+     * Replaces the event recorder, closing the previous one
+     *
+     * @param recorder null to stop recording
+     */
+    void setEventRecorder(/*@Nullable*/ EventRecorder recorder) {
+        EventRecorder previous = this.recorder;
+        this.recorder = recorder;
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    /**
+     * @param size 0 to not log the slow queries
+     */
+    void setSlowQueryLog(int size, boolean captureCaller) {
+        this.slowQueryLog = size == 0 ? null : new SlowQueryLog(size, captureCaller);
+    }
+
+    /**
+     * @param sampleRate        fraction of the executions to attribute, 0.0 to disable
+     * @param frameworkPackages package prefixes of the frames to skip
+     */
+    void setCallSiteAttribution(double sampleRate, String... frameworkPackages) {
+        Utils.checkArgument(sampleRate >= 0.0d && sampleRate <= 1.0d, "Illegal sampling rate %s", sampleRate);
+        this.callSites = sampleRate == 0.0d ? null
+                : new CallSites(Math.max(1L, Math.round(1.0d / sampleRate)), frameworkPackages);
     }
 
-    synchronized List<Map<String, ?>> shortReport() {
+    /**
+     * @param threshold 0 to not track the units of work
+     */
+    void setNPlusOneDetection(int threshold) {
+        Utils.checkArgument(threshold >= 0, "Illegal N+1 threshold %s", threshold);
+        this.nPlusOneThreshold = threshold;
+    }
+
+    /**
+     * @param maxParameters 0 to not capture the bind parameters of the statements prepared from now on
+     */
+    void setBindParameterCapture(int maxParameters, int maxValueLength, boolean redact) {
+        Utils.checkArgument(maxParameters >= 0, "Illegal max parameters %s", maxParameters);
+        Utils.checkArgument(maxValueLength >= 1, "Illegal max value length %s", maxValueLength);
+        this.bindParameterMaxLength = maxValueLength;
+        this.bindParameterRedact = redact;
+        this.bindParameterCount = maxParameters;
+    }
+
+    /**
+     * @return the capture of the bind parameters for a new prepared statement, null if disabled
+     */
+    //@Nullable
+    BindParameters newBindParameters() {
+        int count = bindParameterCount;
+        return count == 0 ? null : new BindParameters(count, bindParameterMaxLength, bindParameterRedact);
+    }
+
+    void setSqlNormalization(boolean enabled) {
+        this.normalizer = enabled ? new SqlNormalizer(NORMALIZER_CACHE_SIZE) : null;
+    }
+
+    List<Map<String, ?>> shortReport() {
         Map<String, Object> map = new HashMap<>();
-        map.put("totalExecuteCount", totalExecuteCount);
-        map.put("totalExecuteTimeMs", TimeUnit.NANOSECONDS.toMillis(totalExecuteTimeNanos));
+        map.put("totalExecuteCount", totalExecuteCount.sum());
+        map.put("totalExecuteTimeMs", TimeUnit.NANOSECONDS.toMillis(totalExecuteTimeNanos.sum()));
+        map.put("executeTime", SqlStatementStat.getPercentilesReport(getTotalExecuteHistogram()));
         map.put("avgActive", getAvgActive());
+        Map<String, Object> windows = getWindowsReport();
+        if (!windows.isEmpty()) {
+            map.put("windows", windows);
+        }
+        long evictedCount = this.evictedCount.sum();
+        if (evictedCount > 0) {
+            map.put("evictedStatements", evictedCount);
+        }
+        map.put("connections", connectionStat.report());
+        Map<String, Object> tags = getTagsReport();
+        if (!tags.isEmpty()) {
+            map.put("tags", tags);
+        }
+        AsyncAggregator aggregator = this.aggregator;
+        if (aggregator != null) {
+            map.put("async", aggregator.report());
+        }
+        Sampler sampler = this.sampler;
+        if (sampler != null) {
+            map.put("sampling", sampler.describe());
+        }
+        if (slowQueryLog != null) {
+            map.put("slowQueries", slowQueries());
+        }
+        CallSites callSites = this.callSites;
+        if (callSites != null) {
+            map.put("callSiteSampling", callSites.describe());
+        }
+        List<Map<String, Object>> leakedStatements = getLeakedStatementsReport();
+        if (!leakedStatements.isEmpty()) {
+            map.put("leakedStatements", leakedStatements);
+        }
+        List<Map<String, Object>> findings = getFindingsReport();
+        if (!findings.isEmpty()) {
+            map.put("findings", findings);
+        }
         return Arrays.asList(map);
     }
 
-    synchronized List<Map<String, ?>> report(/*@Nullable*/ String sort, boolean plain) {
-        long uptimeSeconds = TimeUnit.MILLISECONDS.toSeconds(getUptimeMs());
+    List<Map<String, ?>> report(/*@Nullable*/ String sort, boolean plain) {
+        MonitoringSnapshot snapshot = snapshot();
+        long uptimeSeconds = TimeUnit.MILLISECONDS.toSeconds(snapshot.getUptimeMillis());
 
         List<Map<String, ?>> res = new ArrayList<>();
 
         res.addAll(shortReport());
 
-        List<SqlStatementStat> statsToSort = sqlMap.copyValues();
+        // sort stable snapshots: the live counters may change while sorting
+        List<StatementSnapshot> statsToSort = new ArrayList<>();
+        StatementSnapshot other = null;
+        for (StatementSnapshot statement : snapshot.getStatements()) {
+            if (statement.isOther()) {
+                other = statement;
+            } else {
+                statsToSort.add(statement);
+            }
+        }
         statsToSort.sort(getComparator(sort));
 
-        for (SqlStatementStat statEntry : statsToSort) {
+        for (StatementSnapshot statEntry : statsToSort) {
             res.add(statEntry.getStat(uptimeSeconds, plain));
         }
+        if (other != null) {
+            res.add(other.getStat(uptimeSeconds, plain));
+        }
 
         return res;
     }
 
-    private static Comparator<SqlStatementStat> getComparator(/*@Nullable*/ String sort) {
+    /**
+     * Reads the counters of all the statements once, including the events published to the
+     * {@link AsyncAggregator} so far
+     */
+    MonitoringSnapshot snapshot() {
+        AsyncAggregator aggregator = this.aggregator;
+        if (aggregator != null) {
+            aggregator.flush();
+        }
+        List<StatementSnapshot> statements = new ArrayList<>();
+        sqlMap.forEach((sql, stat) -> statements.add(stat.snapshot()));
+        statements.sort(getComparator(null));
+        StatementSnapshot other = getOtherTotals().snapshot();
+        if (other.executeCount > 0 || other.prepareCount > 0) {
+            statements.add(other);
+        }
+        MonitoringSnapshot snapshot = new MonitoringSnapshot(getUptimeMs(), totalPrepareCount.sum(),
+                totalExecuteCount.sum(), totalExecuteTimeNanos.sum(), totalFetchTimeNanos.sum(), evictedCount.sum(),
+                statements);
+        lastSnapshot = snapshot;
+        return snapshot;
+    }
+
+    /**
+     * Visits the statements of the table and the totals of the {@code [other]} statement, the last one, including
+     * the events published to the {@link AsyncAggregator} so far
+     */
+    void forEachStatement(Consumer<SqlStatementStat> visitor) {
+        AsyncAggregator aggregator = this.aggregator;
+        if (aggregator != null) {
+            aggregator.flush();
+        }
+        sqlMap.forEach((sql, stat) -> visitor.accept(stat));
+        visitor.accept(getOtherTotals());
+    }
+
+    /**
+     * @return the {@code [other]} statement the restored totals are added to, replaced on reset. Without the
+     * retired statements, see {@link #getOtherTotals()}.
+     */
+    //@Nonnull
+    SqlStatementStat getOtherStat() {
+        return otherStat;
+    }
+
+    /**
+     * @return a copy of the totals of the evicted statements: the folded ones and the live counters of the retired
+     * ones, each counted once
+     */
+    //@Nonnull
+    SqlStatementStat getOtherTotals() {
+        synchronized (retiredStats) {
+            foldRetired();
+            SqlStatementStat totals = newOtherStat();
+            totals.merge(otherStat);
+            retiredStats.forEach(totals::merge);
+            return totals;
+        }
+    }
+
+    /**
+     * @return a statement with the settings of the registered ones, not registered: the restored statistics are read
+     * into it, then merged with {@link #mergeStatement(SqlStatementStat, boolean)}
+     */
+    SqlStatementStat newDetachedStat(String sql) {
+        return new SqlStatementStat(sql, 0L, histogramDigits, window);
+    }
+
+    /**
+     * Adds the statistics of a restored statement, see {@link StatisticsFile}
+     *
+     * @param other true to add them to the {@code [other]} totals
+     */
+    void mergeStatement(SqlStatementStat restored, boolean other) {
+        if (other) {
+            synchronized (retiredStats) {
+                otherStat.merge(restored);
+            }
+            return;
+        }
+        SqlStatementStat stat = enter(restored.sql);
+        try {
+            stat.merge(restored);
+        } finally {
+            stat.exitedCount.increment();
+        }
+    }
+
+    /**
+     * Adds the totals of restored statistics, see {@link StatisticsFile}
+     *
+     * @param concurrent true if the statistics were collected during the same time as these ones, by another node:
+     *                   then the uptime is the longest one, otherwise they were collected before and the uptimes add up
+     */
+    void mergeTotals(long uptimeMs, long prepareCount, long executeCount, long executeTimeNanos, long fetchTimeNanos,
+                     long evictedStatementCount, boolean concurrent) {
+        if (concurrent) {
+            long liveUptimeMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+            restoredUptimeMs.accumulateAndGet(uptimeMs - liveUptimeMs, Math::max);
+        } else {
+            restoredUptimeMs.addAndGet(uptimeMs);
+        }
+        totalPrepareCount.add(prepareCount);
+        totalExecuteCount.add(executeCount);
+        totalExecuteTimeNanos.add(executeTimeNanos);
+        totalFetchTimeNanos.add(fetchTimeNanos);
+        evictedCount.add(evictedStatementCount);
+    }
+
+    /**
+     * Lets the exporters reading many values one by one (JMX attributes, meters) share one snapshot. Concurrent
+     * readers of a stale snapshot may each take a new one, they are not blocked.
+     *
+     * @return the last snapshot if it is not older than the max age, otherwise a new one
+     */
+    MonitoringSnapshot snapshot(long maxAgeNanos) {
+        MonitoringSnapshot snapshot = lastSnapshot;
+        if (snapshot == null || System.nanoTime() - snapshot.nanoTime > maxAgeNanos) {
+            snapshot = snapshot();
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return the logged slow queries, the slowest first
+     */
+    List<Map<String, ?>> slowQueries() {
+        SlowQueryLog slowQueryLog = this.slowQueryLog;
+        List<Map<String, ?>> res = new ArrayList<>();
+        if (slowQueryLog != null) {
+            for (SlowQueryLog.Entry entry : slowQueryLog.entries()) {
+                res.add(entry.toMap());
+            }
+        }
+        return res;
+    }
+
+    /**
+     * @return the statements with leaks, the most leaked first
+     */
+    private List<Map<String, Object>> getLeakedStatementsReport() {
+        List<SqlStatementStat> stats = sqlMap.copyValues();
+        stats.add(getOtherTotals());
+        stats.removeIf(stat -> stat.leakedStatementCount.sum() == 0L);
+        stats.sort(Comparator.comparing((SqlStatementStat e) -> e.leakedStatementCount.sum()).reversed());
+        List<Map<String, Object>> res = new ArrayList<>();
+        for (SqlStatementStat stat : stats) {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("sql", stat.sql);
+            map.put("leakedCount", stat.leakedStatementCount.sum());
+            res.add(map);
+        }
+        return res;
+    }
+
+    /**
+     * @return the findings, the most wasteful first
+     */
+    private List<Map<String, Object>> getFindingsReport() {
+        List<Finding> findings = this.findings.copyValues();
+        findings.sort(Comparator.comparing((Finding e) -> e.wastedTimeNanos.sum()).reversed());
+        List<Map<String, Object>> res = new ArrayList<>();
+        for (Finding finding : findings) {
+            res.add(finding.report());
+        }
+        return res;
+    }
+
+    private Map<String, Object> getTagsReport() {
+        List<TagStat> stats = tagStats.copyValues();
+        stats.add(otherTagStat);
+        stats.sort(Comparator.comparing((TagStat e) -> e.totalExecuteTimeNanos.sum()).reversed());
+        Map<String, Object> tags = new LinkedHashMap<>();
+        for (TagStat stat : stats) {
+            if (stat.executeCount.sum() > 0) {
+                tags.put(stat.tags, stat.report());
+            }
+        }
+        return tags;
+    }
+
+    /**
+     * Totals of the report windows (the last minutes), including the windowed average active connections
+     */
+    private Map<String, Object> getWindowsReport() {
+        RollingCounters counters = this.totalWindowCounters;
+        RollingWindow window = counters.window;
+        long nowNanos = System.nanoTime();
+        long currentSlice = window.currentSlice(nowNanos);
+        Map<String, Object> windows = new LinkedHashMap<>();
+        for (int i = 0; i < window.reportSlices.length; i++) {
+            int slices = window.reportSlices[i];
+            long executeCount = counters.sum(SqlStatementStat.WINDOW_EXECUTE_COUNT, slices, currentSlice);
+            if (executeCount == 0L) {
+                continue;
+            }
+            long coveredNanos = window.coveredNanos(slices, nowNanos);
+            long executeTimeNanos = counters.sum(SqlStatementStat.WINDOW_EXECUTE_TIME, slices, currentSlice);
+            long fetchTimeNanos = counters.sum(SqlStatementStat.WINDOW_FETCH_TIME, slices, currentSlice);
+            long failExecuteCount = counters.sum(SqlStatementStat.WINDOW_FAIL_EXECUTE_COUNT, slices, currentSlice);
+
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("executeCount", executeCount);
+            map.put("execPerMinute", formatAvg(executeCount, TimeUnit.NANOSECONDS.toMillis(coveredNanos), 60_000.0d));
+            if (failExecuteCount > 0) {
+                map.put("failExecuteCount", failExecuteCount);
+            }
+            map.put("totalExecuteTimeMs", TimeUnit.NANOSECONDS.toMillis(executeTimeNanos));
+            map.put("executeTime", SqlStatementStat.getPercentilesReport(counters.histogram(slices, currentSlice)));
+            map.put("avgActive", formatAvg(executeTimeNanos + fetchTimeNanos, coveredNanos, 1.0d));
+            windows.put(window.reportNames[i], map);
+        }
+        return windows;
+    }
+
+    private static Comparator<StatementSnapshot> getComparator(/*@Nullable*/ String sort) {
         if ("query".equals(sort)) {
-            return Comparator.comparing(e -> e.sql, String.CASE_INSENSITIVE_ORDER);
+            return Comparator.comparing(StatementSnapshot::getSql, String.CASE_INSENSITIVE_ORDER);
         } else if ("totalExecuteTime".equals(sort)) {
             return Comparator.comparing(e -> e.totalExecuteTimeNanos, reverseOrder());
         } else if ("executeAvgTotalTime".equals(sort)) {
@@ -77,250 +654,497 @@ class SqlStat {
         return Comparator.comparing(e -> e.executeCount, reverseOrder());
     }
 
-    synchronized void registerPrepare(String sql, /*@Nullable*/ Throwable exception) {
-        totalPrepareCount++;
-
-        getSqlStat(sql).incPrepareCount(exception);
+    void registerPrepare(SqlStatementStat stat, long timeNanos, /*@Nullable*/ Throwable exception) {
+        register(EVENT_PREPARE, stat, exception, timeNanos, 1L);
     }
 
-    synchronized void registerExecute(String sql, long timeNanos, /*@Nullable*/ Throwable exception) {
-        totalExecuteCount++;
-        totalExecuteTimeNanos += timeNanos;
-
-        getSqlStat(sql).incExecuteCount(timeNanos, exception);
+    /**
+     * Registers the end of the life of a prepared statement, on the calling thread: it is rare compared
+     * to the executions
+     *
+     * @param executeCount the executions of the statement
+     * @param leaked       true if the statement was not closed before its connection
+     */
+    void registerStatementClose(SqlStatementStat stat, int executeCount, long lifetimeNanos, boolean leaked) {
+        stat = enter(stat);
+        try {
+            stat.registerStatementClose(executeCount, lifetimeNanos, leaked);
+        } finally {
+            stat.exitedCount.increment();
+        }
     }
 
-    synchronized void registerFetch(String sql, long timeNanos) {
-        totalFetchTimeNanos += timeNanos;
+    void registerExecute(String sql, long timeNanos, /*@Nullable*/ Throwable exception) {
+        register(EVENT_EXECUTE, sql, exception, timeNanos, 1L);
+    }
 
-        getSqlStat(sql).incFetchTime(timeNanos);
+    void registerExecute(SqlStatementStat stat, long timeNanos, /*@Nullable*/ Throwable exception) {
+        register(EVENT_EXECUTE, stat, exception, timeNanos, 1L);
     }
 
-    synchronized void registerBatchSize(String sql, int batchSize) {
-        getSqlStat(sql).registerBatch(batchSize);
+    void registerFetch(String sql, long timeNanos, long weight) {
+        register(EVENT_FETCH, sql, null, timeNanos, weight);
     }
 
-    synchronized void registerUpdate(String sql, int result) {
-        getSqlStat(sql).registerUpdate(result);
+    void registerFetch(SqlStatementStat stat, long timeNanos, long weight) {
+        register(EVENT_FETCH, stat, null, timeNanos, weight);
     }
 
-    synchronized void registerResultSetSize(String sql, int resultSetSize) {
-        getSqlStat(sql).registerResultSetSize(resultSetSize);
+    void registerBatchSize(String sql, int batchSize) {
+        register(EVENT_BATCH_SIZE, sql, null, batchSize, 1L);
     }
 
-    private String getAvgActive() {
-        // average active connections since application started
-        // evaluated as sum(connection active time) / (app lifetime)
-        // this value can be more than 1.0
-        long totalHoldTimeMs = TimeUnit.NANOSECONDS.toMillis(totalExecuteTimeNanos + totalFetchTimeNanos);
-        return formatAvg(totalHoldTimeMs, getUptimeMs(), 1.0d);
+    void registerBatchSize(SqlStatementStat stat, int batchSize) {
+        register(EVENT_BATCH_SIZE, stat, null, batchSize, 1L);
     }
 
-    private long getUptimeMs() {
-        long uptime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
-        return uptime == 0 ? 1000L : uptime;
+    void registerUpdate(String sql, long result) {
+        register(EVENT_UPDATE, sql, null, result, 1L);
     }
 
-    private static double avg(long total, long count) {
-        if (count == 0L) {
-            return 0.0d;
-        }
-        return ((double) total) / count;
+    void registerUpdate(SqlStatementStat stat, long result) {
+        register(EVENT_UPDATE, stat, null, result, 1L);
     }
 
-    static String formatAvg(long total, long count, double multiplier) {
-        double value = avg(total, count) * multiplier;
-        return String.format(Locale.ENGLISH, "%.2f", value);
+    void registerUpdates(SqlStatementStat stat, int[] result) {
+        register(EVENT_UPDATES, stat, result, 0L, 1L);
     }
 
-    synchronized void reset() {
-        sqlMap.clear();
-        totalPrepareCount = 0L;
-        totalExecuteCount = 0L;
-        totalExecuteTimeNanos = 0L;
-        totalFetchTimeNanos = 0L;
+    void registerUpdates(SqlStatementStat stat, long[] result) {
+        register(EVENT_LARGE_UPDATES, stat, result, 0L, 1L);
     }
 
-    //@Nonnull
-    private SqlStatementStat getSqlStat(/*@Nullable*/ String sql) {
-        assert Thread.holdsLock(this);
-        String key = sql == null ? "[null]" : sql;
-        return sqlMap.computeIfAbsent(key, () -> new SqlStatementStat(key));
+    void registerResultSetSize(String sql, int resultSetSize, long weight) {
+        register(EVENT_RESULT_SET_SIZE, sql, null, resultSetSize, weight);
     }
 
-    //@NotThreadSafe
-    private static class ExceptionStat {
-        private int count;
-        //@Nullable
-        private String stackTrace;
+    void registerResultSetSize(SqlStatementStat stat, int resultSetSize, long weight) {
+        register(EVENT_RESULT_SET_SIZE, stat, null, resultSetSize, weight);
+    }
 
-        private ExceptionStat() {
+    /**
+     * Publishes the event to the {@link AsyncAggregator} if enabled, otherwise (or on overflow) aggregates it
+     *
+     * @param key    the sql or the {@link SqlStatementStat} handle
+     * @param weight number of the calls the event represents, the executions are sampled on aggregation
+     */
+    private void register(int type, Object key, /*@Nullable*/ Object ref, long value, long weight) {
+        AsyncAggregator aggregator = this.aggregator;
+        if (aggregator != null && aggregator.offer(type, key, ref, value, weight)) {
+            return;
         }
+        handleEvent(type, key, ref, value, weight);
+    }
 
-        int getCount() {
-            return count;
+    /**
+     * Aggregates an event, called on the calling thread or by the thread of the {@link AsyncAggregator}
+     */
+    private void handleEvent(int type, Object key, /*@Nullable*/ Object ref, long value, long weight) {
+        SqlStatementStat stat = enter(key);
+        try {
+            aggregate(type, stat, ref, value, weight);
+        } finally {
+            stat.exitedCount.increment();
         }
+    }
 
-        //@Nullable
-        String getStackTrace() {
-            return stackTrace;
+    private void aggregate(int type, SqlStatementStat stat, /*@Nullable*/ Object ref, long value, long weight) {
+        EventRecorder recorder = this.recorder;
+        if (recorder != null) {
+            record(recorder, type, stat, ref, value, weight);
         }
-
-        void setStackTrace(String stackTrace) {
-            this.stackTrace = stackTrace;
+        switch (type) {
+            case EVENT_PREPARE:
+                aggregatePrepare(stat, value, (Throwable) ref);
+                break;
+            case EVENT_EXECUTE:
+                // the slow executions are always registered
+                long executeWeight = isSlow(stat, value) ? 1L : sample(stat);
+                Throwable exception = (Throwable) ref;
+                if (exception != null) {
+                    // the stack trace is captured for the sampled executions only
+                    stat.registerException(exception, executeWeight != 0L);
+                }
+                aggregateExecute(stat, value, exception != null, executeWeight);
+                break;
+            case EVENT_FETCH:
+                aggregateFetch(stat, value, weight);
+                break;
+            case EVENT_BATCH_SIZE:
+                stat.registerBatch((int) value);
+                break;
+            case EVENT_UPDATE:
+                stat.registerUpdate(value);
+                break;
+            case EVENT_UPDATES:
+                stat.registerUpdates((int[]) ref);
+                break;
+            case EVENT_LARGE_UPDATES:
+                stat.registerUpdates((long[]) ref);
+                break;
+            case EVENT_RESULT_SET_SIZE:
+                stat.registerResultSetSize((int) value, weight);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown event type " + type);
         }
+    }
 
-        void incCount() {
-            count++;
+    private static void record(EventRecorder recorder, int type, SqlStatementStat stat, /*@Nullable*/ Object ref,
+                               long value, long weight) {
+        switch (type) {
+            case EVENT_PREPARE:
+                recorder.recordPrepare(stat, value, (Throwable) ref);
+                break;
+            case EVENT_EXECUTE:
+                recorder.recordExecute(stat, value, (Throwable) ref);
+                break;
+            case EVENT_FETCH:
+                recorder.recordFetch(stat, value, weight);
+                break;
+            case EVENT_UPDATE:
+                recorder.recordUpdate(stat, value);
+                break;
+            case EVENT_RESULT_SET_SIZE:
+                recorder.recordResultSetSize(stat, value, weight);
+                break;
+            default:
+                // the batch sizes and the batch update counts are not recorded
+                break;
         }
+    }
 
-        @Override
-        public String toString() {
-            return "ExceptionStat{" +
-                    "count=" + count +
-                    ", stackTrace=" + stackTrace +
-                    '}';
-        }
+    private void aggregatePrepare(SqlStatementStat stat, long timeNanos, /*@Nullable*/ Throwable exception) {
+        totalPrepareCount.increment();
+
+        stat.incPrepareCount(timeNanos, exception);
     }
 
-    private static final double BASE = Math.sqrt(2.0d);
+    /**
+     * @param weight number of the calls the execution represents, 0 if it is not sampled: then only
+     *               the counters are updated
+     */
+    private void aggregateExecute(SqlStatementStat stat, long timeNanos, boolean failed, long weight) {
+        totalExecuteCount.increment();
+        totalExecuteTimeNanos.add(timeNanos);
+        if (weight != 0L) {
+            RollingCounters totalWindowCounters = this.totalWindowCounters;
+            int slot = totalWindowCounters.currentSlot();
+            totalWindowCounters.add(slot, SqlStatementStat.WINDOW_EXECUTE_COUNT, weight);
+            totalWindowCounters.add(slot, SqlStatementStat.WINDOW_EXECUTE_TIME, timeNanos * weight);
+            totalWindowCounters.record(slot, TimeUnit.NANOSECONDS.toMicros(timeNanos), weight);
+            if (failed) {
+                totalWindowCounters.add(slot, SqlStatementStat.WINDOW_FAIL_EXECUTE_COUNT, weight);
+            }
+        }
+
+        stat.incExecuteCount(timeNanos, failed, weight);
+    }
 
     /**
-     * Not thread safe
+     * Registers a failed execution replayed by {@link RecordingReader}, on the calling thread: the failure is known
+     * by its SQLState and error code only, so it is registered by its signature, with no exception and no stack trace
      */
-    private static class SqlStatementStat {
-        final LimitedMap<Integer, AtomicInteger> update = new LimitedMap<>(16);
-        final LimitedMap<Integer, AtomicInteger> batch = new LimitedMap<>(16);
-        /**
-         * Exception string -> stat
-         */
-        final LimitedMap<String, ExceptionStat> exceptions = new LimitedMap<>(5);
-        final LogStat executeStat = new LogStat(BASE, RoundMode.ROUND);
-        final AvgValue avgExecuteTimeMs = new AvgValue(AVG_FACTOR);
-        final AvgValue avgFetchTimeMs = new AvgValue(AVG_FACTOR);
+    void registerFailedExecute(SqlStatementStat stat, long timeNanos, /*@Nullable*/ String sqlState, int errorCode) {
+        stat = enter(stat);
+        try {
+            stat.registerFailure(sqlState, errorCode);
+            aggregateExecute(stat, timeNanos, true, 1L);
+        } finally {
+            stat.exitedCount.increment();
+        }
+    }
 
-        final String sql;
+    private void aggregateFetch(SqlStatementStat stat, long timeNanos, long weight) {
+        totalFetchTimeNanos.add(timeNanos * weight);
+        RollingCounters totalWindowCounters = this.totalWindowCounters;
+        totalWindowCounters.add(totalWindowCounters.currentSlot(), SqlStatementStat.WINDOW_FETCH_TIME,
+                timeNanos * weight);
 
-        long totalExecuteTimeNanos;
-        long totalEmptyResultSets;
-        long totalResultSetSize;
-        long totalFetchTimeNanos;
-        long prepareCount;
-        long executeCount;
-        long failExecuteCount;
+        stat.incFetchTime(timeNanos, weight);
+    }
 
-        SqlStatementStat(String sql) {
-            this.sql = sql;
+    /**
+     * Registers the execution in the {@link MonitoringContext} of the executing thread, if any, and in the totals
+     * of its tag set. The tag stat is cached by the context, so there is no lookup per execution.
+     */
+    void registerContextExecute(long timeNanos, /*@Nullable*/ Throwable exception) {
+        MonitoringContext context = MonitoringContext.current();
+        if (context == null) {
+            return;
         }
+        context.registerExecute(timeNanos, exception != null);
+        tagStat(context).registerExecute(timeNanos, exception != null);
+    }
 
-        void incPrepareCount(/*@Nullable*/ Throwable exception) {
-            prepareCount++;
+    void registerContextFetch(long timeNanos) {
+        MonitoringContext context = MonitoringContext.current();
+        if (context == null) {
+            return;
         }
+        context.registerFetch(timeNanos);
+        tagStat(context).registerFetch(timeNanos);
+    }
 
-        void incExecuteCount(long timeNanos, /*@Nullable*/ Throwable exception) {
-            executeCount++;
-            totalExecuteTimeNanos += timeNanos;
-            double timeMs = timeNanos * NANOS_TO_MILLIS_MULTIPLIER;
-            avgExecuteTimeMs.update(timeMs);
-            executeStat.addValue(timeMs);
-            if (exception != null) {
-                failExecuteCount++;
-                registerException(exception);
-            }
+    private TagStat tagStat(MonitoringContext context) {
+        TagStat tagStat = context.tagStat(tagStats);
+        return tagStat == null ? otherTagStat : tagStat;
+    }
+
+    /**
+     * Registers the execution in the unit of work: the {@link MonitoringContext} of the executing thread, if any,
+     * otherwise the connection checkout
+     *
+     * @param stat       the statement handle, null for an ad-hoc sql
+     * @param sql        the sql as executed
+     * @param parameters null if not captured, then the identical executions of a prepared statement are not detected
+     */
+    void registerUnitOfWork(ConnectionProxy connection, /*@Nullable*/ SqlStatementStat stat, /*@Nullable*/ String sql,
+                            /*@Nullable*/ BindParameters parameters, long timeNanos) {
+        int threshold = nPlusOneThreshold;
+        if (threshold == 0) {
+            return;
         }
+        UnitOfWork unitOfWork = null;
+        MonitoringContext context = MonitoringContext.current();
+        if (context != null) {
+            unitOfWork = context.unitOfWork(this, threshold);
+        }
+        if (unitOfWork == null) {
+            unitOfWork = connection.unitOfWork(threshold);
+        }
+        long signature;
+        if (stat == null) {
+            stat = getSqlStat(sql);
+            signature = sql == null ? UnitOfWork.NO_SIGNATURE : sql.hashCode();
+        } else {
+            stat = resolve(stat);
+            signature = parameters == null ? UnitOfWork.NO_SIGNATURE : parameters.signature();
+        }
+        unitOfWork.register(stat, signature, timeNanos);
+    }
 
-        void incFetchTime(long timeNanos) {
-            totalFetchTimeNanos += timeNanos;
-            avgFetchTimeMs.update(timeNanos * NANOS_TO_MILLIS_MULTIPLIER);
+    /**
+     * @param executeCount the executions of the statement in the unit of work
+     * @param timeNanos    the total time of them
+     */
+    void registerFinding(String type, SqlStatementStat stat, int executeCount, long timeNanos) {
+        String key = type + ' ' + stat.sql;
+        Finding finding = findings.computeIfRoom(key, () -> new Finding(type, stat.sql));
+        if (finding != null) {
+            finding.register(executeCount, timeNanos);
         }
+    }
 
-        void registerBatch(int batchSize) {
-            batch.computeIfAbsent(batchSize, AtomicInteger::new).incrementAndGet();
+    /**
+     * Logs the execution if it is slow. Called on the executing thread, so that the caller frame can be captured,
+     * the faster executions are rejected with no lookup and the bind parameters are rendered only if logged.
+     *
+     * @param stat       the statement handle, null for an ad-hoc sql
+     * @param sql        the sql as executed
+     * @param parameters null if not captured
+     */
+    void registerSlowQuery(/*@Nullable*/ SqlStatementStat stat, /*@Nullable*/ String sql,
+                           /*@Nullable*/ BindParameters parameters, long timeNanos, /*@Nullable*/ Throwable exception) {
+        SlowQueryLog slowQueryLog = this.slowQueryLog;
+        if (slowQueryLog == null || timeNanos < minSlowThresholdNanos || !slowQueryLog.accepts(timeNanos)) {
+            return;
+        }
+        String key = stat != null ? stat.sql : key(sql);
+        if (timeNanos < slowThreshold(key)) {
+            return;
+        }
+        StackTraceElement caller = null;
+        if (slowQueryLog.captureCaller) {
+            CallSites callSites = this.callSites;
+            caller = (callSites == null ? CallSites.DEFAULT : callSites).callSite();
         }
+        slowQueryLog.add(new SlowQueryLog.Entry(sql == null ? key : sql,
+                parameters == null ? null : parameters.render(), timeNanos, System.currentTimeMillis(),
+                Thread.currentThread().getName(), caller == null ? null : caller.toString(),
+                exception == null ? null : exception.toString()));
+    }
 
-        void registerUpdate(int result) {
-            update.computeIfAbsent(result, AtomicInteger::new).incrementAndGet();
+    /**
+     * Attributes a sample of the executions to the call sites. Called on the executing thread, which is walked,
+     * the statement of an ad-hoc sql is resolved for the sampled executions only.
+     *
+     * @param stat the statement handle, null for an ad-hoc sql
+     */
+    void registerCallSite(/*@Nullable*/ SqlStatementStat stat, /*@Nullable*/ String sql, long timeNanos) {
+        CallSites callSites = this.callSites;
+        if (callSites == null) {
+            return;
         }
+        long weight = callSites.sample();
+        if (weight == 0L) {
+            return;
+        }
+        SqlStatementStat resolved = stat != null ? resolve(stat) : getSqlStat(sql);
+        resolved.registerCallSite(callSites.callSite(), timeNanos, weight);
+    }
 
-        void registerResultSetSize(int resultSetSize) {
-            if (resultSetSize > 0) {
-                totalResultSetSize += resultSetSize;
-            } else {
-                totalEmptyResultSets++;
-            }
+    /**
+     * @return the weight of the call if it is sampled, 0 if not
+     */
+    long sample(/*@Nullable*/ SqlStatementStat stat) {
+        Sampler sampler = this.sampler;
+        return sampler == null ? 1L : sampler.sample(stat);
+    }
+
+    /**
+     * Sampling of the fetch of a result set of an ad-hoc sql, resolves the statement only if the sampling
+     * depends on it
+     *
+     * @return the weight of the fetch if it is sampled, 0 if not
+     */
+    long sample(/*@Nullable*/ String sql) {
+        Sampler sampler = this.sampler;
+        if (sampler == null) {
+            return 1L;
         }
+        return sampler.sample(sampler.isPerStatement() ? getSqlStat(sql) : null);
+    }
 
-        Map<String, Object> getStat(long uptimeSeconds, boolean plain) {
-            Map<String, Object> map = new LinkedHashMap<>();
+    /**
+     * Execute time histogram of all the statements, merged from the per-statement ones
+     */
+    Histogram getTotalExecuteHistogram() {
+        Histogram total = getOtherTotals().executeHistogram;
+        sqlMap.forEach((sql, stat) -> total.add(stat.executeHistogram));
+        return total;
+    }
 
-            map.put("sql", plain ? sql.replace('\n', ' ').replace('\r', ' ') : sql);
+    private String getAvgActive() {
+        // average connections executing or fetching since application started
+        // evaluated as sum(connection active time) / (app lifetime), see ConnectionStat for the checked out ones
+        // this value can be more than 1.0
+        long totalHoldTimeMs = TimeUnit.NANOSECONDS.toMillis(totalExecuteTimeNanos.sum() + totalFetchTimeNanos.sum());
+        return formatAvg(totalHoldTimeMs, getUptimeMs(), 1.0d);
+    }
 
-            if (prepareCount > 0) {
-                map.put("prepareCount", prepareCount);
-            }
-            map.put("executeCount", executeCount);
-            map.put("execPerMinute", formatAvg(executeCount, uptimeSeconds, 60));
+    private long getUptimeMs() {
+        long uptime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) + restoredUptimeMs.get();
+        return uptime == 0 ? 1000L : uptime;
+    }
 
-            if (failExecuteCount != 0) {
-                map.put("failExecuteCount", failExecuteCount);
-            }
+    private static double avg(long total, long count) {
+        if (count == 0L) {
+            return 0.0d;
+        }
+        return ((double) total) / count;
+    }
 
-            map.put("totalExecuteTime", TimeUnit.NANOSECONDS.toMillis(totalExecuteTimeNanos));
-            map.put("executeAvgTotalTime", formatAvg(totalExecuteTimeNanos, executeCount, NANOS_TO_MILLIS_MULTIPLIER));
-            map.put("executeAvgFloatTime", avgExecuteTimeMs.toString(2));
-            map.put("executeTime", executeStat.getReportStat(2));
+    static String formatAvg(long total, long count, double multiplier) {
+        return Utils.formatDecimal(avg(total, count) * multiplier, 2);
+    }
 
-            if (totalFetchTimeNanos > 0) {
-                map.put("totalFetchTime", TimeUnit.NANOSECONDS.toMillis(totalFetchTimeNanos));
-                map.put("fetchAvgTotalTime", formatAvg(totalFetchTimeNanos, executeCount, NANOS_TO_MILLIS_MULTIPLIER));
-                map.put("fetchAvgFloatTime", avgFetchTimeMs.toString(2));
-            }
+    /**
+     * Stops the aggregator thread, the persistence and the recorder
+     */
+    void close() {
+        setAsyncAggregation(0, false);
+        setPersistence(null);
+        setEventRecorder(null);
+    }
 
-            if (!batch.isEmpty()) {
-                SortedMap<Integer, Integer> batchMap = new TreeMap<>();
-                batch.forEach((key, value) -> batchMap.put(key, value.intValue()));
-                map.put("batch", batchMap);
-            }
-            if (!update.isEmpty()) {
-                SortedMap<Integer, Integer> updateMap = new TreeMap<>();
-                update.forEach((key, value) -> updateMap.put(key, value.intValue()));
-                map.put("update", updateMap);
-            }
+    /**
+     * Clears the statistics. Not atomic with respect to concurrent writers: samples registered while resetting
+     * may be partially lost.
+     */
+    void reset() {
+        // the handles kept by the prepared statements are resolved again to the new entries
+        sqlMap.clear(stat -> stat.evicted = true);
+        synchronized (retiredStats) {
+            retiredStats.clear();
+            otherStat = newOtherStat();
+        }
+        totalWindowCounters = newTotalWindowCounters(window);
+        evictedCount.reset();
+        restoredUptimeMs.set(0L);
+        lastSnapshot = null;
+        totalPrepareCount.reset();
+        totalExecuteCount.reset();
+        totalExecuteTimeNanos.reset();
+        totalFetchTimeNanos.reset();
+        connectionStat.reset();
+        tagStats = new LimitedMap<>(TAG_SETS_SIZE);
+        findings = new LimitedMap<>(FINDINGS_SIZE);
+        otherTagStat = new TagStat(OTHER_TAGS);
+        SlowQueryLog slowQueryLog = this.slowQueryLog;
+        if (slowQueryLog != null) {
+            this.slowQueryLog = slowQueryLog.copyConfiguration();
+        }
+    }
 
-            if (totalResultSetSize > 0) {
-                map.put("totalResultSetSize", totalResultSetSize);
-            }
-            if (totalEmptyResultSets > 0) {
-                map.put("totalEmptyResultSets", totalEmptyResultSets);
-            }
+    /**
+     * Resolves the statement handle, which the proxies keep to register the executions of a prepared statement
+     * with no lookup and no string hashing
+     */
+    //@Nonnull
+    SqlStatementStat getSqlStat(/*@Nullable*/ String sql) {
+        return sqlMap.get(key(sql));
+    }
 
-            List<Map<String, Object>> exList = new ArrayList<>();
-            exceptions.forEach((key, exceptionStat) -> {
-                Map<String, Object> exMap = new LinkedHashMap<>();
-                exMap.put("message", key);
-                exMap.put("count", exceptionStat.getCount());
-                String stackTrace = exceptionStat.getStackTrace();
-                if (stackTrace != null) {
-                    exMap.put("stackTrace", stackTrace);
-                }
-                exList.add(exMap);
-            });
-            if (!exList.isEmpty()) {
-                map.put("exceptions", exList);
-            }
+    /**
+     * @return the key of the sql in the table
+     */
+    private String key(/*@Nullable*/ String sql) {
+        SqlNormalizer normalizer = this.normalizer;
+        return sql == null ? "[null]" : normalizer == null ? sql : normalizer.normalize(sql);
+    }
 
-            return map;
-        }
+    /**
+     * @return the handle if it is still in the table, otherwise the current handle of its (normalized) sql
+     */
+    //@Nonnull
+    SqlStatementStat resolve(SqlStatementStat stat) {
+        return stat.evicted ? sqlMap.get(stat.sql) : stat;
+    }
 
-        void registerException(Throwable exception) {
-            String key = exception.toString();
-            ExceptionStat exceptionStat = this.exceptions.computeIfAbsent(key, ExceptionStat::new);
-            exceptionStat.incCount();
+    /**
+     * Resolves the statement to write to and enters it: it is not folded into the {@code [other]} statement until
+     * the writer exits, by incrementing {@link SqlStatementStat#exitedCount}
+     *
+     * @param key the sql or the {@link SqlStatementStat} handle
+     */
+    //@Nonnull
+    private SqlStatementStat enter(Object key) {
+        while (true) {
+            SqlStatementStat stat = key instanceof SqlStatementStat ? resolve((SqlStatementStat) key)
+                    : getSqlStat((String) key);
+            stat.enteredCount.increment();
+            // evicted before entered: the eviction may not have seen this writer, so resolve again
+            if (!stat.evicted) {
+                return stat;
+            }
+            stat.exitedCount.increment();
+        }
+    }
 
-            StringWriter sw = new StringWriter();
-            PrintWriter pw = new PrintWriter(sw);
-            exception.printStackTrace(pw);
-            exceptionStat.setStackTrace(sw.toString());
+    /**
+     * Retires the statement evicted from the table instead of merging it at once: the writers which resolved it
+     * just before add to it meanwhile, and their samples are kept
+     */
+    private void evict(SqlStatementStat stat) {
+        stat.evicted = true;
+        synchronized (retiredStats) {
+            retiredStats.add(stat);
+            foldRetired();
         }
+        evictedCount.increment();
+    }
+
+    /**
+     * Folds the retired statements no writer is adding to into {@link #otherStat}
+     */
+    private void foldRetired() {
+        retiredStats.removeIf(stat -> {
+            if (stat.hasWriters()) {
+                return false;
+            }
+            otherStat.merge(stat);
+            return true;
+        });
     }
 }
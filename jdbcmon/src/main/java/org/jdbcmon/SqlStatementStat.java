@@ -0,0 +1,389 @@
+package org.jdbcmon;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.jdbcmon.SqlStat.formatAvg;
+
+/**
+ * Per-statement statistics. Thread safe: all counters are striped, so concurrent executions of the same statement
+ * do not contend on a monitor. Report values are read from a {@link Snapshot}.
+ */
+class SqlStatementStat {
+
+    private static final double AVG_FACTOR = 0.2d;
+    /**
+     * Highest time tracked by the histograms, in micros
+     */
+    private static final long HISTOGRAM_HIGHEST_TRACKABLE_MICROS = TimeUnit.HOURS.toMicros(1L);
+    private static final String[] REPORT_PERCENTILE_NAMES = {"p50", "p90", "p99", "p99.9"};
+    /**
+     * Multiplier constant to convert nanos to millis
+     */
+    static final double NANOS_TO_MILLIS_MULTIPLIER = 0.000001d;
+    /**
+     * Multiplier constant to convert micros to millis
+     */
+    static final double MICROS_TO_MILLIS_MULTIPLIER = 0.001d;
+
+    // fields of the rolling window counters, also used for the totals in SqlStat
+    static final int WINDOW_EXECUTE_COUNT = 0;
+    static final int WINDOW_FAIL_EXECUTE_COUNT = 1;
+    static final int WINDOW_EXECUTE_TIME = 2;
+    static final int WINDOW_FETCH_TIME = 3;
+    static final int WINDOW_FIELDS = 4;
+
+    /**
+     * Update count (affected rows) -> number of executions
+     */
+    final LimitedMap<Long, AtomicLong> update = new LimitedMap<>(16);
+    /**
+     * Batch size -> number of batch executions
+     */
+    final LimitedMap<Integer, AtomicInteger> batch = new LimitedMap<>(16);
+    /**
+     * Exception signature -> stat, see {@link ExceptionStat#signature(Throwable)}
+     */
+    final LimitedMap<String, ExceptionStat> exceptions = new LimitedMap<>(5);
+    /**
+     * Number of the exceptions of the signatures which do not fit into {@link #exceptions}
+     */
+    final LongAdder otherExceptionCount = new LongAdder();
+    /**
+     * Application call site -> stat, filled if the call site attribution is enabled
+     */
+    final LimitedMap<StackTraceElement, CallSites.Stat> callSites = new LimitedMap<>(16);
+    /**
+     * Estimated number of the executions from the call sites which do not fit into {@link #callSites}
+     */
+    final LongAdder otherCallSitesExecuteCount = new LongAdder();
+    /**
+     * Execute time histogram, in micros
+     */
+    final Histogram executeHistogram;
+    /**
+     * Fetch time histogram (per result set), in micros
+     */
+    final Histogram fetchHistogram;
+    final AvgValue avgExecuteTimeMs = new AvgValue(AVG_FACTOR);
+    final AvgValue avgFetchTimeMs = new AvgValue(AVG_FACTOR);
+
+    final String sql;
+    /**
+     * Execute count inherited from the statement evicted from the heavy hitters table for this one,
+     * see {@link SpaceSavingMap}
+     */
+    final long overestimation;
+    /**
+     * Set when the statement is evicted from the table and its counters are merged to the "other" bucket,
+     * or when it is removed by a reset
+     */
+    volatile boolean evicted;
+    /**
+     * Writers which resolved the statement and the ones done adding to it, see {@link #hasWriters()}
+     */
+    final LongAdder enteredCount = new LongAdder();
+    final LongAdder exitedCount = new LongAdder();
+    /**
+     * Id of the sql in the {@link EventRecorder} files and the segment it was last defined in
+     */
+    volatile int recordId;
+    //@Nullable
+    volatile Object recordSegment;
+    /**
+     * Counters of the recent time slices, replaced when the window is reconfigured
+     */
+    volatile RollingCounters windowCounters;
+    /**
+     * State of the adaptive sampling
+     */
+    final Sampler.Rate sampleRate = new Sampler.Rate();
+
+    final LongAdder totalExecuteTimeNanos = new LongAdder();
+    final LongAdder totalEmptyResultSets = new LongAdder();
+    final LongAdder totalResultSetSize = new LongAdder();
+    final LongAdder totalFetchTimeNanos = new LongAdder();
+    final LongAdder prepareCount = new LongAdder();
+    final LongAdder executeCount = new LongAdder();
+    final LongAdder failExecuteCount = new LongAdder();
+
+    // lifecycle of the prepared statements
+    final LongAdder totalPrepareTimeNanos = new LongAdder();
+    /**
+     * Prepared statements closed (or leaked), the executions and the lifetime of them
+     */
+    final LongAdder closedStatementCount = new LongAdder();
+    final LongAdder closedStatementExecuteCount = new LongAdder();
+    final LongAdder totalStatementLifetimeNanos = new LongAdder();
+    /**
+     * Prepared statements closed after at most one execution
+     */
+    final LongAdder singleUseStatementCount = new LongAdder();
+    /**
+     * Prepared statements not closed before their connection
+     */
+    final LongAdder leakedStatementCount = new LongAdder();
+
+    /**
+     * @param histogramDigits significant decimal digits of the time histograms
+     */
+    SqlStatementStat(String sql, long overestimation, int histogramDigits, RollingWindow window) {
+        this.sql = sql;
+        this.overestimation = overestimation;
+        this.executeHistogram = newTimeHistogram(histogramDigits);
+        this.fetchHistogram = newTimeHistogram(histogramDigits);
+        this.windowCounters = newWindowCounters(window);
+    }
+
+    static RollingCounters newWindowCounters(RollingWindow window) {
+        return new RollingCounters(window, WINDOW_FIELDS, null);
+    }
+
+    static Histogram newTimeHistogram(int significantDigits) {
+        return new Histogram(HISTOGRAM_HIGHEST_TRACKABLE_MICROS, significantDigits);
+    }
+
+    /**
+     * Tells if a writer may still add to the evicted statement. A writer enters, then checks {@link #evicted}
+     * and resolves the statement again if set: so once it is set, a writer which did not see it is counted here.
+     * The exits are read first, so every exit read has its entry read as well.
+     */
+    boolean hasWriters() {
+        long exited = exitedCount.sum();
+        return enteredCount.sum() != exited;
+    }
+
+    /**
+     * Count the heavy hitters are selected by: execute count including the overestimation
+     */
+    long count() {
+        return executeCount.sum() + overestimation;
+    }
+
+    /**
+     * Adds the counters of another (evicted) statement to this one. The batch sizes, update counts, exceptions
+     * and call sites are added up to the bounds of the maps, the exceptions and the executions of the call sites
+     * which do not fit are counted as the other ones, the batch sizes and update counts are dropped.
+     */
+    void merge(SqlStatementStat other) {
+        totalExecuteTimeNanos.add(other.totalExecuteTimeNanos.sum());
+        totalEmptyResultSets.add(other.totalEmptyResultSets.sum());
+        totalResultSetSize.add(other.totalResultSetSize.sum());
+        totalFetchTimeNanos.add(other.totalFetchTimeNanos.sum());
+        prepareCount.add(other.prepareCount.sum());
+        executeCount.add(other.executeCount.sum());
+        failExecuteCount.add(other.failExecuteCount.sum());
+        totalPrepareTimeNanos.add(other.totalPrepareTimeNanos.sum());
+        closedStatementCount.add(other.closedStatementCount.sum());
+        closedStatementExecuteCount.add(other.closedStatementExecuteCount.sum());
+        totalStatementLifetimeNanos.add(other.totalStatementLifetimeNanos.sum());
+        singleUseStatementCount.add(other.singleUseStatementCount.sum());
+        leakedStatementCount.add(other.leakedStatementCount.sum());
+        executeHistogram.add(other.executeHistogram);
+        fetchHistogram.add(other.fetchHistogram);
+        windowCounters.add(other.windowCounters);
+
+        other.batch.forEach((size, count) -> batch.computeIfAbsent(size, AtomicInteger::new).addAndGet(count.get()));
+        other.update.forEach((result, count) -> update.computeIfAbsent(result, AtomicLong::new).addAndGet(count.get()));
+        other.exceptions.forEach((signature, exceptionStat) -> mergeException(signature, exceptionStat.copy()));
+        otherExceptionCount.add(other.otherExceptionCount.sum());
+        other.callSites.forEach((callSite, otherStat) -> {
+            CallSites.Stat stat = callSites.computeIfRoom(callSite, () -> new CallSites.Stat(callSite));
+            if (stat == null) {
+                otherCallSitesExecuteCount.add(otherStat.executeCount.sum());
+            } else {
+                stat.executeCount.add(otherStat.executeCount.sum());
+                stat.totalExecuteTimeNanos.add(otherStat.totalExecuteTimeNanos.sum());
+            }
+        });
+        otherCallSitesExecuteCount.add(other.otherCallSitesExecuteCount.sum());
+    }
+
+    /**
+     * Adds an exception stat of another statement. The stat is added to the map as is if the signature is new,
+     * so it must not be shared, see {@link ExceptionStat#copy()}.
+     */
+    void mergeException(String signature, ExceptionStat exceptionStat) {
+        ExceptionStat existing = exceptions.computeIfRoom(signature, () -> exceptionStat);
+        if (existing == null) {
+            otherExceptionCount.add(exceptionStat.getCount());
+        } else if (existing != exceptionStat) {
+            existing.add(exceptionStat.getCount());
+        }
+    }
+
+    /**
+     * Report of the percentiles and max of a time histogram (in micros), as millis
+     */
+    static Map<String, String> getPercentilesReport(Histogram histogram) {
+        return getPercentilesReport(StatementSnapshot.percentiles(histogram));
+    }
+
+    /**
+     * @param values the values at the {@link StatementSnapshot#PERCENTILES} and the max, in micros
+     */
+    static Map<String, String> getPercentilesReport(long[] values) {
+        Map<String, String> map = new LinkedHashMap<>();
+        for (int i = 0; i < REPORT_PERCENTILE_NAMES.length; i++) {
+            map.put(REPORT_PERCENTILE_NAMES[i], formatAvg(values[i], 1L, MICROS_TO_MILLIS_MULTIPLIER));
+        }
+        map.put("max", formatAvg(values[REPORT_PERCENTILE_NAMES.length], 1L, MICROS_TO_MILLIS_MULTIPLIER));
+        return map;
+    }
+
+    void incPrepareCount(long timeNanos, /*@Nullable*/ Throwable exception) {
+        prepareCount.increment();
+        totalPrepareTimeNanos.add(timeNanos);
+    }
+
+    void registerStatementClose(int executeCount, long lifetimeNanos, boolean leaked) {
+        closedStatementCount.increment();
+        closedStatementExecuteCount.add(executeCount);
+        totalStatementLifetimeNanos.add(lifetimeNanos);
+        if (executeCount <= 1) {
+            singleUseStatementCount.increment();
+        }
+        if (leaked) {
+            leakedStatementCount.increment();
+        }
+    }
+
+    /**
+     * @param failed true if the execution failed, the exception is registered separately
+     * @param weight number of the calls the execution represents, 0 if it is not sampled: then only the counters
+     *               are updated
+     */
+    void incExecuteCount(long timeNanos, boolean failed, long weight) {
+        executeCount.increment();
+        totalExecuteTimeNanos.add(timeNanos);
+        if (failed) {
+            failExecuteCount.increment();
+        }
+        if (weight == 0L) {
+            return;
+        }
+        double timeMs = timeNanos * NANOS_TO_MILLIS_MULTIPLIER;
+        avgExecuteTimeMs.update(timeMs);
+        executeHistogram.record(TimeUnit.NANOSECONDS.toMicros(timeNanos), weight);
+        RollingCounters windowCounters = this.windowCounters;
+        int slot = windowCounters.currentSlot();
+        windowCounters.add(slot, WINDOW_EXECUTE_COUNT, weight);
+        windowCounters.add(slot, WINDOW_EXECUTE_TIME, timeNanos * weight);
+        if (failed) {
+            windowCounters.add(slot, WINDOW_FAIL_EXECUTE_COUNT, weight);
+        }
+    }
+
+    /**
+     * @param weight number of the fetches the sampled one represents
+     */
+    void incFetchTime(long timeNanos, long weight) {
+        totalFetchTimeNanos.add(timeNanos * weight);
+        avgFetchTimeMs.update(timeNanos * NANOS_TO_MILLIS_MULTIPLIER);
+        fetchHistogram.record(TimeUnit.NANOSECONDS.toMicros(timeNanos), weight);
+        RollingCounters windowCounters = this.windowCounters;
+        windowCounters.add(windowCounters.currentSlot(), WINDOW_FETCH_TIME, timeNanos * weight);
+    }
+
+    void registerBatch(int batchSize) {
+        batch.computeIfAbsent(batchSize, AtomicInteger::new).incrementAndGet();
+    }
+
+    void registerUpdate(long result) {
+        registerUpdate(result, 1);
+    }
+
+    /**
+     * Registers the update counts of a batch. Equal adjacent counts (usually all of them) are registered at once.
+     */
+    void registerUpdates(int[] result) {
+        int i = 0;
+        while (i < result.length) {
+            int updateCount = result[i];
+            int j = i + 1;
+            while (j < result.length && result[j] == updateCount) {
+                j++;
+            }
+            registerUpdate(updateCount, j - i);
+            i = j;
+        }
+    }
+
+    void registerUpdates(long[] result) {
+        int i = 0;
+        while (i < result.length) {
+            long updateCount = result[i];
+            int j = i + 1;
+            while (j < result.length && result[j] == updateCount) {
+                j++;
+            }
+            registerUpdate(updateCount, j - i);
+            i = j;
+        }
+    }
+
+    private void registerUpdate(long result, int executions) {
+        update.computeIfAbsent(result, AtomicLong::new).addAndGet(executions);
+    }
+
+    void registerResultSetSize(int resultSetSize, long weight) {
+        if (resultSetSize > 0) {
+            totalResultSetSize.add(resultSetSize * weight);
+        } else {
+            totalEmptyResultSets.add(weight);
+        }
+    }
+
+    /**
+     * @param captureStackTrace false to only count the exception, the stack trace of the first occurrence
+     *                          is captured anyway
+     */
+    void registerException(Throwable exception, boolean captureStackTrace) {
+        ExceptionStat exceptionStat = this.exceptions.computeIfRoom(ExceptionStat.signature(exception),
+                () -> new ExceptionStat(exception));
+        if (exceptionStat == null) {
+            otherExceptionCount.increment();
+            return;
+        }
+        exceptionStat.register(exception, captureStackTrace);
+    }
+
+    /**
+     * Counts a failure known by its signature values only, with no stack trace, see {@link RecordingReader}
+     */
+    void registerFailure(/*@Nullable*/ String sqlState, int errorCode) {
+        ExceptionStat exceptionStat = this.exceptions.computeIfRoom(ExceptionStat.signature(sqlState, errorCode),
+                () -> new ExceptionStat(sqlState, errorCode));
+        if (exceptionStat == null) {
+            otherExceptionCount.increment();
+            return;
+        }
+        exceptionStat.add(1L);
+    }
+
+    /**
+     * @param callSite null if the whole stack is in the framework packages
+     * @param weight   number of the executions the sampled one represents
+     */
+    void registerCallSite(/*@Nullable*/ StackTraceElement callSite, long timeNanos, long weight) {
+        CallSites.Stat callSiteStat = callSite == null ? null
+                : callSites.computeIfRoom(callSite, () -> new CallSites.Stat(callSite));
+        if (callSiteStat == null) {
+            otherCallSitesExecuteCount.add(weight);
+            return;
+        }
+        callSiteStat.register(timeNanos, weight);
+    }
+
+    /**
+     * Reads all the counters once. Writers are never blocked, so the values of a snapshot are not guaranteed
+     * to be mutually consistent if the statement is executed concurrently, but each value is stable.
+     */
+    StatementSnapshot snapshot() {
+        return new StatementSnapshot(this);
+    }
+}
@@ -0,0 +1,112 @@
+package org.jdbcmon;
+
+/**
+ * Changes of the statistics of a statement during an interval of a {@link DeltaCursor}. Immutable.
+ */
+public final class StatementDelta {
+
+    private final String sql;
+    private final boolean other;
+    private final long executeCount;
+    private final long failExecuteCount;
+    private final long totalExecuteTimeNanos;
+    private final long totalFetchTimeNanos;
+    private final long totalResultSetSize;
+    private final long totalEmptyResultSets;
+    private final long prepareCount;
+    private final long totalPrepareTimeNanos;
+    private final long leakedStatementCount;
+    private final long[] executeTimeMicros;
+    private final long[] fetchTimeMicros;
+
+    /**
+     * @param values the changes of the counters, indexed by the fields of {@link DeltaCursor}
+     */
+    StatementDelta(String sql, boolean other, long[] values, long[] executeTimeMicros, long[] fetchTimeMicros) {
+        this.sql = sql;
+        this.other = other;
+        this.executeCount = values[DeltaCursor.EXECUTE_COUNT];
+        this.failExecuteCount = values[DeltaCursor.FAIL_EXECUTE_COUNT];
+        this.totalExecuteTimeNanos = values[DeltaCursor.EXECUTE_TIME];
+        this.totalFetchTimeNanos = values[DeltaCursor.FETCH_TIME];
+        this.totalResultSetSize = values[DeltaCursor.RESULT_SET_SIZE];
+        this.totalEmptyResultSets = values[DeltaCursor.EMPTY_RESULT_SETS];
+        this.prepareCount = values[DeltaCursor.PREPARE_COUNT];
+        this.totalPrepareTimeNanos = values[DeltaCursor.PREPARE_TIME];
+        this.leakedStatementCount = values[DeltaCursor.LEAKED_STATEMENTS];
+        this.executeTimeMicros = executeTimeMicros;
+        this.fetchTimeMicros = fetchTimeMicros;
+    }
+
+    public String getSql() {
+        return sql;
+    }
+
+    /**
+     * @return true for the {@code [other]} statement, see {@link StatementSnapshot#isOther()}
+     */
+    public boolean isOther() {
+        return other;
+    }
+
+    public long getExecuteCount() {
+        return executeCount;
+    }
+
+    public long getFailExecuteCount() {
+        return failExecuteCount;
+    }
+
+    public long getTotalExecuteTimeNanos() {
+        return totalExecuteTimeNanos;
+    }
+
+    /**
+     * @return the execute time of the executions of the interval at the {@link StatementSnapshot#PERCENTILES}
+     * and the max, in micros
+     */
+    public long[] getExecuteTimeMicros() {
+        return executeTimeMicros.clone();
+    }
+
+    public long getTotalFetchTimeNanos() {
+        return totalFetchTimeNanos;
+    }
+
+    /**
+     * @return the fetch time of the result sets of the interval at the {@link StatementSnapshot#PERCENTILES}
+     * and the max, in micros
+     */
+    public long[] getFetchTimeMicros() {
+        return fetchTimeMicros.clone();
+    }
+
+    public long getTotalResultSetSize() {
+        return totalResultSetSize;
+    }
+
+    public long getTotalEmptyResultSets() {
+        return totalEmptyResultSets;
+    }
+
+    public long getPrepareCount() {
+        return prepareCount;
+    }
+
+    public long getTotalPrepareTimeNanos() {
+        return totalPrepareTimeNanos;
+    }
+
+    public long getLeakedStatementCount() {
+        return leakedStatementCount;
+    }
+
+    @Override
+    public String toString() {
+        return "StatementDelta{" +
+                "sql='" + sql + '\'' +
+                ", executeCount=" + executeCount +
+                ", totalExecuteTimeNanos=" + totalExecuteTimeNanos +
+                '}';
+    }
+}
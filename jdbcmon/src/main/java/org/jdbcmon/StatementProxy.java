@@ -1,51 +1,611 @@
 package org.jdbcmon;
 
-import java.lang.reflect.InvocationHandler;
-import java.lang.reflect.Method;
-import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
-import static org.jdbcmon.Utils.invokeTarget;
-import static org.jdbcmon.Utils.matches;
+/**
+ * Delegating {@link Statement} wrapper, executions are registered in {@link SqlStat}.
+ *
+ * @param <S> type of the delegate statement
+ */
+class StatementProxy<S extends Statement> implements Statement {
 
-class StatementProxy {
+    final ConnectionProxy connection;
+    final S delegate;
+    final SqlStat sqlStat;
 
-    private static final Class[] STATEMENT_PROXY_INTERFACES = {Statement.class};
+    /**
+     * Sql of the last execution, the result sets of {@link #getResultSet()} are attributed to it
+     */
+    //@Nullable
+    String lastSql;
+    /**
+     * The current result set, its fetch is registered when the statement is re-executed or closed.
+     * Returned again by {@link #getResultSet()} while the driver returns the same one.
+     */
+    //@Nullable
+    private ResultSetProxy resultSet;
+    /**
+     * Sql of the {@link #addBatch(String)} calls since the last batch execution
+     */
+    //@Nullable
+    private List<String> batchSql;
 
-    static class StatementInvocationHandler<T extends Statement> implements InvocationHandler {
-        final T delegate;
-        final SqlStat sqlStat;
+    StatementProxy(ConnectionProxy connection, S delegate, SqlStat sqlStat) {
+        this.connection = connection;
+        this.delegate = delegate;
+        this.sqlStat = sqlStat;
+    }
+
+    /**
+     * Registers the execution in {@link SqlStat} and in the connection
+     */
+    void registerExecute(String sql, long timeNanos, /*@Nullable*/ Throwable exception) {
+        connection.registerExecute(timeNanos);
+        sqlStat.registerExecute(sql, timeNanos, exception);
+        sqlStat.registerContextExecute(timeNanos, exception);
+        sqlStat.registerCallSite(null, sql, timeNanos);
+        sqlStat.registerUnitOfWork(connection, null, sql, null, timeNanos);
+        sqlStat.registerSlowQuery(null, sql, null, timeNanos, exception);
+    }
+
+    /**
+     * @param sql the prepared sql, as is
+     */
+    void registerExecute(String sql, SqlStatementStat stat, long timeNanos, /*@Nullable*/ Throwable exception) {
+        connection.registerExecute(timeNanos);
+        sqlStat.registerExecute(stat, timeNanos, exception);
+        sqlStat.registerContextExecute(timeNanos, exception);
+        sqlStat.registerCallSite(stat, sql, timeNanos);
+        sqlStat.registerUnitOfWork(connection, stat, sql, bindParameters(), timeNanos);
+        sqlStat.registerSlowQuery(stat, sql, bindParameters(), timeNanos, exception);
+    }
+
+    /**
+     * @return the captured bind parameters of the statement, null if not captured
+     */
+    //@Nullable
+    BindParameters bindParameters() {
+        return null;
+    }
+
+    /**
+     * Registers the fetch of a result set of this statement, called by {@link ResultSetProxy}
+     */
+    void registerResultSet(String sql, long fetchTimeNanos, int rows, long weight) {
+        connection.registerFetch(fetchTimeNanos * weight);
+        sqlStat.registerContextFetch(fetchTimeNanos * weight);
+        sqlStat.registerFetch(sql, fetchTimeNanos, weight);
+        sqlStat.registerResultSetSize(sql, rows, weight);
+    }
+
+    /**
+     * @return the weight of the fetch of a result set of the sql if it is sampled, 0 if not
+     */
+    long sampleFetch(String sql) {
+        return sqlStat.sample(sql);
+    }
+
+    /**
+     * Wraps the result set produced by this statement, so that {@link ResultSet#getStatement()} returns the wrapper
+     * and the fetch of it is registered for the sql.
+     *
+     * @param sql the sql to register the fetch time and result set size for, null to not monitor the fetch
+     */
+    //@Nullable
+    ResultSet wrap(/*@Nullable*/ ResultSet resultSet, /*@Nullable*/ String sql) {
+        if (resultSet == null) {
+            return null;
+        }
+        // the fetch of a result set which is not sampled is not monitored
+        long weight = sql == null ? 0L : sampleFetch(sql);
+        ResultSetProxy resultSetProxy = new ResultSetProxy(this, resultSet, weight == 0L ? null : sql, weight);
+        if (sql != null) {
+            registerFetch();
+            this.resultSet = resultSetProxy;
+        }
+        return resultSetProxy;
+    }
+
+    /**
+     * Registers the fetch of the current result set, if it has not been registered on close or exhaustion yet.
+     * The driver closes the result set implicitly on re-execution or statement close.
+     */
+    void registerFetch() {
+        ResultSetProxy resultSet = this.resultSet;
+        if (resultSet != null) {
+            this.resultSet = null;
+            resultSet.registerFetch();
+        }
+    }
+
+    /**
+     * Registers a batch of {@link #addBatch(String)} statements. The batch can be heterogeneous, so every distinct sql
+     * is registered as an execution with the batch size of its entries and the share of the batch time proportional
+     * to the number of them.
+     */
+    private void registerBatch(/*@Nullable*/ List<String> batchSql, long timeNanos, /*@Nullable*/ Throwable exception) {
+        if (batchSql == null || batchSql.isEmpty()) {
+            return;
+        }
+        Map<String, Integer> batchSizes = new LinkedHashMap<>();
+        for (String sql : batchSql) {
+            batchSizes.merge(sql, 1, Integer::sum);
+        }
+        int totalSize = batchSql.size();
+        batchSizes.forEach((sql, batchSize) -> {
+            registerExecute(sql, timeNanos * batchSize / totalSize, exception);
+            sqlStat.registerBatchSize(sql, batchSize);
+        });
+    }
+
+    @Override
+    public ResultSet executeQuery(String sql) throws SQLException {
+        registerFetch();
+        Throwable exception = null;
+        long startNanos = System.nanoTime();
+        try {
+            lastSql = sql;
+            return wrap(delegate.executeQuery(sql), sql);
+        } catch (Throwable e) {
+            exception = e;
+            throw e;
+        } finally {
+            registerExecute(sql, System.nanoTime() - startNanos, exception);
+        }
+    }
+
+    @Override
+    public int executeUpdate(String sql) throws SQLException {
+        registerFetch();
+        Throwable exception = null;
+        long startNanos = System.nanoTime();
+        try {
+            int result = delegate.executeUpdate(sql);
+            sqlStat.registerUpdate(sql, result);
+            return result;
+        } catch (Throwable e) {
+            exception = e;
+            throw e;
+        } finally {
+            registerExecute(sql, System.nanoTime() - startNanos, exception);
+        }
+    }
+
+    @Override
+    public void close() throws SQLException {
+        registerFetch();
+        delegate.close();
+    }
+
+    @Override
+    public int getMaxFieldSize() throws SQLException {
+        return delegate.getMaxFieldSize();
+    }
+
+    @Override
+    public void setMaxFieldSize(int max) throws SQLException {
+        delegate.setMaxFieldSize(max);
+    }
+
+    @Override
+    public int getMaxRows() throws SQLException {
+        return delegate.getMaxRows();
+    }
+
+    @Override
+    public void setMaxRows(int max) throws SQLException {
+        delegate.setMaxRows(max);
+    }
+
+    @Override
+    public void setEscapeProcessing(boolean enable) throws SQLException {
+        delegate.setEscapeProcessing(enable);
+    }
+
+    @Override
+    public int getQueryTimeout() throws SQLException {
+        return delegate.getQueryTimeout();
+    }
+
+    @Override
+    public void setQueryTimeout(int seconds) throws SQLException {
+        delegate.setQueryTimeout(seconds);
+    }
+
+    @Override
+    public void cancel() throws SQLException {
+        delegate.cancel();
+    }
+
+    @Override
+    public SQLWarning getWarnings() throws SQLException {
+        return delegate.getWarnings();
+    }
+
+    @Override
+    public void clearWarnings() throws SQLException {
+        delegate.clearWarnings();
+    }
+
+    @Override
+    public void setCursorName(String name) throws SQLException {
+        delegate.setCursorName(name);
+    }
+
+    @Override
+    public boolean execute(String sql) throws SQLException {
+        registerFetch();
+        Throwable exception = null;
+        long startNanos = System.nanoTime();
+        try {
+            lastSql = sql;
+            return delegate.execute(sql);
+        } catch (Throwable e) {
+            exception = e;
+            throw e;
+        } finally {
+            registerExecute(sql, System.nanoTime() - startNanos, exception);
+        }
+    }
+
+    @Override
+    public ResultSet getResultSet() throws SQLException {
+        ResultSet resultSet = delegate.getResultSet();
+        // the same result set may be requested several times, it is wrapped and registered once
+        ResultSetProxy current = this.resultSet;
+        if (current != null && current.wraps(resultSet)) {
+            return current;
+        }
+        return wrap(resultSet, lastSql);
+    }
+
+    @Override
+    public int getUpdateCount() throws SQLException {
+        return delegate.getUpdateCount();
+    }
+
+    @Override
+    public boolean getMoreResults() throws SQLException {
+        registerFetch();
+        return delegate.getMoreResults();
+    }
+
+    @Override
+    public void setFetchDirection(int direction) throws SQLException {
+        delegate.setFetchDirection(direction);
+    }
+
+    @Override
+    public int getFetchDirection() throws SQLException {
+        return delegate.getFetchDirection();
+    }
+
+    @Override
+    public void setFetchSize(int rows) throws SQLException {
+        delegate.setFetchSize(rows);
+    }
 
-        StatementInvocationHandler(T delegate, SqlStat sqlStat) {
-            this.delegate = delegate;
-            this.sqlStat = sqlStat;
+    @Override
+    public int getFetchSize() throws SQLException {
+        return delegate.getFetchSize();
+    }
+
+    @Override
+    public int getResultSetConcurrency() throws SQLException {
+        return delegate.getResultSetConcurrency();
+    }
+
+    @Override
+    public int getResultSetType() throws SQLException {
+        return delegate.getResultSetType();
+    }
+
+    @Override
+    public void addBatch(String sql) throws SQLException {
+        delegate.addBatch(sql);
+        if (batchSql == null) {
+            batchSql = new ArrayList<>();
+        }
+        batchSql.add(sql);
+    }
+
+    @Override
+    public void clearBatch() throws SQLException {
+        delegate.clearBatch();
+        if (batchSql != null) {
+            batchSql.clear();
+        }
+    }
+
+    @Override
+    public int[] executeBatch() throws SQLException {
+        registerFetch();
+        List<String> batchSql = this.batchSql;
+        this.batchSql = null;
+        Throwable exception = null;
+        long startNanos = System.nanoTime();
+        try {
+            int[] result = delegate.executeBatch();
+            if (batchSql != null && batchSql.size() == result.length) {
+                for (int i = 0; i < result.length; i++) {
+                    sqlStat.registerUpdate(batchSql.get(i), result[i]);
+                }
+            }
+            return result;
+        } catch (Throwable e) {
+            exception = e;
+            throw e;
+        } finally {
+            registerBatch(batchSql, System.nanoTime() - startNanos, exception);
+        }
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return connection;
+    }
+
+    @Override
+    public boolean getMoreResults(int current) throws SQLException {
+        registerFetch();
+        return delegate.getMoreResults(current);
+    }
+
+    @Override
+    public ResultSet getGeneratedKeys() throws SQLException {
+        return wrap(delegate.getGeneratedKeys(), null);
+    }
+
+    @Override
+    public int executeUpdate(String sql, int autoGeneratedKeys) throws SQLException {
+        registerFetch();
+        Throwable exception = null;
+        long startNanos = System.nanoTime();
+        try {
+            int result = delegate.executeUpdate(sql, autoGeneratedKeys);
+            sqlStat.registerUpdate(sql, result);
+            return result;
+        } catch (Throwable e) {
+            exception = e;
+            throw e;
+        } finally {
+            registerExecute(sql, System.nanoTime() - startNanos, exception);
+        }
+    }
+
+    @Override
+    public int executeUpdate(String sql, int[] columnIndexes) throws SQLException {
+        registerFetch();
+        Throwable exception = null;
+        long startNanos = System.nanoTime();
+        try {
+            int result = delegate.executeUpdate(sql, columnIndexes);
+            sqlStat.registerUpdate(sql, result);
+            return result;
+        } catch (Throwable e) {
+            exception = e;
+            throw e;
+        } finally {
+            registerExecute(sql, System.nanoTime() - startNanos, exception);
+        }
+    }
+
+    @Override
+    public int executeUpdate(String sql, String[] columnNames) throws SQLException {
+        registerFetch();
+        Throwable exception = null;
+        long startNanos = System.nanoTime();
+        try {
+            int result = delegate.executeUpdate(sql, columnNames);
+            sqlStat.registerUpdate(sql, result);
+            return result;
+        } catch (Throwable e) {
+            exception = e;
+            throw e;
+        } finally {
+            registerExecute(sql, System.nanoTime() - startNanos, exception);
+        }
+    }
+
+    @Override
+    public boolean execute(String sql, int autoGeneratedKeys) throws SQLException {
+        registerFetch();
+        Throwable exception = null;
+        long startNanos = System.nanoTime();
+        try {
+            lastSql = sql;
+            return delegate.execute(sql, autoGeneratedKeys);
+        } catch (Throwable e) {
+            exception = e;
+            throw e;
+        } finally {
+            registerExecute(sql, System.nanoTime() - startNanos, exception);
+        }
+    }
+
+    @Override
+    public boolean execute(String sql, int[] columnIndexes) throws SQLException {
+        registerFetch();
+        Throwable exception = null;
+        long startNanos = System.nanoTime();
+        try {
+            lastSql = sql;
+            return delegate.execute(sql, columnIndexes);
+        } catch (Throwable e) {
+            exception = e;
+            throw e;
+        } finally {
+            registerExecute(sql, System.nanoTime() - startNanos, exception);
         }
+    }
+
+    @Override
+    public boolean execute(String sql, String[] columnNames) throws SQLException {
+        registerFetch();
+        Throwable exception = null;
+        long startNanos = System.nanoTime();
+        try {
+            lastSql = sql;
+            return delegate.execute(sql, columnNames);
+        } catch (Throwable e) {
+            exception = e;
+            throw e;
+        } finally {
+            registerExecute(sql, System.nanoTime() - startNanos, exception);
+        }
+    }
+
+    @Override
+    public int getResultSetHoldability() throws SQLException {
+        return delegate.getResultSetHoldability();
+    }
+
+    @Override
+    public boolean isClosed() throws SQLException {
+        return delegate.isClosed();
+    }
+
+    @Override
+    public void setPoolable(boolean poolable) throws SQLException {
+        delegate.setPoolable(poolable);
+    }
+
+    @Override
+    public boolean isPoolable() throws SQLException {
+        return delegate.isPoolable();
+    }
+
+    @Override
+    public void closeOnCompletion() throws SQLException {
+        delegate.closeOnCompletion();
+    }
+
+    @Override
+    public boolean isCloseOnCompletion() throws SQLException {
+        return delegate.isCloseOnCompletion();
+    }
 
-        @Override
-        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-            Throwable exception = null;
+    @Override
+    public long getLargeUpdateCount() throws SQLException {
+        return delegate.getLargeUpdateCount();
+    }
+
+    @Override
+    public void setLargeMaxRows(long max) throws SQLException {
+        delegate.setLargeMaxRows(max);
+    }
+
+    @Override
+    public long getLargeMaxRows() throws SQLException {
+        return delegate.getLargeMaxRows();
+    }
 
-            if (matches(method, "executeQuery", String.class)) {
-                String sql = (String) args[0];
-                long startNanos = System.nanoTime();
-                try {
-                    return invokeTarget(method, delegate, args);
-                } catch (Throwable e) {
-                    exception = e;
-                    throw e;
-                } finally {
-                    sqlStat.registerExecute(sql, System.nanoTime() - startNanos, exception);
+    @Override
+    public long[] executeLargeBatch() throws SQLException {
+        registerFetch();
+        List<String> batchSql = this.batchSql;
+        this.batchSql = null;
+        Throwable exception = null;
+        long startNanos = System.nanoTime();
+        try {
+            long[] result = delegate.executeLargeBatch();
+            if (batchSql != null && batchSql.size() == result.length) {
+                for (int i = 0; i < result.length; i++) {
+                    sqlStat.registerUpdate(batchSql.get(i), result[i]);
                 }
             }
+            return result;
+        } catch (Throwable e) {
+            exception = e;
+            throw e;
+        } finally {
+            registerBatch(batchSql, System.nanoTime() - startNanos, exception);
+        }
+    }
 
-            return invokeTarget(method, delegate, args);
+    @Override
+    public long executeLargeUpdate(String sql) throws SQLException {
+        registerFetch();
+        Throwable exception = null;
+        long startNanos = System.nanoTime();
+        try {
+            long result = delegate.executeLargeUpdate(sql);
+            sqlStat.registerUpdate(sql, result);
+            return result;
+        } catch (Throwable e) {
+            exception = e;
+            throw e;
+        } finally {
+            registerExecute(sql, System.nanoTime() - startNanos, exception);
         }
     }
 
-    static Statement proxy(Statement delegate, SqlStat sqlStat) {
-        InvocationHandler handler = new StatementInvocationHandler<>(delegate, sqlStat);
+    @Override
+    public long executeLargeUpdate(String sql, int autoGeneratedKeys) throws SQLException {
+        registerFetch();
+        Throwable exception = null;
+        long startNanos = System.nanoTime();
+        try {
+            long result = delegate.executeLargeUpdate(sql, autoGeneratedKeys);
+            sqlStat.registerUpdate(sql, result);
+            return result;
+        } catch (Throwable e) {
+            exception = e;
+            throw e;
+        } finally {
+            registerExecute(sql, System.nanoTime() - startNanos, exception);
+        }
+    }
+
+    @Override
+    public long executeLargeUpdate(String sql, int[] columnIndexes) throws SQLException {
+        registerFetch();
+        Throwable exception = null;
+        long startNanos = System.nanoTime();
+        try {
+            long result = delegate.executeLargeUpdate(sql, columnIndexes);
+            sqlStat.registerUpdate(sql, result);
+            return result;
+        } catch (Throwable e) {
+            exception = e;
+            throw e;
+        } finally {
+            registerExecute(sql, System.nanoTime() - startNanos, exception);
+        }
+    }
+
+    @Override
+    public long executeLargeUpdate(String sql, String[] columnNames) throws SQLException {
+        registerFetch();
+        Throwable exception = null;
+        long startNanos = System.nanoTime();
+        try {
+            long result = delegate.executeLargeUpdate(sql, columnNames);
+            sqlStat.registerUpdate(sql, result);
+            return result;
+        } catch (Throwable e) {
+            exception = e;
+            throw e;
+        } finally {
+            registerExecute(sql, System.nanoTime() - startNanos, exception);
+        }
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        return delegate.unwrap(iface);
+    }
 
-        return (Statement) Proxy.newProxyInstance(Statement.class.getClassLoader(),
-                STATEMENT_PROXY_INTERFACES, handler);
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return delegate.isWrapperFor(iface);
     }
 }
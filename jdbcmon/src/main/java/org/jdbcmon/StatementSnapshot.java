@@ -0,0 +1,297 @@
+package org.jdbcmon;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.jdbcmon.SqlStat.formatAvg;
+import static org.jdbcmon.SqlStatementStat.NANOS_TO_MILLIS_MULTIPLIER;
+import static org.jdbcmon.SqlStatementStat.WINDOW_EXECUTE_COUNT;
+import static org.jdbcmon.SqlStatementStat.WINDOW_EXECUTE_TIME;
+import static org.jdbcmon.SqlStatementStat.WINDOW_FAIL_EXECUTE_COUNT;
+import static org.jdbcmon.SqlStatementStat.WINDOW_FETCH_TIME;
+import static org.jdbcmon.SqlStatementStat.WINDOW_FIELDS;
+import static org.jdbcmon.SqlStatementStat.getPercentilesReport;
+
+/**
+ * Statistics of a statement read once from the live counters, with typed values for the programmatic consumers.
+ * Writers are never blocked, so the values of a snapshot are not guaranteed to be mutually consistent if
+ * the statement is executed concurrently, but each value is stable. Immutable.
+ */
+public final class StatementSnapshot {
+
+    /**
+     * Percentiles of the time values, see {@link #getExecuteTimeMicros()}
+     */
+    public static final double[] PERCENTILES = {50.0d, 90.0d, 99.0d, 99.9d};
+
+    final SqlStatementStat stat;
+    final long totalExecuteTimeNanos;
+    final long totalEmptyResultSets;
+    final long totalResultSetSize;
+    final long totalFetchTimeNanos;
+    final long prepareCount;
+    final long executeCount;
+    final long failExecuteCount;
+    final long totalPrepareTimeNanos;
+    final long closedStatementCount;
+    final long closedStatementExecuteCount;
+    final long totalStatementLifetimeNanos;
+    final long singleUseStatementCount;
+    final long leakedStatementCount;
+    final RollingWindow window;
+    /**
+     * Rolling window counters of every report window of {@link #window}, and the time covered by them
+     */
+    final long[][] windowValues;
+    final long[] windowCoveredNanos;
+    /**
+     * Values of the {@link #PERCENTILES} and the max, in micros
+     */
+    final long[] executeTimeMicros;
+    final long[] fetchTimeMicros;
+
+    StatementSnapshot(SqlStatementStat stat) {
+        this.stat = stat;
+        this.totalExecuteTimeNanos = stat.totalExecuteTimeNanos.sum();
+        this.totalEmptyResultSets = stat.totalEmptyResultSets.sum();
+        this.totalResultSetSize = stat.totalResultSetSize.sum();
+        this.totalFetchTimeNanos = stat.totalFetchTimeNanos.sum();
+        this.prepareCount = stat.prepareCount.sum();
+        this.executeCount = stat.executeCount.sum();
+        this.failExecuteCount = stat.failExecuteCount.sum();
+        this.totalPrepareTimeNanos = stat.totalPrepareTimeNanos.sum();
+        this.closedStatementCount = stat.closedStatementCount.sum();
+        this.closedStatementExecuteCount = stat.closedStatementExecuteCount.sum();
+        this.totalStatementLifetimeNanos = stat.totalStatementLifetimeNanos.sum();
+        this.singleUseStatementCount = stat.singleUseStatementCount.sum();
+        this.leakedStatementCount = stat.leakedStatementCount.sum();
+        this.executeTimeMicros = percentiles(stat.executeHistogram);
+        this.fetchTimeMicros = percentiles(stat.fetchHistogram);
+
+        RollingCounters windowCounters = stat.windowCounters;
+        this.window = windowCounters.window;
+        long nowNanos = System.nanoTime();
+        long currentSlice = window.currentSlice(nowNanos);
+        this.windowValues = new long[window.reportSlices.length][WINDOW_FIELDS];
+        this.windowCoveredNanos = new long[window.reportSlices.length];
+        for (int i = 0; i < window.reportSlices.length; i++) {
+            for (int field = 0; field < WINDOW_FIELDS; field++) {
+                windowValues[i][field] = windowCounters.sum(field, window.reportSlices[i], currentSlice);
+            }
+            windowCoveredNanos[i] = window.coveredNanos(window.reportSlices[i], nowNanos);
+        }
+    }
+
+    static long[] percentiles(Histogram histogram) {
+        long[] values = histogram.getValuesAtPercentiles(PERCENTILES);
+        long[] res = new long[PERCENTILES.length + 1];
+        System.arraycopy(values, 0, res, 0, values.length);
+        res[values.length] = histogram.getMaxValue();
+        return res;
+    }
+
+    public String getSql() {
+        return stat.sql;
+    }
+
+    /**
+     * @return true for the {@code [other]} statement, the totals of the statements evicted from the table
+     */
+    public boolean isOther() {
+        return SqlStat.OTHER_SQL.equals(stat.sql);
+    }
+
+    public long getExecuteCount() {
+        return executeCount;
+    }
+
+    /**
+     * @return max overestimation of the execute count: the count inherited from the statement evicted from
+     * the table when this one was added
+     */
+    public long getExecuteCountError() {
+        return stat.overestimation;
+    }
+
+    public long getFailExecuteCount() {
+        return failExecuteCount;
+    }
+
+    public long getTotalExecuteTimeNanos() {
+        return totalExecuteTimeNanos;
+    }
+
+    /**
+     * @return the execute time at the {@link #PERCENTILES} and the max, in micros
+     */
+    public long[] getExecuteTimeMicros() {
+        return executeTimeMicros.clone();
+    }
+
+    public long getTotalFetchTimeNanos() {
+        return totalFetchTimeNanos;
+    }
+
+    /**
+     * @return the fetch time of a result set at the {@link #PERCENTILES} and the max, in micros
+     */
+    public long[] getFetchTimeMicros() {
+        return fetchTimeMicros.clone();
+    }
+
+    public long getTotalResultSetSize() {
+        return totalResultSetSize;
+    }
+
+    public long getTotalEmptyResultSets() {
+        return totalEmptyResultSets;
+    }
+
+    public long getPrepareCount() {
+        return prepareCount;
+    }
+
+    public long getTotalPrepareTimeNanos() {
+        return totalPrepareTimeNanos;
+    }
+
+    /**
+     * @return number of the closed (or leaked) prepared statements
+     */
+    public long getClosedStatementCount() {
+        return closedStatementCount;
+    }
+
+    /**
+     * @return number of the executions of the closed (or leaked) prepared statements
+     */
+    public long getClosedStatementExecuteCount() {
+        return closedStatementExecuteCount;
+    }
+
+    public long getSingleUseStatementCount() {
+        return singleUseStatementCount;
+    }
+
+    public long getLeakedStatementCount() {
+        return leakedStatementCount;
+    }
+
+    Map<String, Object> getStat(long uptimeSeconds, boolean plain) {
+        Map<String, Object> map = new LinkedHashMap<>();
+
+        String sql = stat.sql;
+        map.put("sql", plain ? sql.replace('\n', ' ').replace('\r', ' ') : sql);
+
+        if (prepareCount > 0) {
+            map.put("prepareCount", prepareCount);
+            map.put("prepareAvgTime", formatAvg(totalPrepareTimeNanos, prepareCount, NANOS_TO_MILLIS_MULTIPLIER));
+        }
+        if (closedStatementCount > 0) {
+            // the reuse of the prepared statements: low values defeat the statement caches
+            map.put("executesPerStatement", formatAvg(closedStatementExecuteCount, closedStatementCount, 1.0d));
+            map.put("singleUseStatements", singleUseStatementCount);
+            map.put("statementAvgLifetime", formatAvg(totalStatementLifetimeNanos, closedStatementCount,
+                    NANOS_TO_MILLIS_MULTIPLIER));
+        }
+        if (leakedStatementCount > 0) {
+            map.put("leakedStatements", leakedStatementCount);
+        }
+        map.put("executeCount", executeCount);
+        if (stat.overestimation > 0) {
+            map.put("executeCountError", stat.overestimation);
+        }
+        map.put("execPerMinute", formatAvg(executeCount, uptimeSeconds, 60));
+
+        if (failExecuteCount != 0) {
+            map.put("failExecuteCount", failExecuteCount);
+        }
+
+        map.put("totalExecuteTime", TimeUnit.NANOSECONDS.toMillis(totalExecuteTimeNanos));
+        map.put("executeAvgTotalTime", formatAvg(totalExecuteTimeNanos, executeCount, NANOS_TO_MILLIS_MULTIPLIER));
+        map.put("executeAvgFloatTime", stat.avgExecuteTimeMs.toString(2));
+        map.put("executeTime", getPercentilesReport(executeTimeMicros));
+
+        if (totalFetchTimeNanos > 0) {
+            map.put("totalFetchTime", TimeUnit.NANOSECONDS.toMillis(totalFetchTimeNanos));
+            map.put("fetchAvgTotalTime", formatAvg(totalFetchTimeNanos, executeCount, NANOS_TO_MILLIS_MULTIPLIER));
+            map.put("fetchAvgFloatTime", stat.avgFetchTimeMs.toString(2));
+            map.put("fetchTime", getPercentilesReport(fetchTimeMicros));
+        }
+
+        Map<String, Object> windows = new LinkedHashMap<>();
+        for (int i = 0; i < window.reportNames.length; i++) {
+            long[] values = windowValues[i];
+            long windowExecuteCount = values[WINDOW_EXECUTE_COUNT];
+            if (windowExecuteCount > 0) {
+                Map<String, Object> windowMap = new LinkedHashMap<>();
+                windowMap.put("executeCount", windowExecuteCount);
+                windowMap.put("execPerMinute", formatAvg(windowExecuteCount,
+                        TimeUnit.NANOSECONDS.toMillis(windowCoveredNanos[i]), 60_000.0d));
+                if (values[WINDOW_FAIL_EXECUTE_COUNT] > 0) {
+                    windowMap.put("failExecuteCount", values[WINDOW_FAIL_EXECUTE_COUNT]);
+                }
+                windowMap.put("executeAvgTotalTime", formatAvg(values[WINDOW_EXECUTE_TIME], windowExecuteCount,
+                        NANOS_TO_MILLIS_MULTIPLIER));
+                if (values[WINDOW_FETCH_TIME] > 0) {
+                    windowMap.put("fetchAvgTotalTime", formatAvg(values[WINDOW_FETCH_TIME], windowExecuteCount,
+                            NANOS_TO_MILLIS_MULTIPLIER));
+                }
+                windows.put(window.reportNames[i], windowMap);
+            }
+        }
+        if (!windows.isEmpty()) {
+            map.put("windows", windows);
+        }
+
+        if (!stat.batch.isEmpty()) {
+            SortedMap<Integer, Integer> batchMap = new TreeMap<>();
+            stat.batch.forEach((key, value) -> batchMap.put(key, value.intValue()));
+            map.put("batch", batchMap);
+        }
+        if (!stat.update.isEmpty()) {
+            SortedMap<Long, Long> updateMap = new TreeMap<>();
+            stat.update.forEach((key, value) -> updateMap.put(key, value.get()));
+            map.put("update", updateMap);
+        }
+
+        if (totalResultSetSize > 0) {
+            map.put("totalResultSetSize", totalResultSetSize);
+        }
+        if (totalEmptyResultSets > 0) {
+            map.put("totalEmptyResultSets", totalEmptyResultSets);
+        }
+
+        List<CallSites.Stat> callSites = stat.callSites.copyValues();
+        if (!callSites.isEmpty()) {
+            callSites.sort(Comparator.comparing((CallSites.Stat e) -> e.executeCount.sum()).reversed());
+            List<Map<String, Object>> callSiteList = new ArrayList<>();
+            for (CallSites.Stat callSite : callSites) {
+                callSiteList.add(callSite.report());
+            }
+            map.put("callSites", callSiteList);
+        }
+        long otherCallSitesExecuteCount = stat.otherCallSitesExecuteCount.sum();
+        if (otherCallSitesExecuteCount > 0) {
+            map.put("otherCallSitesExecuteCount", otherCallSitesExecuteCount);
+        }
+
+        List<Map<String, Object>> exList = new ArrayList<>();
+        stat.exceptions.forEach((key, exceptionStat) -> exList.add(exceptionStat.report()));
+        if (!exList.isEmpty()) {
+            map.put("exceptions", exList);
+        }
+        long otherExceptionCount = stat.otherExceptionCount.sum();
+        if (otherExceptionCount > 0) {
+            map.put("otherExceptionCount", otherExceptionCount);
+        }
+
+        return map;
+    }
+}
@@ -0,0 +1,281 @@
+package org.jdbcmon;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compact versioned binary file of the aggregated statistics of a data source: the totals and, per statement,
+ * the counters, the execute and fetch time histograms, the batch sizes, the update counts and the exceptions.
+ * The recent time windows, the call sites and the connection statistics are not saved.
+ * <p>
+ * The files are mergeable: {@link MonitoringDataSource#setStatisticsPersistence(Path, long, java.util.concurrent.TimeUnit)}
+ * restores the statistics of the previous run on startup, and the files of several nodes can be merged offline
+ * for a fleet-wide view:
+ * <pre>
+ * StatisticsFile.merge(Arrays.asList(node1, node2, node3), fleet);
+ * List&lt;Map&lt;String, ?&gt;&gt; report = StatisticsFile.report(fleet);
+ * </pre>
+ * Format, big endian: magic, version, save time, uptime, totals, then the statements. A reader rejects the files
+ * of a newer version.
+ */
+public final class StatisticsFile {
+
+    static final int MAGIC = 0x4A444D53; // JDMS
+    static final int VERSION = 1;
+
+    private StatisticsFile() {
+    }
+
+    /**
+     * Merges the files of the nodes which ran during the same time into one, the rates are computed over
+     * the longest uptime
+     */
+    public static void merge(List<Path> inputs, Path output) throws IOException {
+        SqlStat sqlStat = new SqlStat();
+        for (Path input : inputs) {
+            read(input, sqlStat, true);
+        }
+        write(sqlStat, output);
+    }
+
+    /**
+     * @return the report of the statistics of the file, in the format of {@link MonitoringDataSource#report()}
+     */
+    public static List<Map<String, ?>> report(Path file) throws IOException {
+        SqlStat sqlStat = new SqlStat();
+        read(file, sqlStat, true);
+        return sqlStat.report(null, false);
+    }
+
+    /**
+     * @return the statistics of the file
+     */
+    public static MonitoringSnapshot snapshot(Path file) throws IOException {
+        SqlStat sqlStat = new SqlStat();
+        read(file, sqlStat, true);
+        return sqlStat.snapshot();
+    }
+
+    /**
+     * Writes the statistics to a temporary file, then replaces the file with it, so that the file is complete
+     * even if the process dies while writing. Each write has its own temporary file, the concurrent writers
+     * of a file do not mix their content.
+     */
+    static void write(SqlStat sqlStat, Path file) throws IOException {
+        Path directory = file.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path temp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try {
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp))) {
+                write(sqlStat, new DataOutputStream(out));
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        sqlStat.addStatisticsFile(file);
+    }
+
+    private static void write(SqlStat sqlStat, DataOutputStream out) throws IOException {
+        MonitoringSnapshot snapshot = sqlStat.snapshot();
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(snapshot.getTimestampMillis());
+        out.writeLong(snapshot.getUptimeMillis());
+        out.writeLong(snapshot.getTotalPrepareCount());
+        out.writeLong(snapshot.getTotalExecuteCount());
+        out.writeLong(snapshot.getTotalExecuteTimeNanos());
+        out.writeLong(snapshot.getTotalFetchTimeNanos());
+        out.writeLong(snapshot.getEvictedStatementCount());
+
+        List<StatementSnapshot> statements = snapshot.getStatements();
+        out.writeInt(statements.size());
+        for (StatementSnapshot statement : statements) {
+            writeStatement(statement, out);
+        }
+        out.flush();
+    }
+
+    private static void writeStatement(StatementSnapshot statement, DataOutput out) throws IOException {
+        SqlStatementStat stat = statement.stat;
+        writeString(out, stat.sql);
+        out.writeBoolean(statement.isOther());
+        out.writeLong(statement.executeCount);
+        out.writeLong(statement.failExecuteCount);
+        out.writeLong(statement.totalExecuteTimeNanos);
+        out.writeLong(statement.totalFetchTimeNanos);
+        out.writeLong(statement.totalResultSetSize);
+        out.writeLong(statement.totalEmptyResultSets);
+        out.writeLong(statement.prepareCount);
+        out.writeLong(statement.totalPrepareTimeNanos);
+        out.writeLong(statement.closedStatementCount);
+        out.writeLong(statement.closedStatementExecuteCount);
+        out.writeLong(statement.totalStatementLifetimeNanos);
+        out.writeLong(statement.singleUseStatementCount);
+        out.writeLong(statement.leakedStatementCount);
+        stat.executeHistogram.write(out);
+        stat.fetchHistogram.write(out);
+
+        Map<Integer, Integer> batch = new LinkedHashMap<>();
+        stat.batch.forEach((size, count) -> batch.put(size, count.get()));
+        out.writeInt(batch.size());
+        for (Map.Entry<Integer, Integer> entry : batch.entrySet()) {
+            out.writeInt(entry.getKey());
+            out.writeInt(entry.getValue());
+        }
+        Map<Long, Long> update = new LinkedHashMap<>();
+        stat.update.forEach((result, count) -> update.put(result, count.get()));
+        out.writeInt(update.size());
+        for (Map.Entry<Long, Long> entry : update.entrySet()) {
+            out.writeLong(entry.getKey());
+            out.writeLong(entry.getValue());
+        }
+        Map<String, ExceptionStat> exceptions = new LinkedHashMap<>();
+        stat.exceptions.forEach(exceptions::put);
+        out.writeInt(exceptions.size());
+        for (Map.Entry<String, ExceptionStat> entry : exceptions.entrySet()) {
+            writeString(out, entry.getKey());
+            entry.getValue().write(out);
+        }
+        out.writeLong(stat.otherExceptionCount.sum());
+    }
+
+    /**
+     * Adds the statistics of the file to the given ones, once the whole file is read: nothing is added from
+     * a corrupt file
+     *
+     * @param concurrent true if the statistics of the file were collected during the same time, by another node,
+     *                   false if before, by the previous run
+     */
+    static void read(Path file, SqlStat sqlStat, boolean concurrent) throws IOException {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+            read(new DataInputStream(in), sqlStat, concurrent);
+        }
+    }
+
+    private static void read(DataInputStream in, SqlStat sqlStat, boolean concurrent) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a statistics file");
+        }
+        int version = in.readInt();
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Unsupported statistics file version " + version);
+        }
+        in.readLong(); // save time
+        long uptimeMs = in.readLong();
+        long prepareCount = in.readLong();
+        long executeCount = in.readLong();
+        long executeTimeNanos = in.readLong();
+        long fetchTimeNanos = in.readLong();
+        long evictedStatementCount = in.readLong();
+
+        int statementCount = in.readInt();
+        List<SqlStatementStat> statements = new ArrayList<>();
+        SqlStatementStat otherStat = sqlStat.newDetachedStat(SqlStat.OTHER_SQL);
+        for (int i = 0; i < statementCount; i++) {
+            String sql = readNonNullString(in);
+            boolean other = in.readBoolean();
+            SqlStatementStat stat = other ? otherStat : sqlStat.newDetachedStat(sql);
+            readStatement(in, stat);
+            if (!other) {
+                statements.add(stat);
+            }
+        }
+
+        for (SqlStatementStat stat : statements) {
+            sqlStat.mergeStatement(stat, false);
+        }
+        sqlStat.mergeStatement(otherStat, true);
+        sqlStat.mergeTotals(uptimeMs, prepareCount, executeCount, executeTimeNanos, fetchTimeNanos,
+                evictedStatementCount, concurrent);
+    }
+
+    private static void readStatement(DataInput in, SqlStatementStat stat) throws IOException {
+        stat.executeCount.add(in.readLong());
+        stat.failExecuteCount.add(in.readLong());
+        stat.totalExecuteTimeNanos.add(in.readLong());
+        stat.totalFetchTimeNanos.add(in.readLong());
+        stat.totalResultSetSize.add(in.readLong());
+        stat.totalEmptyResultSets.add(in.readLong());
+        stat.prepareCount.add(in.readLong());
+        stat.totalPrepareTimeNanos.add(in.readLong());
+        stat.closedStatementCount.add(in.readLong());
+        stat.closedStatementExecuteCount.add(in.readLong());
+        stat.totalStatementLifetimeNanos.add(in.readLong());
+        stat.singleUseStatementCount.add(in.readLong());
+        stat.leakedStatementCount.add(in.readLong());
+        stat.executeHistogram.add(Histogram.read(in));
+        stat.fetchHistogram.add(Histogram.read(in));
+
+        int batchCount = in.readInt();
+        for (int i = 0; i < batchCount; i++) {
+            int size = in.readInt();
+            int count = in.readInt();
+            stat.batch.computeIfAbsent(size, AtomicInteger::new).addAndGet(count);
+        }
+        int updateCount = in.readInt();
+        for (int i = 0; i < updateCount; i++) {
+            long result = in.readLong();
+            long count = in.readLong();
+            stat.update.computeIfAbsent(result, AtomicLong::new).addAndGet(count);
+        }
+        int exceptionCount = in.readInt();
+        for (int i = 0; i < exceptionCount; i++) {
+            String signature = readNonNullString(in);
+            stat.mergeException(signature, ExceptionStat.read(in));
+        }
+        stat.otherExceptionCount.add(in.readLong());
+    }
+
+    /**
+     * Writes a nullable string as its UTF-8 length (-1 for null) and bytes, with no length limit
+     */
+    static void writeString(DataOutput out, /*@Nullable*/ String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    //@Nullable
+    static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < -1) {
+            throw new IOException("Corrupt string length " + length);
+        }
+        if (length == -1) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static String readNonNullString(DataInput in) throws IOException {
+        String value = readString(in);
+        if (value == null) {
+            throw new IOException("Corrupt statistics file: null string");
+        }
+        return value;
+    }
+}
@@ -0,0 +1,65 @@
+package org.jdbcmon;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the statistics of a data source across restarts: restores the {@link StatisticsFile} of the previous run
+ * on start, then writes the statistics to it periodically on a background thread and at the JVM shutdown.
+ */
+class StatisticsPersistence implements AutoCloseable {
+
+    private final SqlStat sqlStat;
+    private final Path file;
+    private final ScheduledExecutorService executor;
+    private final Thread shutdownHook;
+
+    StatisticsPersistence(SqlStat sqlStat, Path file, long intervalNanos) throws IOException {
+        Utils.checkArgument(intervalNanos > 0L, "Illegal interval %s", intervalNanos);
+        this.sqlStat = sqlStat;
+        this.file = file;
+        // the statistics of the file are restored once: re-enabling the persistence must not count them twice
+        if (!sqlStat.containsStatisticsFile(file) && Files.exists(file)) {
+            StatisticsFile.read(file, sqlStat, false);
+        }
+        sqlStat.addStatisticsFile(file);
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "jdbcmon-persistence");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.scheduleWithFixedDelay(this::save, intervalNanos, intervalNanos, TimeUnit.NANOSECONDS);
+        this.shutdownHook = new Thread(this::save, "jdbcmon-persistence-shutdown");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    /**
+     * Synchronized, as the periodic, the shutdown and the closing saves may run concurrently
+     */
+    private synchronized void save() {
+        try {
+            StatisticsFile.write(sqlStat, file);
+        } catch (IOException e) {
+            // the monitoring must not fail the application: the next save retries, the file is left intact
+        }
+    }
+
+    /**
+     * Stops the periodic saves and saves the statistics
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException e) {
+            // the JVM is shutting down, the hook saves
+            return;
+        }
+        save();
+    }
+}
@@ -0,0 +1,55 @@
+package org.jdbcmon;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.jdbcmon.SqlStat.formatAvg;
+import static org.jdbcmon.SqlStatementStat.NANOS_TO_MILLIS_MULTIPLIER;
+
+/**
+ * Totals of the executions of a tag set of {@link MonitoringContext}. Thread safe.
+ */
+class TagStat {
+
+    final String tags;
+    final LongAdder executeCount = new LongAdder();
+    final LongAdder failExecuteCount = new LongAdder();
+    final LongAdder totalExecuteTimeNanos = new LongAdder();
+    final LongAdder totalFetchTimeNanos = new LongAdder();
+
+    TagStat(String tags) {
+        this.tags = tags;
+    }
+
+    void registerExecute(long timeNanos, boolean failed) {
+        executeCount.increment();
+        totalExecuteTimeNanos.add(timeNanos);
+        if (failed) {
+            failExecuteCount.increment();
+        }
+    }
+
+    void registerFetch(long timeNanos) {
+        totalFetchTimeNanos.add(timeNanos);
+    }
+
+    Map<String, Object> report() {
+        long executeCount = this.executeCount.sum();
+        long totalExecuteTimeNanos = this.totalExecuteTimeNanos.sum();
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("executeCount", executeCount);
+        long failExecuteCount = this.failExecuteCount.sum();
+        if (failExecuteCount > 0) {
+            map.put("failExecuteCount", failExecuteCount);
+        }
+        map.put("totalExecuteTime", TimeUnit.NANOSECONDS.toMillis(totalExecuteTimeNanos));
+        map.put("executeAvgTotalTime", formatAvg(totalExecuteTimeNanos, executeCount, NANOS_TO_MILLIS_MULTIPLIER));
+        long totalFetchTimeNanos = this.totalFetchTimeNanos.sum();
+        if (totalFetchTimeNanos > 0) {
+            map.put("totalFetchTime", TimeUnit.NANOSECONDS.toMillis(totalFetchTimeNanos));
+        }
+        return map;
+    }
+}
@@ -0,0 +1,133 @@
+package org.jdbcmon;
+
+import java.util.Arrays;
+
+/**
+ * Executions of a unit of work (a connection checkout or a {@link MonitoringContext}), to detect the N+1 pattern:
+ * the same statement executed more than a threshold number of times, and the repeated identical queries: the same
+ * sql with the same bind parameters. The findings are registered in {@link SqlStat} when the unit ends.
+ * <p>
+ * The executions are counted in two small open addressing tables, so registering does not allocate: one keyed by
+ * the statement handle for the N+1 detection, and one keyed by the statement handle and the signature of the sql
+ * or of the parameters for the repeated queries. The tables are bounded separately, so the many distinct
+ * parameters of an N+1 loop do not take the room of the statements. The entries above the capacity of a table
+ * are not tracked. Not thread safe: a unit of work is used by one thread at a time.
+ */
+class UnitOfWork {
+
+    /**
+     * The signature of the executions which can not be told apart
+     */
+    static final long NO_SIGNATURE = 0L;
+    private static final int STATEMENT_CAPACITY = 128;
+    private static final int MAX_STATEMENTS = STATEMENT_CAPACITY / 2;
+    private static final int SIGNATURE_CAPACITY = 256;
+    private static final int MAX_SIGNATURES = SIGNATURE_CAPACITY / 2;
+
+    final SqlStat sqlStat;
+    private final int threshold;
+
+    // executions per statement
+    private final SqlStatementStat[] stats = new SqlStatementStat[STATEMENT_CAPACITY];
+    private final int[] counts = new int[STATEMENT_CAPACITY];
+    private final long[] timesNanos = new long[STATEMENT_CAPACITY];
+    private int statementCount;
+
+    // executions per statement and signature
+    private final SqlStatementStat[] signatureStats = new SqlStatementStat[SIGNATURE_CAPACITY];
+    private final long[] signatures = new long[SIGNATURE_CAPACITY];
+    private final int[] signatureCounts = new int[SIGNATURE_CAPACITY];
+    private final long[] signatureTimesNanos = new long[SIGNATURE_CAPACITY];
+    private int signatureCount;
+
+    private int executeCount;
+
+    /**
+     * @param threshold the executions of a statement above it are reported as N+1
+     */
+    UnitOfWork(SqlStat sqlStat, int threshold) {
+        this.sqlStat = sqlStat;
+        this.threshold = threshold;
+    }
+
+    /**
+     * @param signature hash of the sql and the parameters, {@link #NO_SIGNATURE} if unknown
+     */
+    void register(SqlStatementStat stat, long signature, long timeNanos) {
+        executeCount++;
+        int hash = System.identityHashCode(stat);
+        int mask = STATEMENT_CAPACITY - 1;
+        for (int i = (hash ^ (hash >>> 16)) & mask; ; i = (i + 1) & mask) {
+            SqlStatementStat slotStat = stats[i];
+            if (slotStat == null) {
+                if (statementCount >= MAX_STATEMENTS) {
+                    break;
+                }
+                stats[i] = stat;
+                statementCount++;
+            } else if (slotStat != stat) {
+                continue;
+            }
+            counts[i]++;
+            timesNanos[i] += timeNanos;
+            break;
+        }
+        if (signature != NO_SIGNATURE) {
+            registerSignature(stat, hash * 31 + Long.hashCode(signature), signature, timeNanos);
+        }
+    }
+
+    private void registerSignature(SqlStatementStat stat, int hash, long signature, long timeNanos) {
+        int mask = SIGNATURE_CAPACITY - 1;
+        for (int i = (hash ^ (hash >>> 16)) & mask; ; i = (i + 1) & mask) {
+            SqlStatementStat slotStat = signatureStats[i];
+            if (slotStat == null) {
+                if (signatureCount >= MAX_SIGNATURES) {
+                    return;
+                }
+                signatureStats[i] = stat;
+                signatures[i] = signature;
+                signatureCount++;
+            } else if (slotStat != stat || signatures[i] != signature) {
+                continue;
+            }
+            signatureCounts[i]++;
+            signatureTimesNanos[i] += timeNanos;
+            return;
+        }
+    }
+
+    /**
+     * Registers the findings and clears the unit, so it can be reused
+     */
+    void finish() {
+        if (executeCount > 1) {
+            for (int i = 0; i < SIGNATURE_CAPACITY; i++) {
+                if (signatureStats[i] != null && signatureCounts[i] > 1) {
+                    sqlStat.registerFinding(SqlStat.FINDING_REPEATED, signatureStats[i], signatureCounts[i],
+                            signatureTimesNanos[i]);
+                }
+            }
+            if (executeCount > threshold) {
+                for (int i = 0; i < STATEMENT_CAPACITY; i++) {
+                    if (stats[i] != null && counts[i] > threshold) {
+                        sqlStat.registerFinding(SqlStat.FINDING_N_PLUS_ONE, stats[i], counts[i], timesNanos[i]);
+                    }
+                }
+            }
+        }
+        if (statementCount > 0) {
+            Arrays.fill(stats, null);
+            Arrays.fill(counts, 0);
+            Arrays.fill(timesNanos, 0L);
+            statementCount = 0;
+        }
+        if (signatureCount > 0) {
+            Arrays.fill(signatureStats, null);
+            Arrays.fill(signatureCounts, 0);
+            Arrays.fill(signatureTimesNanos, 0L);
+            signatureCount = 0;
+        }
+        executeCount = 0;
+    }
+}
@@ -1,16 +1,20 @@
 package org.jdbcmon;
 
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.util.Arrays;
-import java.util.TreeMap;
-import java.util.function.BinaryOperator;
-import java.util.function.Function;
-import java.util.stream.Collector;
-import java.util.stream.Collectors;
+import java.util.Locale;
 
 class Utils {
 
+    private static final long[] POWERS_OF_TEN = {1L, 10L, 100L, 1_000L, 10_000L, 100_000L, 1_000_000L, 10_000_000L,
+            100_000_000L, 1_000_000_000L};
+    /**
+     * Scaled values up to this are formatted with the fast path
+     */
+    private static final double MAX_FAST_SCALED_VALUE = 1e17d;
+    /**
+     * For the memory fences of the writes to the mapped files: a volatile write and read pair
+     */
+    private static volatile int fence;
+
     static void checkArgument(boolean arg, String msg, Object... args) {
         if (!arg) {
             String fullMsg = String.format(msg, args);
@@ -18,31 +22,47 @@ class Utils {
         }
     }
 
-    static <T, K extends Comparable<K>, V> Collector<T, ?, TreeMap<K, V>> toTreeMap(Function<? super T, ? extends K> keyMapper,
-                                                                                    Function<? super T, ? extends V> valueMapper) {
-        return Collectors.toMap(keyMapper, valueMapper, throwingMerger(), TreeMap::new);
-    }
-
-    private static <T> BinaryOperator<T> throwingMerger() {
-        return (u, v) -> {
-            throw new IllegalStateException(String.format("Duplicate key, existing value=[%s], new value=[%s]", u, v));
-        };
-    }
-
-    static Object invokeTarget(Method method, Object obj, Object... args) throws Throwable {
-        try {
-            return method.invoke(obj, args);
-        } catch (InvocationTargetException e) {
-            throw e.getCause();
+    /**
+     * Same as {@code String.format(Locale.ENGLISH, "%.<precision>f", value)}, without parsing a format
+     *
+     * @param precision 0..9
+     */
+    static String formatDecimal(double value, int precision) {
+        double scaled = value * POWERS_OF_TEN[precision];
+        if (!(Math.abs(scaled) < MAX_FAST_SCALED_VALUE)) {
+            // NaN, infinite or huge
+            return String.format(Locale.ENGLISH, "%." + precision + "f", value);
+        }
+        long units = Math.round(scaled);
+        StringBuilder sb = new StringBuilder(24);
+        if (units < 0L) {
+            sb.append('-');
+            units = -units;
+        }
+        long scale = POWERS_OF_TEN[precision];
+        sb.append(units / scale);
+        if (precision > 0) {
+            sb.append('.');
+            long fraction = units % scale;
+            for (long digit = scale / 10L; digit > 0L; digit /= 10L) {
+                sb.append((char) ('0' + fraction / digit % 10L));
+            }
         }
+        return sb.toString();
     }
 
-    static boolean matches(Method method, String methodName, Class<?>... argTypes) {
-        return method.getName().equals(methodName) &&
-                Arrays.equals(method.getParameterTypes(), argTypes);
+    /**
+     * Orders the stores before the fence before the stores after it, for the writes to a mapped buffer, which
+     * are not ordered by the memory model
+     */
+    static void storeFence() {
+        fence = 0;
     }
 
-    static boolean matches(Method method, Class<?> returnType, String methodName, Class<?>... argTypes) {
-        return method.getReturnType() == returnType && matches(method, methodName, argTypes);
+    /**
+     * Orders the loads before the fence before the loads after it
+     */
+    static void loadFence() {
+        int ignored = fence;
     }
 }
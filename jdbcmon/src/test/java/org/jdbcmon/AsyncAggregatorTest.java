@@ -0,0 +1,168 @@
+package org.jdbcmon;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AsyncAggregatorTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void flushAggregatesThePublishedEvents() throws InterruptedException {
+        AtomicLong sum = new AtomicLong();
+        AtomicLong count = new AtomicLong();
+        // single consumer: the handler needs no synchronization, the atomics are for the reading thread only
+        AsyncAggregator aggregator = new AsyncAggregator(1024, false, (type, key, ref, value, weight) -> {
+            sum.addAndGet(value * weight);
+            count.incrementAndGet();
+        });
+        int threads = 4;
+        int events = 100_000;
+        AtomicLong inline = new AtomicLong();
+        List<Thread> producers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Thread producer = new Thread(() -> {
+                for (int j = 1; j <= events; j++) {
+                    if (!aggregator.offer(1, "sql", null, j, 1L)) {
+                        inline.addAndGet(j);
+                    }
+                }
+            });
+            producers.add(producer);
+            producer.start();
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        aggregator.flush();
+        long expected = threads * ((long) events * (events + 1) / 2);
+        assertEquals(expected, sum.get() + inline.get());
+        assertEquals(aggregator.report().get("published"), count.get());
+        assertEquals(0L, aggregator.report().get("backlog"));
+        aggregator.stop();
+    }
+
+    @Test
+    public void overflow() throws InterruptedException {
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AsyncAggregator dropping = new AsyncAggregator(2, true, (type, key, ref, value, weight) -> {
+            blocked.countDown();
+            await(release);
+        });
+        AsyncAggregator inline = new AsyncAggregator(2, false, (type, key, ref, value, weight) -> await(release));
+        try {
+            // the consumer blocks in the handler of the first event, which keeps its slot until handled,
+            // so one more event fits into the ring and the next ones are dropped
+            assertTrue(dropping.offer(1, "sql", null, 0L, 1L));
+            assertTrue(blocked.await(5, TimeUnit.SECONDS));
+            assertTrue(dropping.offer(1, "sql", null, 0L, 1L));
+            assertEquals(0L, dropping.report().get("dropped"));
+            assertTrue(dropping.offer(1, "sql", null, 0L, 1L));
+            assertTrue(dropping.offer(1, "sql", null, 0L, 1L));
+            assertEquals(2L, dropping.report().get("dropped"));
+
+            for (int i = 0; i < 3; i++) {
+                inline.offer(1, "sql", null, 0L, 1L);
+            }
+            assertFalse(inline.offer(1, "sql", null, 0L, 1L));
+            assertTrue((Long) inline.report().get("inline") >= 1L);
+        } finally {
+            release.countDown();
+            dropping.stop();
+            inline.stop();
+        }
+    }
+
+    @Test
+    public void failedHandlerDoesNotStopTheConsumer() {
+        AtomicLong handled = new AtomicLong();
+        AsyncAggregator aggregator = new AsyncAggregator(16, false, (type, key, ref, value, weight) -> {
+            if (value == 1L) {
+                throw new IllegalStateException();
+            }
+            handled.incrementAndGet();
+        });
+        aggregator.offer(1, "sql", null, 1L, 1L);
+        aggregator.offer(1, "sql", null, 2L, 1L);
+        aggregator.flush();
+        assertEquals(1L, handled.get());
+        assertEquals(1L, aggregator.report().get("failed"));
+        aggregator.stop();
+    }
+
+    @Test
+    public void stopDrainsThePublishedEvents() {
+        AtomicLong handled = new AtomicLong();
+        AsyncAggregator aggregator = new AsyncAggregator(1024, false,
+                (type, key, ref, value, weight) -> handled.incrementAndGet());
+        for (int i = 0; i < 500; i++) {
+            assertTrue(aggregator.offer(1, "sql", null, i, 1L));
+        }
+        aggregator.stop();
+        assertEquals(500L, handled.get());
+        // no events are published after the stop, they are aggregated on the calling thread
+        assertFalse(aggregator.offer(1, "sql", null, 0L, 1L));
+    }
+
+    @Test
+    public void closeDataSource() throws Exception {
+        MonitoringDataSource dataSource = StatementProxyTest.newDataSource("closeDataSource");
+        Path file = folder.getRoot().toPath().resolve("statistics.bin");
+        int aggregators = aggregatorThreads();
+        dataSource.setAsyncAggregation(1024, false);
+        dataSource.setStatisticsPersistence(file, 1L, TimeUnit.HOURS);
+        dataSource.setEventRecording(folder.newFolder("events").toPath(), 1 << 16, 2);
+        assertEquals(aggregators + 1, aggregatorThreads());
+        execute(dataSource);
+
+        dataSource.close();
+        assertEquals(aggregators, aggregatorThreads());
+        // saved one last time
+        assertTrue(Files.exists(file));
+        // still monitored, on the calling thread
+        execute(dataSource);
+        assertEquals(2L, dataSource.snapshot().getTotalExecuteCount());
+    }
+
+    private static void execute(MonitoringDataSource dataSource) throws SQLException {
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute("select 1");
+        }
+    }
+
+    private static int aggregatorThreads() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("jdbcmon-aggregator")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package org.jdbcmon;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class DeltaCursorTest {
+
+    private static StatementDelta find(MonitoringDelta delta, String sql) {
+        for (StatementDelta statement : delta.getStatements()) {
+            if (statement.getSql().equals(sql)) {
+                return statement;
+            }
+        }
+        return null;
+    }
+
+    private static void execute(SqlStat sqlStat, String sql, int count, long timeNanos) {
+        SqlStatementStat stat = sqlStat.getSqlStat(sql);
+        for (int i = 0; i < count; i++) {
+            sqlStat.registerExecute(stat, timeNanos, null);
+        }
+    }
+
+    @Test
+    public void changesSinceThePreviousCall() {
+        SqlStat sqlStat = new SqlStat();
+        DeltaCursor cursor = new DeltaCursor(sqlStat);
+        execute(sqlStat, "a", 3, 1_000_000L);
+        execute(sqlStat, "b", 1, 1_000_000L);
+
+        MonitoringDelta first = cursor.next();
+        assertEquals(4L, first.getExecuteCount());
+        assertEquals(3L, find(first, "a").getExecuteCount());
+        assertEquals(3_000_000L, find(first, "a").getTotalExecuteTimeNanos());
+
+        assertTrue(cursor.next().getStatements().isEmpty());
+
+        execute(sqlStat, "a", 2, 50_000_000L);
+        MonitoringDelta third = cursor.next();
+        assertEquals(1, third.getStatements().size());
+        StatementDelta a = find(third, "a");
+        assertEquals(2L, a.getExecuteCount());
+        // the percentiles of the interval only, in micros
+        long p50 = a.getExecuteTimeMicros()[0];
+        assertTrue("p50 " + p50, p50 >= 45_000L && p50 <= 55_000L);
+    }
+
+    @Test
+    public void eviction() {
+        SqlStat sqlStat = new SqlStat();
+        DeltaCursor cursor = new DeltaCursor(sqlStat);
+        SqlStatementStat rare = sqlStat.getSqlStat("rare");
+        sqlStat.registerExecute(rare, 1000L, null);
+        assertEquals(1L, cursor.next().getExecuteCount());
+
+        long executed = 0L;
+        for (int i = 0; !rare.evicted; i++) {
+            execute(sqlStat, "frequent " + i, 5, 1000L);
+            executed += 5L;
+        }
+        // the rare statement is merged to [other], its execution was returned already
+        MonitoringDelta delta = cursor.next();
+        assertEquals(executed, delta.getExecuteCount());
+        StatementDelta other = find(delta, SqlStat.OTHER_SQL);
+        assertTrue(other == null || other.getExecuteCount() == 0L);
+
+        sqlStat.registerExecute(rare, 1000L, null);
+        delta = cursor.next();
+        assertEquals(1L, delta.getExecuteCount());
+        assertEquals(1L, find(delta, "rare").getExecuteCount());
+    }
+
+    @Test
+    public void reset() {
+        SqlStat sqlStat = new SqlStat();
+        DeltaCursor cursor = new DeltaCursor(sqlStat);
+        SqlStatementStat stat = sqlStat.getSqlStat("a");
+        execute(sqlStat, "a", 3, 1000L);
+        assertEquals(3L, cursor.next().getExecuteCount());
+
+        sqlStat.reset();
+        // the handle kept from before the reset is resolved to the new entry
+        sqlStat.registerExecute(stat, 1000L, null);
+        sqlStat.registerExecute(stat, 1000L, null);
+        MonitoringDelta delta = cursor.next();
+        assertEquals(2L, delta.getExecuteCount());
+        assertEquals(2L, find(delta, "a").getExecuteCount());
+        assertNull(find(delta, SqlStat.OTHER_SQL));
+    }
+}
@@ -0,0 +1,162 @@
+package org.jdbcmon;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class EventRecorderTest {
+
+    private static final int SEGMENT_SIZE = 4096;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private static MonitoringSnapshot read(Path directory) throws IOException {
+        return new RecordingReader(directory).snapshot(0L, Long.MAX_VALUE);
+    }
+
+    private static StatementSnapshot statement(MonitoringSnapshot snapshot, String sql) {
+        for (StatementSnapshot statement : snapshot.getStatements()) {
+            if (statement.getSql().equals(sql)) {
+                return statement;
+            }
+        }
+        throw new AssertionError("No statement " + sql);
+    }
+
+    @Test
+    public void writeRead() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        SqlStat sqlStat = new SqlStat();
+        SqlStatementStat select = sqlStat.getSqlStat("select 1");
+        SqlStatementStat update = sqlStat.getSqlStat("update t set a = ?");
+        try (EventRecorder recorder = new EventRecorder(directory, SEGMENT_SIZE, 2)) {
+            recorder.recordPrepare(select, 1_000L, null);
+            recorder.recordExecute(select, 2_000_000L, null);
+            recorder.recordExecute(select, 3_000_000L, new SQLException("timeout", "HYT00", 42));
+            recorder.recordFetch(select, 500_000L, 1L);
+            recorder.recordExecute(update, 1_000_000L, null);
+            recorder.recordUpdate(update, 7L);
+        }
+
+        MonitoringSnapshot snapshot = read(directory);
+        assertEquals(3L, snapshot.getTotalExecuteCount());
+        assertEquals(1L, snapshot.getTotalPrepareCount());
+        StatementSnapshot selectSnapshot = statement(snapshot, "select 1");
+        assertEquals(2L, selectSnapshot.getExecuteCount());
+        assertEquals(1L, selectSnapshot.getFailExecuteCount());
+        assertEquals(5_000_000L, selectSnapshot.getTotalExecuteTimeNanos());
+        assertEquals(500_000L, selectSnapshot.getTotalFetchTimeNanos());
+        assertEquals(1L, statement(snapshot, "update t set a = ?").getExecuteCount());
+        // the failure is replayed by its signature, without a stack trace
+        List<ExceptionStat> exceptions = selectSnapshot.stat.exceptions.copyValues();
+        assertEquals(1, exceptions.size());
+        assertEquals("HYT00", exceptions.get(0).sqlState);
+        assertEquals(42, exceptions.get(0).errorCode);
+        assertEquals(ExceptionStat.signature("HYT00", 42), exceptions.get(0).report().get("stackTrace"));
+    }
+
+    @Test
+    public void sqlStateEncoding() {
+        for (String sqlState : new String[]{"00000", "HYT00", "42S02", "ZZZZZ", "99999"}) {
+            assertEquals(sqlState, EventRecorder.decodeSqlState(EventRecorder.encodeSqlState(sqlState)));
+        }
+        assertEquals(0, EventRecorder.encodeSqlState(null));
+        assertEquals(0, EventRecorder.encodeSqlState("42s02"));
+        assertEquals(0, EventRecorder.encodeSqlState("4200"));
+        assertEquals(null, EventRecorder.decodeSqlState(0));
+    }
+
+    @Test(timeout = 10_000L)
+    public void sqlLongerThanSegment() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        char[] chars = new char[5 * 1024];
+        Arrays.fill(chars, 'x');
+        String sql = "select " + new String(chars);
+        SqlStatementStat stat = new SqlStat().getSqlStat(sql);
+        // the next segment is mapped inline, so no event is dropped
+        try (EventRecorder recorder = new EventRecorder(directory, SEGMENT_SIZE, 2, Runnable::run)) {
+            recorder.recordExecute(stat, 1_000L, null);
+            recorder.recordExecute(stat, 1_000L, null);
+        }
+
+        List<StatementSnapshot> statements = read(directory).getStatements();
+        StatementSnapshot statement = statements.get(0);
+        // the sql is truncated to fit in a segment
+        assertTrue(sql.startsWith(statement.getSql()));
+        assertTrue(statement.getSql().length() < SEGMENT_SIZE);
+        assertEquals(2L, statement.getExecuteCount());
+    }
+
+    @Test
+    public void rotation() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        SqlStatementStat stat = new SqlStat().getSqlStat("select 1");
+        try (EventRecorder recorder = new EventRecorder(directory, SEGMENT_SIZE, 2, Runnable::run)) {
+            for (int i = 0; i < 1000; i++) {
+                recorder.recordExecute(stat, 1_000L, null);
+            }
+        }
+
+        // the oldest segments are overwritten, the last two are kept
+        long executeCount = statement(read(directory), "select 1").getExecuteCount();
+        int perSegment = (SEGMENT_SIZE - EventRecorder.HEADER_SIZE) / EventRecorder.EVENT_LENGTH;
+        assertTrue("executeCount " + executeCount, executeCount > perSegment && executeCount <= 2 * perSegment);
+    }
+
+    @Test
+    public void dropWhileMapping() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        SqlStatementStat stat = new SqlStat().getSqlStat("select 1");
+        List<Runnable> mappings = new ArrayList<>();
+        try (EventRecorder recorder = new EventRecorder(directory, SEGMENT_SIZE, 2, mappings::add)) {
+            for (int i = 0; i < 300; i++) {
+                recorder.recordExecute(stat, 1_000L, null);
+            }
+            // the next segment is mapped: the recording goes on
+            mappings.remove(0).run();
+            for (int i = 0; i < 5; i++) {
+                recorder.recordExecute(stat, 1_000L, null);
+            }
+        }
+
+        // the first segment holds the define record and the events which fit, the other ones were dropped
+        int define = (EventRecorder.DEFINE_HEADER_LENGTH + "select 1".length() + 7) & ~7;
+        int perSegment = (SEGMENT_SIZE - EventRecorder.HEADER_SIZE - define) / EventRecorder.EVENT_LENGTH;
+        assertEquals(perSegment + 5L, statement(read(directory), "select 1").getExecuteCount());
+    }
+
+    @Test
+    public void reusedSegment() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        SqlStat sqlStat = new SqlStat();
+        try (EventRecorder recorder = new EventRecorder(directory, SEGMENT_SIZE, 2)) {
+            SqlStatementStat stat = sqlStat.getSqlStat("select 1");
+            for (int i = 0; i < 50; i++) {
+                recorder.recordExecute(stat, 1_000L, null);
+            }
+        }
+        try (EventRecorder recorder = new EventRecorder(directory, SEGMENT_SIZE, 2)) {
+            recorder.recordExecute(sqlStat.getSqlStat("select 2"), 1_000L, null);
+        }
+        // maps the file of the first recorder again: its records after the new one are not read
+        try (EventRecorder recorder = new EventRecorder(directory, SEGMENT_SIZE, 2)) {
+            recorder.recordExecute(sqlStat.getSqlStat("select 3"), 1_000L, null);
+        }
+
+        MonitoringSnapshot snapshot = read(directory);
+        assertEquals(2L, snapshot.getTotalExecuteCount());
+        assertEquals(1L, statement(snapshot, "select 2").getExecuteCount());
+        assertEquals(1L, statement(snapshot, "select 3").getExecuteCount());
+    }
+}
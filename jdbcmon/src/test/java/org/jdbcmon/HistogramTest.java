@@ -0,0 +1,123 @@
+package org.jdbcmon;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class HistogramTest {
+
+    /**
+     * Relative error allowed by the precision of 2 significant digits
+     */
+    private static final double PRECISION = 0.01d;
+
+    @Test
+    public void percentiles() {
+        Histogram histogram = new Histogram(3_600_000_000L, 2);
+        for (long value = 1; value <= 10_000; value++) {
+            histogram.record(value);
+        }
+        assertEquals(10_000L, histogram.getTotalCount());
+        assertEquals(10_000L, histogram.getMaxValue());
+        assertNear(5_000L, histogram.getValueAtPercentile(50.0d));
+        assertNear(9_900L, histogram.getValueAtPercentile(99.0d));
+        assertEquals(10_000L, histogram.getValueAtPercentile(100.0d));
+
+        long[] values = histogram.getValuesAtPercentiles(new double[]{50.0d, 90.0d, 99.0d});
+        assertEquals(histogram.getValueAtPercentile(50.0d), values[0]);
+        assertEquals(histogram.getValueAtPercentile(90.0d), values[1]);
+        assertEquals(histogram.getValueAtPercentile(99.0d), values[2]);
+    }
+
+    @Test
+    public void empty() {
+        Histogram histogram = new Histogram(1000L, 1);
+        assertEquals(0L, histogram.getTotalCount());
+        assertEquals(0L, histogram.getValueAtPercentile(99.0d));
+    }
+
+    @Test
+    public void valuesAboveTheRangeAreClamped() {
+        Histogram histogram = new Histogram(1000L, 1);
+        histogram.record(1_000_000L);
+        assertEquals(1L, histogram.getTotalCount());
+        assertTrue(histogram.getValueAtPercentile(50.0d) >= 1000L);
+    }
+
+    @Test
+    public void addWithDifferentPrecision() {
+        Histogram coarse = new Histogram(1_000_000L, 1);
+        Histogram fine = new Histogram(1_000_000L, 3);
+        for (long value = 1; value <= 1000; value++) {
+            coarse.record(value);
+            fine.record(value * 100, 2L);
+        }
+        Histogram total = new Histogram(1_000_000L, 2);
+        total.add(coarse);
+        total.add(fine);
+        assertEquals(3000L, total.getTotalCount());
+        assertNear(100_000L, total.getMaxValue());
+        // a third of the values are below 1000, the rest are up to 100 000
+        assertTrue(total.getValueAtPercentile(30.0d) <= 1100L);
+        assertNear(50_000L, total.getValueAtPercentile(66.67d));
+    }
+
+    @Test
+    public void since() {
+        Histogram histogram = new Histogram(1_000_000L, 2);
+        for (int i = 0; i < 100; i++) {
+            histogram.record(10L);
+        }
+        Histogram previous = histogram.copy();
+        for (int i = 0; i < 10; i++) {
+            histogram.record(5000L);
+        }
+        Histogram interval = histogram.since(previous);
+        assertEquals(10L, interval.getTotalCount());
+        assertNear(5000L, interval.getValueAtPercentile(50.0d));
+        assertNear(5000L, interval.getMaxValue());
+
+        assertEquals(0L, histogram.since(histogram.copy()).getTotalCount());
+        // the counts of the copy never make the interval negative
+        assertEquals(0L, previous.since(histogram).getTotalCount());
+    }
+
+    @Test
+    public void writeRead() throws IOException {
+        Histogram histogram = new Histogram(3_600_000_000L, 2);
+        histogram.record(1L);
+        histogram.record(1234L, 7L);
+        histogram.record(3_000_000_000L);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        histogram.write(new DataOutputStream(bytes));
+        Histogram read = Histogram.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        assertEquals(histogram.significantDigits(), read.significantDigits());
+        assertEquals(histogram.highestTrackableValue(), read.highestTrackableValue());
+        assertEquals(histogram.getTotalCount(), read.getTotalCount());
+        assertEquals(histogram.getMaxValue(), read.getMaxValue());
+        assertEquals(histogram.countsLength(), read.countsLength());
+        for (int i = 0; i < histogram.countsLength(); i++) {
+            assertEquals(histogram.countAtIndex(i), read.countAtIndex(i));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void readCorrupt() throws IOException {
+        byte[] bytes = {0, 0, 0, 9, 0, 0, 0, 0};
+        Histogram.read(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    private static void assertNear(long expected, long actual) {
+        assertTrue("expected " + expected + " but was " + actual,
+                Math.abs(actual - expected) <= Math.max(1L, (long) (expected * PRECISION)));
+    }
+}
@@ -0,0 +1,131 @@
+package org.jdbcmon;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class SpaceSavingMapTest {
+
+    private static final class Counter {
+        final String key;
+        final long overestimation;
+        final AtomicLong count = new AtomicLong();
+
+        Counter(String key, long overestimation) {
+            this.key = key;
+            this.overestimation = overestimation;
+        }
+
+        long count() {
+            return count.get() + overestimation;
+        }
+    }
+
+    @Test
+    public void evictsTheMinimum() {
+        List<Counter> evicted = new ArrayList<>();
+        SpaceSavingMap<String, Counter> map = new SpaceSavingMap<>(3, Counter::new, Counter::count, evicted::add);
+        map.get("a").count.addAndGet(100);
+        map.get("b").count.addAndGet(2);
+        map.get("c").count.addAndGet(5);
+        assertTrue(evicted.isEmpty());
+
+        Counter d = map.get("d");
+        assertEquals(1, evicted.size());
+        assertEquals("b", evicted.get(0).key);
+        // the new key inherits the count of the evicted one
+        assertEquals(2L, d.overestimation);
+
+        // the one-off keys replace each other, each inherits the count of the previous one, so a heavy hitter
+        // is not evicted until their count reaches its one
+        for (int i = 0; i < 50; i++) {
+            map.get("x" + i).count.incrementAndGet();
+        }
+        assertEquals(100L, map.get("a").count.get());
+        assertTrue(evicted.stream().noneMatch(counter -> counter.key.equals("a")));
+        assertEquals(3, map.copyValues().size());
+    }
+
+    @Test
+    public void evictionIntoOther() {
+        SqlStat sqlStat = new SqlStat();
+        SqlStatementStat rare = sqlStat.getSqlStat("rare");
+        sqlStat.registerExecute(rare, 1000L, null);
+        sqlStat.registerExecute(rare, 1000L, new SQLException("failure", "42000", 1));
+        sqlStat.registerBatchSize(rare, 10);
+        sqlStat.registerUpdate(rare, 3L);
+        // fill the table with more frequent statements, the next one evicts the rare one
+        for (int i = 0; ; i++) {
+            SqlStatementStat stat = sqlStat.getSqlStat("frequent " + i);
+            if (rare.evicted) {
+                break;
+            }
+            for (int j = 0; j < 5; j++) {
+                sqlStat.registerExecute(stat, 1000L, null);
+            }
+        }
+
+        SqlStatementStat other = sqlStat.getOtherTotals();
+        assertEquals(2L, other.executeCount.sum());
+        assertEquals(1L, other.failExecuteCount.sum());
+        assertEquals(2L, other.executeHistogram.getTotalCount());
+        assertEquals(1, other.batch.computeIfAbsent(10, () -> null).get());
+        assertEquals(1L, other.update.computeIfAbsent(3L, () -> null).get());
+        List<ExceptionStat> exceptions = other.exceptions.copyValues();
+        assertEquals(1, exceptions.size());
+        assertEquals(1L, exceptions.get(0).getCount());
+        assertEquals(1L, sqlStat.snapshot().getEvictedStatementCount());
+
+        // the handle of the evicted statement resolves to its new entry
+        SqlStatementStat resolved = sqlStat.resolve(rare);
+        assertTrue(resolved != rare);
+        assertEquals("rare", resolved.sql);
+    }
+
+    @Test
+    public void concurrentEviction() throws InterruptedException {
+        SqlStat sqlStat = new SqlStat();
+        int executions = 20_000;
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            // half of the threads keep their handles like prepared statements, the others look the sql up
+            boolean prepared = t % 2 == 0;
+            threads[t] = new Thread(() -> {
+                SqlStatementStat[] handles = new SqlStatementStat[16];
+                for (int i = 0; i < executions; i++) {
+                    int index = ThreadLocalRandom.current().nextInt(handles.length);
+                    // many distinct statements, so that the table keeps evicting
+                    String sql = "select " + ThreadLocalRandom.current().nextInt(1000);
+                    if (prepared) {
+                        if (handles[index] == null || i % 100 == 0) {
+                            handles[index] = sqlStat.getSqlStat(sql);
+                        }
+                        sqlStat.registerExecute(handles[index], 1000L, null);
+                    } else {
+                        sqlStat.registerExecute(sql, 1000L, null);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        MonitoringSnapshot snapshot = sqlStat.snapshot();
+        assertTrue(snapshot.getEvictedStatementCount() > 0L);
+        long executeCount = 0L;
+        for (StatementSnapshot statement : snapshot.getStatements()) {
+            executeCount += statement.getExecuteCount();
+        }
+        assertEquals((long) executions * threads.length, snapshot.getTotalExecuteCount());
+        assertEquals(snapshot.getTotalExecuteCount(), executeCount);
+    }
+}
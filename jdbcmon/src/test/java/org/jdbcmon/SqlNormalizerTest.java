@@ -0,0 +1,83 @@
+package org.jdbcmon;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class SqlNormalizerTest {
+
+    private static void assertNormalized(String expected, String sql) {
+        assertEquals(expected, SqlNormalizer.normalizeUncached(sql));
+    }
+
+    @Test
+    public void literals() {
+        assertNormalized("select * from t where a = ? and b = ?", "SELECT * FROM t WHERE a = 'x''y' AND b = 1.5e-3");
+        assertNormalized("select ? from t where a = ? and b = ?", "select 0x1F from t where a = N'z' and b = $1");
+    }
+
+    @Test
+    public void inLists() {
+        assertNormalized("select * from t where id in (?)", "select * from t where id in (1, 2, 3)");
+        assertNormalized("select * from t where id in (?)", "select * from t where id IN ( ? ,?,? )");
+        assertNormalized("select * from t where id in (?)", "select * from t where id in (-1, +2, - 3)");
+        assertNormalized("select * from t where id in (select id from u)", "select * from t where id in (select id from u)");
+        assertNormalized("select * from t where (a, b) in ((?, ?), (?, ?))",
+                "select * from t where (a, b) in ((1, 2), (3, 4))");
+    }
+
+    @Test
+    public void whitespaceAndComments() {
+        assertNormalized("select a, b from t", "select  a ,b\n -- comment\n from /* block */ t");
+        assertNormalized("select count(*) from t", "select count( * ) from t");
+        assertNormalized("select t.* from t", "select t.* from t");
+    }
+
+    @Test
+    public void operatorSpacing() {
+        String expected = "select * from t where a = ? and b <> ? and c || d >= ?";
+        assertNormalized(expected, "select * from t where a=1 and b<>2 and c||d>=3");
+        assertNormalized(expected, "select * from t where a = 1 and b <> 2 and c || d >= 3");
+        assertNormalized("update t set a = a + ? where b = ?", "update t set a=a+1 where b=2");
+    }
+
+    @Test
+    public void signs() {
+        assertNormalized("select * from t where a = ?", "select * from t where a = -5");
+        assertNormalized("select * from t where a = ?", "select * from t where a=-5");
+        assertNormalized("select * from t where a = ?", "select * from t where a = + 5");
+        assertNormalized("select * from t where a between ? and ?", "select * from t where a between -1 and -.5");
+        assertNormalized("select * from t where a - ? > ?", "select * from t where a -5 > -1");
+        assertNormalized("select * from t where f(?, ?)", "select * from t where f(-1,-2)");
+        assertNormalized("select * from t where a < -b", "select * from t where a < -b");
+        assertNormalized("select * from t where a < -b", "select * from t where a<- b");
+        assertNormalized("select a <-> b from t", "select a<->b from t");
+    }
+
+    @Test
+    public void quotedIdentifiers() {
+        assertNormalized("select \"Name\", `Other`, [My Column] from t", "select \"Name\", `Other`, [My Column] from T");
+    }
+
+    @Test
+    public void arraySubscripts() {
+        assertNormalized("select arr[?] from t where arr[?] = ?", "select arr[1] from t where arr[2]=3");
+    }
+
+    @Test
+    public void unchangedSqlIsReturnedAsIs() {
+        String sql = "select a from t where b = ?";
+        assertSame(sql, SqlNormalizer.normalizeUncached(sql));
+    }
+
+    @Test
+    public void cache() {
+        SqlNormalizer normalizer = new SqlNormalizer(2);
+        String normalized = normalizer.normalize("select 1");
+        assertSame(normalized, normalizer.normalize("select 1"));
+        normalizer.normalize("select 2");
+        normalizer.normalize("select 3");
+        assertEquals("select ?", normalizer.normalize("select 1"));
+    }
+}
@@ -0,0 +1,147 @@
+package org.jdbcmon;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.Test;
+
+public class StatementProxyTest {
+
+    private static final String SQL = "select x from system_range(1, 3)";
+    private static final String EMPTY_SQL = "select x from system_range(1, 0)";
+
+    static MonitoringDataSource newDataSource(String name) {
+        JdbcDataSource h2 = new JdbcDataSource();
+        h2.setURL("jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1");
+        return new MonitoringDataSource(h2);
+    }
+
+    static StatementSnapshot statement(MonitoringDataSource dataSource, String sql) {
+        for (StatementSnapshot statement : dataSource.snapshot().getStatements()) {
+            if (statement.getSql().equals(sql)) {
+                return statement;
+            }
+        }
+        throw new AssertionError("No statement " + sql);
+    }
+
+    @Test
+    public void resultSetSize() throws SQLException {
+        MonitoringDataSource dataSource = newDataSource("resultSetSize");
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+            for (int i = 0; i < 2; i++) {
+                try (ResultSet resultSet = statement.executeQuery(SQL)) {
+                    while (resultSet.next()) {
+                        // fetch all
+                    }
+                }
+            }
+            // registered when next() returns false, closed with the statement
+            ResultSet empty = statement.executeQuery(EMPTY_SQL);
+            assertTrue(!empty.next());
+        }
+        StatementSnapshot statement = statement(dataSource, SQL);
+        assertEquals(2L, statement.getExecuteCount());
+        assertEquals(6L, statement.getTotalResultSetSize());
+        assertTrue(statement.getTotalFetchTimeNanos() > 0L);
+        assertEquals(1L, statement(dataSource, EMPTY_SQL).getTotalEmptyResultSets());
+    }
+
+    @Test
+    public void getResultSetTwice() throws SQLException {
+        MonitoringDataSource dataSource = newDataSource("getResultSetTwice");
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+            assertTrue(statement.execute(SQL));
+            ResultSet resultSet = statement.getResultSet();
+            assertSame(resultSet, statement.getResultSet());
+            while (resultSet.next()) {
+                assertSame(resultSet, statement.getResultSet());
+            }
+        }
+        StatementSnapshot statement = statement(dataSource, SQL);
+        assertEquals(1L, statement.getExecuteCount());
+        assertEquals(3L, statement.getTotalResultSetSize());
+        assertEquals(0L, statement.getTotalEmptyResultSets());
+        assertEquals(1L, statement.stat.fetchHistogram.getTotalCount());
+    }
+
+    @Test
+    public void getResultSetOfNextExecution() throws SQLException {
+        MonitoringDataSource dataSource = newDataSource("getResultSetOfNextExecution");
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute(SQL);
+            ResultSet first = statement.getResultSet();
+            statement.execute(SQL);
+            ResultSet second = statement.getResultSet();
+            assertTrue(first != second);
+            while (second.next()) {
+                // fetch all
+            }
+        }
+        StatementSnapshot statement = statement(dataSource, SQL);
+        assertEquals(2L, statement.getExecuteCount());
+        assertEquals(3L, statement.getTotalResultSetSize());
+        assertEquals(1L, statement.getTotalEmptyResultSets());
+    }
+
+    @Test
+    public void resultSetOfReExecutedPreparedStatement() throws SQLException {
+        MonitoringDataSource dataSource = newDataSource("resultSetOfReExecutedPreparedStatement");
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement statement = connection.prepareStatement(SQL)) {
+            ResultSet resultSet = statement.executeQuery();
+            assertTrue(resultSet.next());
+            assertTrue(resultSet.next());
+            // the driver closes the result set, it is registered before the execution
+            assertTrue(statement.execute());
+            assertEquals(2L, statement(dataSource, SQL).getTotalResultSetSize());
+            assertTrue(statement.getResultSet().next());
+        }
+        StatementSnapshot statement = statement(dataSource, SQL);
+        assertEquals(2L, statement.getExecuteCount());
+        assertEquals(3L, statement.getTotalResultSetSize());
+    }
+
+    @Test
+    public void preparedStatementAfterReset() throws SQLException {
+        MonitoringDataSource dataSource = newDataSource("preparedStatementAfterReset");
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement statement = connection.prepareStatement(SQL)) {
+            statement.executeQuery().close();
+            dataSource.reset();
+            statement.executeQuery().close();
+            statement.executeQuery().close();
+        }
+        StatementSnapshot statement = statement(dataSource, SQL);
+        assertEquals(2L, statement.getExecuteCount());
+        assertEquals(1L, statement.getClosedStatementCount());
+        assertEquals(2L, dataSource.snapshot().getTotalExecuteCount());
+    }
+
+    @Test
+    public void leakedStatementsOfLongHeldConnection() throws SQLException {
+        MonitoringDataSource dataSource = newDataSource("leakedStatementsOfLongHeldConnection");
+        try (Connection connection = dataSource.getConnection()) {
+            for (int i = 0; i < 1000; i++) {
+                connection.prepareStatement(SQL).executeQuery().close();
+            }
+            PreparedStatement closed = connection.prepareStatement(SQL);
+            closed.close();
+            // reported while the connection is still held, only the last ones are tracked
+            StatementSnapshot statement = statement(dataSource, SQL);
+            assertTrue(statement.getLeakedStatementCount() >= 700L);
+            assertEquals(statement.getLeakedStatementCount() + 1L, statement.getClosedStatementCount());
+        }
+        StatementSnapshot statement = statement(dataSource, SQL);
+        assertEquals(1000L, statement.getLeakedStatementCount());
+        assertEquals(1001L, statement.getClosedStatementCount());
+    }
+}
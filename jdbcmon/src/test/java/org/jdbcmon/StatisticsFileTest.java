@@ -0,0 +1,173 @@
+package org.jdbcmon;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class StatisticsFileTest {
+
+    private static final long INTERVAL_NANOS = TimeUnit.HOURS.toNanos(1L);
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private static StatementSnapshot statement(MonitoringSnapshot snapshot, String sql) {
+        for (StatementSnapshot statement : snapshot.getStatements()) {
+            if (statement.getSql().equals(sql)) {
+                return statement;
+            }
+        }
+        throw new AssertionError("No statement " + sql);
+    }
+
+    private static SqlStat newSqlStat(int executions) {
+        SqlStat sqlStat = new SqlStat();
+        for (int i = 0; i < executions; i++) {
+            sqlStat.registerExecute("select 1", TimeUnit.MILLISECONDS.toNanos(10L), null);
+        }
+        return sqlStat;
+    }
+
+    @Test
+    public void writeRead() throws IOException {
+        SqlStat sqlStat = newSqlStat(10);
+        sqlStat.registerExecute("select 1", TimeUnit.MILLISECONDS.toNanos(10L),
+                new SQLException("timeout", "HYT00", 42));
+        sqlStat.registerFetch("select 1", TimeUnit.MILLISECONDS.toNanos(2L), 1L);
+        Path file = folder.getRoot().toPath().resolve("stats.jdbcmon");
+        StatisticsFile.write(sqlStat, file);
+
+        SqlStat restored = new SqlStat();
+        StatisticsFile.read(file, restored, false);
+        MonitoringSnapshot snapshot = restored.snapshot();
+        assertEquals(11L, snapshot.getTotalExecuteCount());
+        StatementSnapshot statement = statement(snapshot, "select 1");
+        assertEquals(11L, statement.getExecuteCount());
+        assertEquals(1L, statement.getFailExecuteCount());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(110L), statement.getTotalExecuteTimeNanos());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(2L), statement.getTotalFetchTimeNanos());
+        assertEquals(Arrays.toString(statement(sqlStat.snapshot(), "select 1").getExecuteTimeMicros()),
+                Arrays.toString(statement.getExecuteTimeMicros()));
+        long[] exceptionCount = {0L};
+        restored.getSqlStat("select 1").exceptions.forEach((signature, stat) -> exceptionCount[0] += stat.getCount());
+        assertEquals(1L, exceptionCount[0]);
+    }
+
+    @Test
+    public void merge() throws IOException {
+        Path node1 = folder.getRoot().toPath().resolve("node1.jdbcmon");
+        Path node2 = folder.getRoot().toPath().resolve("node2.jdbcmon");
+        Path fleet = folder.getRoot().toPath().resolve("fleet.jdbcmon");
+        StatisticsFile.write(newSqlStat(3), node1);
+        StatisticsFile.write(newSqlStat(4), node2);
+
+        StatisticsFile.merge(Arrays.asList(node1, node2), fleet);
+        assertEquals(7L, statement(StatisticsFile.snapshot(fleet), "select 1").getExecuteCount());
+    }
+
+    @Test
+    public void corrupt() throws IOException {
+        Path file = folder.newFile("corrupt.jdbcmon").toPath();
+        Files.write(file, new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+        try {
+            StatisticsFile.snapshot(file);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void truncatedFileMergesNothing() throws IOException {
+        SqlStat sqlStat = newSqlStat(10);
+        sqlStat.registerExecute("select 2", TimeUnit.MILLISECONDS.toNanos(10L), null);
+        Path file = folder.getRoot().toPath().resolve("stats.jdbcmon");
+        StatisticsFile.write(sqlStat, file);
+        byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 16));
+
+        SqlStat restored = newSqlStat(1);
+        try {
+            StatisticsFile.read(file, restored, false);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+        MonitoringSnapshot snapshot = restored.snapshot();
+        assertEquals(1L, snapshot.getTotalExecuteCount());
+        assertEquals(1, snapshot.getStatements().size());
+        assertEquals(1L, statement(snapshot, "select 1").getExecuteCount());
+    }
+
+    @Test
+    public void mergeStatisticsOnce() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("stats.jdbcmon");
+        StatisticsFile.write(newSqlStat(10), file);
+        MonitoringDataSource dataSource = StatementProxyTest.newDataSource("mergeStatisticsOnce");
+        dataSource.mergeStatistics(file);
+        dataSource.mergeStatistics(file);
+        assertEquals(10L, dataSource.snapshot().getTotalExecuteCount());
+    }
+
+    @Test
+    public void reEnablePersistence() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("stats.jdbcmon");
+        SqlStat sqlStat = newSqlStat(10);
+        sqlStat.setPersistence(new StatisticsPersistence(sqlStat, file, INTERVAL_NANOS));
+        sqlStat.setPersistence(null);
+        // the file has the statistics saved by the persistence: they are not restored again
+        sqlStat.setPersistence(new StatisticsPersistence(sqlStat, file, INTERVAL_NANOS));
+        sqlStat.setPersistence(null);
+        assertEquals(10L, sqlStat.snapshot().getTotalExecuteCount());
+
+        SqlStat nextRun = new SqlStat();
+        nextRun.setPersistence(new StatisticsPersistence(nextRun, file, INTERVAL_NANOS));
+        nextRun.setPersistence(null);
+        assertEquals(10L, nextRun.snapshot().getTotalExecuteCount());
+    }
+
+    @Test
+    public void concurrentWrites() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("stats.jdbcmon");
+        SqlStat sqlStat = newSqlStat(10);
+        List<Thread> threads = new ArrayList<>();
+        List<Throwable> failures = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    for (int j = 0; j < 50; j++) {
+                        StatisticsFile.write(sqlStat, file);
+                    }
+                } catch (Throwable e) {
+                    synchronized (failures) {
+                        failures.add(e);
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals("[]", failures.toString());
+        assertEquals(10L, StatisticsFile.snapshot(file).getTotalExecuteCount());
+        try (Stream<Path> files = Files.list(folder.getRoot().toPath())) {
+            assertFalse(files.anyMatch(path -> path.toString().endsWith(".tmp")));
+        }
+    }
+}
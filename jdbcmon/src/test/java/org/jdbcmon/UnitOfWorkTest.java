@@ -0,0 +1,88 @@
+package org.jdbcmon;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class UnitOfWorkTest {
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Map<String, Object>> findings(SqlStat sqlStat) {
+        Map<String, Map<String, Object>> res = new HashMap<>();
+        List<Map<String, Object>> findings = (List<Map<String, Object>>) sqlStat.shortReport().get(0).get("findings");
+        if (findings != null) {
+            for (Map<String, Object> finding : findings) {
+                res.put(finding.get("type") + " " + finding.get("sql"), finding);
+            }
+        }
+        return res;
+    }
+
+    @Test
+    public void nPlusOne() {
+        SqlStat sqlStat = new SqlStat();
+        UnitOfWork unitOfWork = new UnitOfWork(sqlStat, 10);
+        SqlStatementStat parent = sqlStat.getSqlStat("select * from parent");
+        SqlStatementStat child = sqlStat.getSqlStat("select * from child where parent_id = ?");
+        unitOfWork.register(parent, 1L, 1000L);
+        for (int i = 1; i <= 20; i++) {
+            unitOfWork.register(child, i, 1000L);
+        }
+        unitOfWork.finish();
+
+        Map<String, Map<String, Object>> findings = findings(sqlStat);
+        assertEquals(1, findings.size());
+        assertEquals(20L, findings.get("N+1 " + child.sql).get("executeCount"));
+    }
+
+    @Test
+    public void nPlusOneWithDistinctParameters() {
+        SqlStat sqlStat = new SqlStat();
+        UnitOfWork unitOfWork = new UnitOfWork(sqlStat, 10);
+        SqlStatementStat parent = sqlStat.getSqlStat("select * from parent");
+        SqlStatementStat child = sqlStat.getSqlStat("select * from child where parent_id = ?");
+        SqlStatementStat other = sqlStat.getSqlStat("select * from other");
+        unitOfWork.register(parent, 1L, 1000L);
+        // more distinct parameters than the signature table holds
+        for (int i = 1; i <= 500; i++) {
+            unitOfWork.register(child, i, 1000L);
+        }
+        // registered after the signature table is full
+        for (int i = 0; i < 12; i++) {
+            unitOfWork.register(other, UnitOfWork.NO_SIGNATURE, 1000L);
+        }
+        unitOfWork.finish();
+
+        Map<String, Map<String, Object>> findings = findings(sqlStat);
+        assertEquals(2, findings.size());
+        assertEquals(500L, findings.get("N+1 " + child.sql).get("executeCount"));
+        assertEquals(12L, findings.get("N+1 " + other.sql).get("executeCount"));
+    }
+
+    @Test
+    public void repeatedQueries() {
+        SqlStat sqlStat = new SqlStat();
+        UnitOfWork unitOfWork = new UnitOfWork(sqlStat, 10);
+        SqlStatementStat stat = sqlStat.getSqlStat("select * from t where id = ?");
+        unitOfWork.register(stat, 42L, 1000L);
+        unitOfWork.register(stat, 42L, 1000L);
+        unitOfWork.register(stat, 42L, 1000L);
+        unitOfWork.register(stat, 43L, 1000L);
+        unitOfWork.register(stat, UnitOfWork.NO_SIGNATURE, 1000L);
+        unitOfWork.register(stat, UnitOfWork.NO_SIGNATURE, 1000L);
+        unitOfWork.finish();
+
+        Map<String, Map<String, Object>> findings = findings(sqlStat);
+        assertEquals(1, findings.size());
+        assertEquals(3L, findings.get("repeated " + stat.sql).get("executeCount"));
+
+        // the unit is cleared by finish and reused
+        unitOfWork.register(stat, 42L, 1000L);
+        unitOfWork.finish();
+        assertEquals(1L, findings(sqlStat).get("repeated " + stat.sql).get("occurrences"));
+    }
+}